@@ -1,14 +1,20 @@
 package hs_classic;
 
+import utility.VectorKernels;
+
 public class HornSchunck
 {
-	public int	iterations;
-	public int	alpha;
+	public int		iterations;
+	public int		alpha;
+
+	// Use the wide stencil kernels, see VectorKernels
+	public boolean	vectorKernels;
 
 	public HornSchunck(int iterations, int alpha)
 	{
 		this.iterations = iterations;
 		this.alpha = alpha;
+		this.vectorKernels = VectorKernels.ENABLED;
 	}
 
 	public void run(float[][] u, float[][] v, float t1[][], float[][] t2)
@@ -98,6 +104,20 @@ public class HornSchunck
 		int h = u.length;
 		int w = u[0].length;
 
+		if (vectorKernels)
+		{
+			for (int y = 0; y < h; y++)
+			{
+				final int ym = (y > 0) ? y - 1 : 0;
+				final int yp = (y < h - 1) ? y + 1 : h - 1;
+
+				VectorKernels.averageRow(u[ym], 0, u[y], 0, u[yp], 0, uBar[y], 0, w);
+				VectorKernels.averageRow(v[ym], 0, v[y], 0, v[yp], 0, vBar[y], 0, w);
+			}
+
+			return;
+		}
+
 		for (int y = 0; y < h; y++)
 		{
 			for (int x = 0; x < w; x++)
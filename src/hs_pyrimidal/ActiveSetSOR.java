@@ -0,0 +1,164 @@
+package hs_pyrimidal;
+
+import utility.FloatGrid;
+
+/**
+ * 
+ * @author Connor Fox
+ * 
+ * Row order SOR that only relaxes the parts of the image that are still changing. The image is cut into square tiles
+ * and the RMS update of every tile is kept for each sweep. A tile whose update falls below tileFactor times the
+ * larger of stopCrt and the error of the whole sweep is left out of the following sweeps, unless one of its 8
+ * neighbours is still active, so a change that spreads from a moving edge wakes the tiles around it again.
+ * 
+ * Skipped pixels count as unchanged in the error of a sweep. When a sweep over the active tiles reaches stopCrt, the
+ * next sweep covers the whole image, and the solve only stops when such a full sweep also reaches stopCrt. The stop
+ * test is therefore the same as for SORSolver: the RMS change of a sweep over every pixel.
+ * 
+ * Within the active tiles the pixels are visited in row order, so with every tile active a sweep is a plain SOR sweep.
+ */
+public class ActiveSetSOR implements LinearSolver
+{
+	// Width and height of a tile in pixels
+	public int			tileSize	= 32;
+
+	// A tile is converged when its RMS update falls below this fraction of stopCrt, or of the error of the sweep
+	public float		tileFactor	= 0.25f;
+
+	private boolean[]	active, next;
+	private float[]		tileError;
+	private long		relaxed, swept;
+	private float		error;
+
+	@Override
+	public int solve(FlowSystem system, FloatGrid u, FloatGrid v, float stopCrt, int maxIterations)
+	{
+		final int width = system.width;
+		final int height = system.height;
+		final int tilesX = (width + tileSize - 1) / tileSize;
+		final int tilesY = (height + tileSize - 1) / tileSize;
+		final int nTiles = tilesX * tilesY;
+
+		if (active == null || active.length < nTiles)
+		{
+			active = new boolean[nTiles];
+			next = new boolean[nTiles];
+			tileError = new float[nTiles];
+		}
+
+		int nIter = 0;
+		boolean full = true;
+		error = 1000;
+		relaxed = 0;
+		swept = 0;
+
+		// Repeat SOR until a full sweep reaches the error or max iterations reached
+		while (nIter < maxIterations)
+		{
+			nIter++;
+			error = 0;
+
+			for (int t = 0; t < nTiles; t++)
+			{
+				if (full) active[t] = true;
+				tileError[t] = 0;
+			}
+
+			// Relax the active tiles a band of tile rows at a time, in row order inside the band
+			for (int ty = 0; ty < tilesY; ty++)
+			{
+				final int y1 = Math.min(height, (ty + 1) * tileSize);
+
+				for (int y = ty * tileSize; y < y1; y++)
+				{
+					float rowError = 0;
+
+					for (int tx = 0; tx < tilesX; tx++)
+					{
+						final int t = ty * tilesX + tx;
+						if (!active[t]) continue;
+
+						final int x0 = tx * tileSize;
+						final int x1 = Math.min(width, x0 + tileSize);
+						final float e = system.relaxRow(u, v, y, x0, x1, 1, system.omega);
+
+						tileError[t] += e;
+						rowError += e;
+						relaxed += x1 - x0;
+					}
+
+					error += rowError;
+				}
+			}
+
+			swept += width * height;
+
+			// total error this iteration, skipped pixels did not change
+			error = (float) Math.sqrt(error / (width * height));
+
+			if (error <= stopCrt)
+			{
+				// Only a sweep over every pixel may end the solve
+				if (full) break;
+
+				full = true;
+				continue;
+			}
+
+			full = false;
+			updateActive(tilesX, tilesY, width, height, tileFactor * Math.max(stopCrt, error));
+		}
+
+		return nIter;
+	}
+
+	/**
+	 * Keep the tiles whose RMS update is at least crt, and their neighbours.
+	 */
+	private void updateActive(int tilesX, int tilesY, int width, int height, float crt)
+	{
+		for (int t = 0; t < tilesX * tilesY; t++)
+		{
+			next[t] = false;
+		}
+
+		for (int ty = 0; ty < tilesY; ty++)
+		{
+			final int h = Math.min(height, (ty + 1) * tileSize) - ty * tileSize;
+
+			for (int tx = 0; tx < tilesX; tx++)
+			{
+				final int w = Math.min(width, (tx + 1) * tileSize) - tx * tileSize;
+				final int t = ty * tilesX + tx;
+
+				if (!active[t] || Math.sqrt(tileError[t] / (w * h)) < crt) continue;
+
+				for (int ny = Math.max(0, ty - 1); ny <= Math.min(tilesY - 1, ty + 1); ny++)
+				{
+					for (int nx = Math.max(0, tx - 1); nx <= Math.min(tilesX - 1, tx + 1); nx++)
+					{
+						next[ny * tilesX + nx] = true;
+					}
+				}
+			}
+		}
+
+		boolean[] swap = active;
+		active = next;
+		next = swap;
+	}
+
+	/**
+	 * @return The fraction of the pixels of the last solve's sweeps that were actually relaxed
+	 */
+	public double getWorkFraction()
+	{
+		return (swept == 0) ? 0 : (double) relaxed / swept;
+	}
+
+	@Override
+	public float getError()
+	{
+		return error;
+	}
+}
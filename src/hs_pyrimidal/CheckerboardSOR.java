@@ -0,0 +1,101 @@
+package hs_pyrimidal;
+
+import utility.FloatGrid;
+import utility.Parallel;
+
+/**
+ * 
+ * @author Connor Fox
+ * 
+ * SOR with a checkerboard ordering so that each sweep can be spread over many threads. Because the smoothness
+ * stencil also couples diagonal neighbours, a two colour (red-black) board would still leave neighbours of the same
+ * colour. Pixels are instead coloured by the parity of both coordinates, giving four colours with no neighbours in
+ * common. Every sweep relaxes the colours one after the other and the pixels of one colour in parallel row bands.
+ */
+public class CheckerboardSOR implements LinearSolver
+{
+	// Colour offsets (x, y) in the order they are relaxed
+	private static final int[][]	COLOURS	= { { 0, 0 }, { 1, 0 }, { 0, 1 }, { 1, 1 } };
+
+	private final Parallel		parallel;
+	private float					error;
+
+	/**
+	 * @param parallel How the row bands are run, or null to run single threaded
+	 */
+	public CheckerboardSOR(Parallel parallel)
+	{
+		this.parallel = (parallel == null) ? new Parallel(null, false) : parallel;
+	}
+
+	@Override
+	public int solve(FlowSystem system, FloatGrid u, FloatGrid v, float stopCrt, int maxIterations)
+	{
+		int nIter = 0;
+		error = 1000;
+
+		// Repeat SOR until error is acceptable or max iterations reached
+		while (error > stopCrt && nIter < maxIterations)
+		{
+			nIter++;
+			error = (float) Math.sqrt(sweep(system, u, v) / (system.width * system.height));
+		}
+
+		return nIter;
+	}
+
+	/**
+	 * Relax every pixel once, one colour at a time.
+	 * 
+	 * @return The sum of squared changes of the flow
+	 */
+	public double sweep(FlowSystem system, FloatGrid u, FloatGrid v)
+	{
+		return sweep(system, u, v, system.omega);
+	}
+
+	/**
+	 * Relax every pixel once, one colour at a time, with the given relaxation factor.
+	 * 
+	 * @return The sum of squared changes of the flow
+	 */
+	public double sweep(FlowSystem system, FloatGrid u, FloatGrid v, float omega)
+	{
+		double sum = 0;
+
+		for (int[] c : COLOURS)
+		{
+			sum += halfSweep(system, u, v, omega, c[0], c[1]);
+		}
+
+		return sum;
+	}
+
+	private double halfSweep(final FlowSystem system, final FloatGrid u, final FloatGrid v, final float omega, final int cx, final int cy)
+	{
+		// Only rows with the parity of this colour
+		final int rows = (system.height - cy + 1) / 2;
+
+		return parallel.sum(0, rows, new Parallel.Rows()
+		{
+			@Override
+			public double compute(int from, int to)
+			{
+				double e = 0;
+
+				for (int r = from; r < to; r++)
+				{
+					e += system.relaxRow(u, v, 2 * r + cy, cx, 2, omega);
+				}
+
+				return e;
+			}
+		});
+	}
+
+	@Override
+	public float getError()
+	{
+		return error;
+	}
+}
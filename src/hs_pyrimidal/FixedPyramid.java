@@ -0,0 +1,431 @@
+package hs_pyrimidal;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import utility.FloatGrid;
+import utility.Images;
+import utility.Parallel;
+
+/**
+ *
+ * @author Connor Fox
+ *
+ * Builds the image pyramid of two 8-bit frames in fixed point, for cameras whose frames carry only a byte per pixel.
+ *
+ * Grey values are kept as shorts with FRACTION fractional bits, so the normalized range 0-255 is held to 1/128. The
+ * Gaussian smoothing and the bicubic downsampling use integer weights with WEIGHT fractional bits and int or long
+ * sums, with the same kernels, sample positions and boundaries as the float pyramid of HornSchunckPyrimidal. Each level
+ * is converted to float only once it is finished, to compute its gradients and to be solved.
+ *
+ * The levels being built take 2 bytes per pixel instead of 4, and the scratch row of the smoothing 4 instead of 8.
+ */
+public class FixedPyramid
+{
+	// Fractional bits of a grey value
+	public static final int				FRACTION	= 7;
+
+	// Fractional bits of a kernel weight
+	public static final int				WEIGHT		= 14;
+
+	private static final int			ONE			= 1 << WEIGHT;
+
+	private final HornSchunckPyrimidal	hsp;
+
+	/**
+	 * @param hsp The settings: the threads to use and whether to keep the levels in half precision
+	 */
+	public FixedPyramid(HornSchunckPyrimidal hsp)
+	{
+		this.hsp = hsp;
+	}
+
+	/**
+	 * Create the pyramid of two frames holding 8-bit values, normalized to their joint range as
+	 * HornSchunckPyrimidal.createImagePyramid does.
+	 *
+	 * @param f1
+	 * @param f2
+	 * @param nScales
+	 * @param dFactor
+	 * @return
+	 */
+	public Images[] create(FloatGrid f1, FloatGrid f2, int nScales, float dFactor)
+	{
+		final float[] range = Images.greyscaleRange(f1, f2);
+
+		return create(normalize(f1, range[0], range[1]), normalize(f2, range[0], range[1]), f1.height, f1.width, nScales, dFactor);
+	}
+
+	/**
+	 * Map a frame to fixed point grey values, low to 0 and high to 255.
+	 * 
+	 * @param frame
+	 * @param low
+	 * @param high
+	 * @return
+	 */
+	public static short[] normalize(FloatGrid frame, float low, float high)
+	{
+		final float scale = (1 << FRACTION) * 255 / (high - low);
+		short[] n = new short[frame.size()];
+
+		for (int i = 0; i < n.length; i++)
+		{
+			final int value = Math.round((frame.data[i] - low) * scale);
+			n[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+		}
+
+		return n;
+	}
+
+	/**
+	 * Create the pyramid of two 8-bit greyscale frames in buffers, such as frames from capture code, without
+	 * converting them to float first.
+	 *
+	 * @param grey1 The first frame, from the buffer's position
+	 * @param grey2 The second frame, from the buffer's position
+	 * @param height
+	 * @param width
+	 * @param stride Bytes from the start of one row to the start of the next
+	 * @param nScales
+	 * @param dFactor
+	 * @return
+	 */
+	public Images[] create(ByteBuffer grey1, ByteBuffer grey2, int height, int width, int stride, int nScales, float dFactor)
+	{
+		final int size = height * width;
+		short[] n1 = new short[size];
+		short[] n2 = new short[size];
+
+		readGrey(grey1, n1, height, width, stride);
+		readGrey(grey2, n2, height, width, stride);
+
+		// Joint range of the frames
+		int min = 255;
+		int max = 0;
+
+		for (int i = 0; i < size; i++)
+		{
+			min = Math.min(min, Math.min(n1[i], n2[i]));
+			max = Math.max(max, Math.max(n1[i], n2[i]));
+		}
+
+		// Stretch it to 0-255 with FRACTION fractional bits, rounded
+		final int diff = Math.max(1, max - min);
+
+		for (int i = 0; i < size; i++)
+		{
+			n1[i] = (short) (((n1[i] - min) * (255 << FRACTION) + diff / 2) / diff);
+			n2[i] = (short) (((n2[i] - min) * (255 << FRACTION) + diff / 2) / diff);
+		}
+
+		return create(n1, n2, height, width, nScales, dFactor);
+	}
+
+	/**
+	 * Create the pyramid of two normalized fixed point frames.
+	 */
+	private Images[] create(short[] n1, final short[] n2, final int height, final int width, final int nScales, final float dFactor)
+	{
+		final FloatGrid[] p2 = new FloatGrid[nScales];
+		final FloatGrid[] p2x = new FloatGrid[nScales];
+		final FloatGrid[] p2y = new FloatGrid[nScales];
+
+		// The second frame and its gradients on the pool, while the first frame is built here. The gradients are taken
+		// of the truncated float levels, as the solver will see them
+		ForkJoinTask<?> second = null;
+		Runnable secondFrame = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				createFrame(n2, height, width, p2, dFactor);
+				hsp.truncate(p2);
+				hsp.createGradients(p2, p2x, p2y);
+			}
+		};
+
+		ForkJoinPool pool = hsp.getParallel().pool;
+		if (pool != null) second = pool.submit(secondFrame);
+		FloatGrid[] p1 = createFrame(n1, height, width, nScales, dFactor);
+		hsp.truncate(p1);
+
+		if (second != null) second.join();
+		else secondFrame.run();
+
+		Images[] imgScales = new Images[nScales];
+
+		for (int i = 0; i < nScales; i++)
+		{
+			imgScales[i] = new Images(p1[i], p2[i]);
+			imgScales[i].fb2x = p2x[i];
+			imgScales[i].fb2y = p2y[i];
+
+			if (hsp.halfPrecision) imgScales[i].compress();
+		}
+
+		return imgScales;
+	}
+
+	/**
+	 * Create the pyramid of a single normalized fixed point frame, see normalize.
+	 * 
+	 * @param n
+	 * @param height
+	 * @param width
+	 * @param nScales
+	 * @param dFactor
+	 * @return The scales in float, finest first
+	 */
+	public FloatGrid[] createFrame(short[] n, int height, int width, int nScales, float dFactor)
+	{
+		FloatGrid[] scales = new FloatGrid[nScales];
+		createFrame(n, height, width, scales, dFactor);
+
+		return scales;
+	}
+
+	/**
+	 * Create the pyramid of a single normalized fixed point frame, filling every scale of the given array.
+	 * 
+	 * @param n
+	 * @param height
+	 * @param width
+	 * @param scales
+	 * @param dFactor
+	 */
+	public void createFrame(short[] n, int height, int width, FloatGrid[] scales, float dFactor)
+	{
+		final float sigma = (float) (0.6f * Math.sqrt(((1.0 / (dFactor * dFactor))) - 1.0));
+
+		short[] p = smooth(n, height, width, HornSchunckPyrimidal.PRESMOOTHING_SIGMA);
+		int h = height;
+		int w = width;
+
+		for (int i = 0; i < scales.length; i++)
+		{
+			if (i > 0)
+			{
+				final int nh = (int) ((float) h * dFactor + 0.5);
+				final int nw = (int) ((float) w * dFactor + 0.5);
+
+				p = downSample(smooth(p, h, w, sigma), h, w, nh, nw, dFactor);
+				h = nh;
+				w = nw;
+			}
+
+			scales[i] = toFloat(p, h, w);
+		}
+	}
+
+	/**
+	 * Smooth with the kernel of Images.applyGaussianSmoothing in integer weights, with reflecting boundaries.
+	 */
+	public short[] smooth(final short[] image, final int h, final int w, double sigma)
+	{
+		final int size = (int) (5 * sigma) + 1;
+		final int[] kernel = kernel(size, sigma);
+		final int[] rows = new int[h * w];
+		final short[] out = new short[h * w];
+		final int round = 1 << (WEIGHT - 1);
+		Parallel parallel = hsp.getParallel();
+
+		// convolve in x
+		parallel.sum(0, h, new Parallel.Rows()
+		{
+			@Override
+			public double compute(int from, int to)
+			{
+				for (int y = from; y < to; y++)
+				{
+					final int row = y * w;
+
+					for (int x = 0; x < w; x++)
+					{
+						int sum = image[row + x] * kernel[0];
+
+						for (int i = 1; i < size; i++)
+						{
+							sum += (image[row + Images.reflect(x + i, w)] + image[row + Images.reflect(x - i, w)]) * kernel[i];
+						}
+
+						rows[row + x] = (sum + round) >> WEIGHT;
+					}
+				}
+
+				return 0;
+			}
+		});
+
+		// convolve in y
+		parallel.sum(0, h, new Parallel.Rows()
+		{
+			@Override
+			public double compute(int from, int to)
+			{
+				for (int y = from; y < to; y++)
+				{
+					for (int x = 0; x < w; x++)
+					{
+						int sum = rows[y * w + x] * kernel[0];
+
+						for (int i = 1; i < size; i++)
+						{
+							sum += (rows[Images.reflect(y + i, h) * w + x] + rows[Images.reflect(y - i, h) * w + x]) * kernel[i];
+						}
+
+						out[y * w + x] = (short) ((sum + round) >> WEIGHT);
+					}
+				}
+
+				return 0;
+			}
+		});
+
+		return out;
+	}
+
+	/**
+	 * Resample to nh x nw with the bicubic interpolation of HornSchunckPyrimidal.downSample in integer weights.
+	 */
+	public short[] downSample(final short[] image, final int h, final int w, final int nh, final int nw, float dFactor)
+	{
+		final int[] xs = new int[4 * nw];
+		final int[] wx = new int[4 * nw];
+		final int[] ys = new int[4 * nh];
+		final int[] wy = new int[4 * nh];
+		final short[] out = new short[nh * nw];
+
+		taps(nw, w, dFactor, xs, wx);
+		taps(nh, h, dFactor, ys, wy);
+
+		hsp.getParallel().sum(0, nh, new Parallel.Rows()
+		{
+			@Override
+			public double compute(int from, int to)
+			{
+				final long round = 1L << (2 * WEIGHT - 1);
+
+				for (int y = from; y < to; y++)
+				{
+					for (int x = 0; x < nw; x++)
+					{
+						long sum = 0;
+
+						for (int j = 0; j < 4; j++)
+						{
+							final int row = ys[4 * y + j] * w;
+							int line = 0;
+
+							for (int i = 0; i < 4; i++)
+							{
+								line += image[row + xs[4 * x + i]] * wx[4 * x + i];
+							}
+
+							sum += (long) line * wy[4 * y + j];
+						}
+
+						final long value = (sum + round) >> (2 * WEIGHT);
+						out[y * nw + x] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+					}
+				}
+
+				return 0;
+			}
+		});
+
+		return out;
+	}
+
+	/**
+	 * The four source positions and cubic weights of every output position along one side.
+	 */
+	private static void taps(int n, int size, float dFactor, int[] positions, int[] weights)
+	{
+		for (int o = 0; o < n; o++)
+		{
+			final float p = (float) o / dFactor;
+			final int base = Math.min(size - 1, (int) p);
+			final double t = p - base;
+
+			// Catmull-Rom weights, as Interpolator.getCubic
+			final double[] c = { (-t * t * t + 2 * t * t - t) / 2, (3 * t * t * t - 5 * t * t + 2) / 2, (-3 * t * t * t + 4 * t * t + t) / 2,
+					(t * t * t - t * t) / 2 };
+
+			int sum = 0;
+
+			for (int k = 0; k < 4; k++)
+			{
+				positions[4 * o + k] = Math.max(0, Math.min(size - 1, base - 1 + k));
+				weights[4 * o + k] = (int) Math.round(c[k] * ONE);
+				sum += weights[4 * o + k];
+			}
+
+			// The weights add up to one exactly, so flat regions stay flat
+			weights[4 * o + 1] += ONE - sum;
+		}
+	}
+
+	/**
+	 * The Gaussian kernel of Images.applyGaussianSmoothing in integer weights that add up to one exactly.
+	 */
+	private static int[] kernel(int size, double sigma)
+	{
+		double[] kernel = Images.create1DGaussianKernel(size, sigma);
+
+		double n = 0;
+		for (double d : kernel)
+		{
+			n += d;
+		}
+
+		n = 2 * n - kernel[0];
+
+		int[] weights = new int[size];
+		int sum = 0;
+
+		for (int i = 1; i < size; i++)
+		{
+			weights[i] = (int) Math.round(kernel[i] / n * ONE);
+			sum += 2 * weights[i];
+		}
+
+		weights[0] = ONE - sum;
+
+		return weights;
+	}
+
+	private static void readGrey(ByteBuffer src, short[] out, int height, int width, int stride)
+	{
+		final int base = src.position();
+		byte[] row = new byte[width];
+
+		for (int y = 0; y < height; y++)
+		{
+			src.position(base + y * stride);
+			src.get(row);
+
+			for (int x = 0; x < width; x++)
+			{
+				out[y * width + x] = (short) (row[x] & 0xff);
+			}
+		}
+
+		src.position(base);
+	}
+
+	private static FloatGrid toFloat(short[] values, int height, int width)
+	{
+		FloatGrid grid = new FloatGrid(height, width);
+		final float scale = 1f / (1 << FRACTION);
+
+		for (int i = 0; i < values.length; i++)
+		{
+			grid.data[i] = values[i] * scale;
+		}
+
+		return grid;
+	}
+}
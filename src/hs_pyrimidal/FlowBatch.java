@@ -0,0 +1,187 @@
+package hs_pyrimidal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import utility.FloatGrid;
+import utility.Images;
+import utility.VectorField;
+
+/**
+ * 
+ * @author Connor Fox
+ * 
+ * Computes the flow of many independent frame pairs at once, one pair per thread.
+ * 
+ * A HornSchunckPyrimidal keeps state between the steps of a run, so one instance can not run two pairs at the same
+ * time. Every worker thread therefore runs its pairs on its own copy of the settings, with its own solver workspace.
+ * The settings are copied when the batch is created, so later changes to the instance passed in do not affect it.
+ * 
+ * At most queueSize pairs wait for a free worker. When the queue is full, submit waits until a worker takes the next
+ * pair, which keeps a producer from getting further ahead of the workers than the queue allows. Every pair is solved
+ * by a worker, never by the calling thread.
+ */
+public class FlowBatch
+{
+	// Threads each pair's solver may use, the workers already keep every core busy, so it runs on its worker
+	public static final int							SOLVER_THREADS	= 1;
+
+	private final HornSchunckPyrimidal				settings;
+	private final ThreadPoolExecutor				executor;
+
+	// Pairs that may be queued or solved at once, nThreads + queueSize
+	private final Semaphore							slots;
+
+	// Every copy of the settings made, to release their pools when the workers stop
+	private final List<HornSchunckPyrimidal>		copies			= new ArrayList<HornSchunckPyrimidal>();
+
+	// Settings of the calling thread, each worker has its own
+	private final ThreadLocal<HornSchunckPyrimidal>	local			= new ThreadLocal<HornSchunckPyrimidal>()
+	{
+		@Override
+		protected HornSchunckPyrimidal initialValue()
+		{
+			HornSchunckPyrimidal copy = settings.copySettings();
+
+			synchronized (copies)
+			{
+				copies.add(copy);
+			}
+
+			return copy;
+		}
+	};
+
+	/**
+	 * @param hsp The settings to run every pair with
+	 * @param nThreads Number of worker threads
+	 * @param queueSize Number of pairs that may wait for a worker
+	 */
+	public FlowBatch(HornSchunckPyrimidal hsp, int nThreads, int queueSize)
+	{
+		settings = hsp.copySettings();
+		settings.nThreads = SOLVER_THREADS;
+
+		slots = new Semaphore(nThreads + queueSize);
+
+		// The slots bound the queue, so it never has to reject a pair
+		executor = new ThreadPoolExecutor(nThreads, nThreads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>())
+		{
+			@Override
+			protected void terminated()
+			{
+				synchronized (copies)
+				{
+					for (HornSchunckPyrimidal copy : copies)
+					{
+						copy.shutdown();
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * One worker per processor, with as many pairs waiting.
+	 * 
+	 * @param hsp
+	 */
+	public FlowBatch(HornSchunckPyrimidal hsp)
+	{
+		this(hsp, Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Queue the flow from t1 to t2, waiting while the queue is full. Neither frame may change until the result is
+	 * ready.
+	 * 
+	 * @param t1
+	 * @param t2
+	 * @return
+	 * @throws InterruptedException When interrupted while waiting for room in the queue
+	 * @throws RejectedExecutionException After shutdown
+	 */
+	public Future<VectorField> submit(final FloatGrid t1, final FloatGrid t2) throws InterruptedException
+	{
+		slots.acquire();
+
+		try
+		{
+			return executor.submit(new Callable<VectorField>()
+			{
+				@Override
+				public VectorField call()
+				{
+					try
+					{
+						return local.get().run(t1, t2);
+					}
+					finally
+					{
+						slots.release();
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			slots.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Queue the flow of every pair.
+	 * 
+	 * @param pairs
+	 * @return The results in the order of the pairs
+	 * @throws InterruptedException When interrupted while waiting for room in the queue
+	 */
+	public List<Future<VectorField>> submitAll(List<Images> pairs) throws InterruptedException
+	{
+		List<Future<VectorField>> results = new ArrayList<Future<VectorField>>(pairs.size());
+
+		for (Images pair : pairs)
+		{
+			results.add(submit(pair.fb1, pair.fb2));
+		}
+
+		return results;
+	}
+
+	/**
+	 * Compute the flow of every pair and wait for all of them.
+	 * 
+	 * @param pairs
+	 * @return The flows in the order of the pairs
+	 * @throws InterruptedException
+	 * @throws ExecutionException When a pair failed
+	 */
+	public List<VectorField> runAll(List<Images> pairs) throws InterruptedException, ExecutionException
+	{
+		List<VectorField> flows = new ArrayList<VectorField>(pairs.size());
+
+		for (Future<VectorField> result : submitAll(pairs))
+		{
+			flows.add(result.get());
+		}
+
+		return flows;
+	}
+
+	/**
+	 * Finish the queued pairs and stop the workers, then the pools of their settings.
+	 */
+	public void shutdown()
+	{
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,155 @@
+package hs_pyrimidal;
+
+import utility.FloatGrid;
+import utility.Images;
+import utility.VectorField;
+
+/**
+ * 
+ * @author Connor Fox
+ * 
+ * Computes the flow of a video one frame at a time. Each frame is the second frame of one pair and the first frame of
+ * the next, so its pyramid is built once when it is pushed and kept as the first frame of the following pair.
+ * 
+ * HornSchunckPyrimidal.run normalizes the two frames of a pair to their joint range, which would give a frame a
+ * different normalization in each of its pairs. A sequence instead normalizes every frame to one range: minValue and
+ * maxValue when they are set, otherwise the range of the first frame pushed after a reset. When that range is also the
+ * joint range of a pair, the flow of the pair is the same as the flow from run.
+ * 
+ * With warmStart set, each pair starts from the flow of the pair before it, see HornSchunckPyrimidal.run(Images[],
+ * VectorField). A pair it does not fit falls back to a start from zero.
+ * 
+ * The pyramids follow the fixedPoint and halfPrecision settings of hsp. A sequence already builds each pyramid only
+ * once, so hsp must not have a pyramidCache.
+ */
+public class FlowSequence
+{
+	public final HornSchunckPyrimidal	hsp;
+
+	// Grey values mapped to 0 and 255, or NaN to take the range of the first frame
+	public float						minValue	= Float.NaN;
+	public float						maxValue	= Float.NaN;
+
+	// Start each pair from the flow of the previous pair
+	public boolean						warmStart;
+
+	// The range in use since the last reset
+	private float						low, high;
+
+	// Pyramid of the last frame pushed, and the factor and number format it was built with
+	private FloatGrid[]					previous;
+	private float						previousFactor;
+	private boolean						previousFixed;
+
+	// Flow of the last pair
+	private VectorField					previousFlow;
+
+	public FlowSequence(HornSchunckPyrimidal hsp)
+	{
+		this.hsp = hsp;
+	}
+
+	/**
+	 * Add the next frame of the sequence.
+	 * 
+	 * @param frame
+	 * @return The flow from the previous frame to this one, or null for the first frame
+	 */
+	public VectorField push(FloatGrid frame)
+	{
+		if (hsp.pyramidCache != null)
+			throw new IllegalStateException("A sequence builds the pyramid of each frame once, remove the pyramid cache.");
+
+		if (previous != null && !previous[0].sameSize(frame))
+			throw new IllegalArgumentException("Frame is " + frame.width + "x" + frame.height + ", the sequence is "
+					+ previous[0].width + "x" + previous[0].height + ".");
+
+		if (previous == null)
+		{
+			low = minValue;
+			high = maxValue;
+
+			if (Float.isNaN(low) || Float.isNaN(high)) setRange(frame);
+		}
+
+		final int nScales = hsp.getScales(frame.width, frame.height);
+		FloatGrid[] current;
+
+		if (hsp.fixedPoint)
+		{
+			short[] normalized = FixedPyramid.normalize(frame, low, high);
+			current = new FixedPyramid(hsp).createFrame(normalized, frame.height, frame.width, nScales, hsp.dFactor);
+		}
+		else
+		{
+			FloatGrid normalized = new FloatGrid(frame.height, frame.width);
+			Images.normalizeGreyscale(frame, normalized, low, high);
+			current = hsp.createPyramid(normalized, nScales, hsp.dFactor, true);
+		}
+
+		if (previous != null && (previous.length != current.length || previousFactor != hsp.dFactor || previousFixed != hsp.fixedPoint))
+			throw new IllegalStateException("Pyramid settings changed during the sequence, reset it first.");
+
+		hsp.truncate(current);
+
+		// Only the second frame of a pair needs its gradients
+		FloatGrid[] gx = new FloatGrid[current.length];
+		FloatGrid[] gy = new FloatGrid[current.length];
+		if (previous != null) hsp.createGradients(current, gx, gy);
+
+		VectorField flow = null;
+
+		if (previous != null)
+		{
+			Images[] iScales = new Images[current.length];
+
+			for (int i = 0; i < current.length; i++)
+			{
+				iScales[i] = new Images(previous[i], current[i]);
+				iScales[i].fb2x = gx[i];
+				iScales[i].fb2y = gy[i];
+
+				// The previous frame stays in single precision, for the next pair
+				if (hsp.halfPrecision) iScales[i].compress();
+			}
+
+			flow = hsp.run(iScales, warmStart ? previousFlow : null);
+			previousFlow = new VectorField(flow.u.copy(), flow.v.copy());
+		}
+
+		previous = current;
+		previousFactor = hsp.dFactor;
+		previousFixed = hsp.fixedPoint;
+
+		return flow;
+	}
+
+	/**
+	 * Start a new sequence, the next frame pushed gives no flow.
+	 */
+	public void reset()
+	{
+		previous = null;
+		previousFlow = null;
+	}
+
+	/**
+	 * @return The pyramid of the last frame pushed, finest scale first, or null after a reset
+	 */
+	public FloatGrid[] getPyramid()
+	{
+		return previous;
+	}
+
+	private void setRange(FloatGrid frame)
+	{
+		low = Float.MAX_VALUE;
+		high = -Float.MAX_VALUE;
+
+		for (int i = 0; i < frame.size(); i++)
+		{
+			low = Math.min(low, frame.data[i]);
+			high = Math.max(high, frame.data[i]);
+		}
+	}
+}
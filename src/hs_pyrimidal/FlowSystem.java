@@ -0,0 +1,315 @@
+package hs_pyrimidal;
+
+import utility.FloatGrid;
+import utility.VectorKernels;
+
+/**
+ * 
+ * @author Connor Fox
+ * 
+ * The linear system solved for one warp of the pyrimidal Horn-Schunck method. For every pixel:
+ * 
+ * Du * u + D * v - alpha2 * div(u) = Au
+ * Dv * v + D * u - alpha2 * div(v) = Av
+ * 
+ * where div is the weighted average of the 8 neighbours (1/6 for edges, 1/12 for corners) with Neumann boundary
+ * conditions.
+ */
+public class FlowSystem
+{
+	// Constants
+	public FloatGrid	Au;
+	public FloatGrid	Av;
+	public FloatGrid	Du;
+	public FloatGrid	Dv;
+	public FloatGrid	D;
+
+	public float		alpha2;
+	public float		omega;
+
+	// Use the wide row kernels instead of the per pixel scalar code
+	public boolean		vectorKernels;
+
+	public int			width, height;
+
+	public FlowSystem(int height, int width)
+	{
+		Au = new FloatGrid(height, width);
+		Av = new FloatGrid(height, width);
+		Du = new FloatGrid(height, width);
+		Dv = new FloatGrid(height, width);
+		D = new FloatGrid(height, width);
+
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Change the size of the system, keeping the storage of the constants when it is large enough.
+	 * 
+	 * @param height
+	 * @param width
+	 */
+	public void resize(int height, int width)
+	{
+		Au = FloatGrid.reuse(Au, height, width);
+		Av = FloatGrid.reuse(Av, height, width);
+		Du = FloatGrid.reuse(Du, height, width);
+		Dv = FloatGrid.reuse(Dv, height, width);
+		D = FloatGrid.reuse(D, height, width);
+
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Load the constants of the system from the warped second frame and the current flow.
+	 * 
+	 * @param t1 first frame
+	 * @param t2Warp I2(x + h)
+	 * @param t2WarpX I2x(x + h)
+	 * @param t2WarpY I2y(x + h)
+	 * @param u x vector field
+	 * @param v y vector field
+	 * @param alpha2 squared smoothness weight
+	 */
+	public void load(FloatGrid t1, FloatGrid t2Warp, FloatGrid t2WarpX, FloatGrid t2WarpY, FloatGrid u, FloatGrid v, float alpha2)
+	{
+		this.alpha2 = alpha2;
+
+		final float[] i1 = t1.data;
+		final float[] iw = t2Warp.data;
+		final float[] ix = t2WarpX.data;
+		final float[] iy = t2WarpY.data;
+		final float[] U = u.data;
+		final float[] V = v.data;
+		final float[] au = Au.data, av = Av.data, du = Du.data, dv = Dv.data, d2 = D.data;
+
+		// Plain float arithmetic on one index, so this loop vectorizes as it is
+		for (int i = 0; i < width * height; i++)
+		{
+			final float t2d = ix[i] * U[i] + iy[i] * V[i];
+			final float d = i1[i] - iw[i] + t2d;
+
+			au[i] = d * ix[i];
+			av[i] = d * iy[i];
+			du[i] = ix[i] * ix[i] + alpha2;
+			dv[i] = iy[i] * iy[i] + alpha2;
+			d2[i] = ix[i] * iy[i];
+		}
+	}
+
+	/**
+	 * Compute one SOR update at a point. Neighbours outside the image are clamped to the border.
+	 * 
+	 * @param u
+	 * @param v
+	 * @param x
+	 * @param y
+	 * @return The squared change of the flow vector at (x, y)
+	 */
+	public float relax(FloatGrid u, FloatGrid v, final int x, final int y)
+	{
+		return relax(u, v, x, y, omega);
+	}
+
+	/**
+	 * Compute one SOR update at a point with the given relaxation factor.
+	 * 
+	 * @param u
+	 * @param v
+	 * @param x
+	 * @param y
+	 * @param omega
+	 * @return The squared change of the flow vector at (x, y)
+	 */
+	public float relax(FloatGrid u, FloatGrid v, final int x, final int y, final float omega)
+	{
+		final float[] U = u.data;
+		final float[] V = v.data;
+
+		// Row offsets and clamped columns of the neighbourhood
+		final int r = y * width;
+		final int rm = (y > 0) ? r - width : r;
+		final int rp = (y < height - 1) ? r + width : r;
+		final int xm = (x > 0) ? x - 1 : 0;
+		final int xp = (x < width - 1) ? x + 1 : width - 1;
+		final int i = r + x;
+
+		final float divU = (float) ((1.0 / 12.0) * (U[rm + xm] + U[rm + xp] + U[rp + xm] + U[rp + xp]) + (1.0 / 6.0)
+				* (U[rm + x] + U[r + xm] + U[rp + x] + U[r + xp]));
+
+		final float divV = (float) ((1.0 / 12.0) * (V[rm + xm] + V[rm + xp] + V[rp + xm] + V[rp + xp]) + (1.0 / 6.0)
+				* (V[rm + x] + V[r + xm] + V[rp + x] + V[r + xp]));
+
+		// Store previous u & v values
+		final float u1 = U[i];
+		final float v1 = V[i];
+
+		// Calculate new u & v values
+		U[i] = (float) ((1.0 - omega) * u1 + omega * (Au.data[i] - D.data[i] * V[i] + alpha2 * divU) / Du.data[i]);
+		V[i] = (float) ((1.0 - omega) * v1 + omega * (Av.data[i] - D.data[i] * U[i] + alpha2 * divV) / Dv.data[i]);
+
+		return (U[i] - u1) * (U[i] - u1) + (V[i] - v1) * (V[i] - v1);
+	}
+
+	/**
+	 * Relax every step'th pixel of a row, starting at column start.
+	 * 
+	 * @param u
+	 * @param v
+	 * @param y
+	 * @param start First column to relax
+	 * @param step Distance between relaxed columns
+	 * @param omega
+	 * @return The sum of squared changes of the flow
+	 */
+	public float relaxRow(FloatGrid u, FloatGrid v, final int y, final int start, final int step, final float omega)
+	{
+		return relaxRow(u, v, y, start, width, step, omega);
+	}
+
+	/**
+	 * Relax every step'th pixel of a row from column start up to column end.
+	 * 
+	 * @param u
+	 * @param v
+	 * @param y
+	 * @param start First column to relax
+	 * @param end Column to stop at (exclusive)
+	 * @param step Distance between relaxed columns
+	 * @param omega
+	 * @return The sum of squared changes of the flow
+	 */
+	public float relaxRow(FloatGrid u, FloatGrid v, final int y, final int start, final int end, final int step, final float omega)
+	{
+		float error = 0;
+
+		if (vectorKernels)
+		{
+			final int r = y * width;
+			final int rm = (y > 0) ? r - width : r;
+			final int rp = (y < height - 1) ? r + width : r;
+
+			return VectorKernels.relaxRow(u.data, v.data, Au.data, Av.data, Du.data, Dv.data, D.data, alpha2, omega, width, rm, r, rp, start, end,
+					step);
+		}
+
+		for (int x = start; x < end; x += step)
+		{
+			error += relax(u, v, x, y, omega);
+		}
+
+		return error;
+	}
+
+	/**
+	 * Compute the residual (Au, Av) - A(u, v) of every pixel in the given rows.
+	 * 
+	 * @param u
+	 * @param v
+	 * @param ru x residual output
+	 * @param rv y residual output
+	 * @param from First row (inclusive)
+	 * @param to Last row (exclusive)
+	 * @return The sum of squared residuals
+	 */
+	public double residual(FloatGrid u, FloatGrid v, FloatGrid ru, FloatGrid rv, int from, int to)
+	{
+		if (vectorKernels)
+		{
+			return applyRows(u, v, Au.data, Av.data, ru, rv, from, to);
+		}
+
+		final float[] U = u.data;
+		final float[] V = v.data;
+		double sum = 0;
+
+		for (int y = from; y < to; y++)
+		{
+			final int r = y * width;
+			final int rm = (y > 0) ? r - width : r;
+			final int rp = (y < height - 1) ? r + width : r;
+
+			for (int x = 0; x < width; x++)
+			{
+				final int xm = (x > 0) ? x - 1 : 0;
+				final int xp = (x < width - 1) ? x + 1 : width - 1;
+				final int i = r + x;
+
+				final float divU = (U[rm + xm] + U[rm + xp] + U[rp + xm] + U[rp + xp]) / 12.0f + (U[rm + x] + U[r + xm] + U[rp + x] + U[r + xp]) / 6.0f;
+				final float divV = (V[rm + xm] + V[rm + xp] + V[rp + xm] + V[rp + xp]) / 12.0f + (V[rm + x] + V[r + xm] + V[rp + x] + V[r + xp]) / 6.0f;
+
+				ru.data[i] = Au.data[i] - (Du.data[i] * U[i] + D.data[i] * V[i] - alpha2 * divU);
+				rv.data[i] = Av.data[i] - (Dv.data[i] * V[i] + D.data[i] * U[i] - alpha2 * divV);
+
+				sum += ru.data[i] * ru.data[i] + rv.data[i] * rv.data[i];
+			}
+		}
+
+		return sum;
+	}
+
+	/**
+	 * Multiply the flow of every pixel in the given rows by the system matrix.
+	 * 
+	 * @param u
+	 * @param v
+	 * @param qu x product output
+	 * @param qv y product output
+	 * @param from First row (inclusive)
+	 * @param to Last row (exclusive)
+	 * @return The dot product of (u, v) with the result
+	 */
+	public double multiply(FloatGrid u, FloatGrid v, FloatGrid qu, FloatGrid qv, int from, int to)
+	{
+		if (vectorKernels)
+		{
+			return applyRows(u, v, null, null, qu, qv, from, to);
+		}
+
+		final float[] U = u.data;
+		final float[] V = v.data;
+		double sum = 0;
+
+		for (int y = from; y < to; y++)
+		{
+			final int r = y * width;
+			final int rm = (y > 0) ? r - width : r;
+			final int rp = (y < height - 1) ? r + width : r;
+
+			for (int x = 0; x < width; x++)
+			{
+				final int xm = (x > 0) ? x - 1 : 0;
+				final int xp = (x < width - 1) ? x + 1 : width - 1;
+				final int i = r + x;
+
+				final float divU = (U[rm + xm] + U[rm + xp] + U[rp + xm] + U[rp + xp]) / 12.0f + (U[rm + x] + U[r + xm] + U[rp + x] + U[r + xp]) / 6.0f;
+				final float divV = (V[rm + xm] + V[rm + xp] + V[rp + xm] + V[rp + xp]) / 12.0f + (V[rm + x] + V[r + xm] + V[rp + x] + V[r + xp]) / 6.0f;
+
+				qu.data[i] = Du.data[i] * U[i] + D.data[i] * V[i] - alpha2 * divU;
+				qv.data[i] = Dv.data[i] * V[i] + D.data[i] * U[i] - alpha2 * divV;
+
+				sum += U[i] * qu.data[i] + V[i] * qv.data[i];
+			}
+		}
+
+		return sum;
+	}
+
+	private double applyRows(FloatGrid u, FloatGrid v, float[] bu, float[] bv, FloatGrid qu, FloatGrid qv, int from, int to)
+	{
+		double sum = 0;
+
+		for (int y = from; y < to; y++)
+		{
+			final int r = y * width;
+			final int rm = (y > 0) ? r - width : r;
+			final int rp = (y < height - 1) ? r + width : r;
+
+			sum += VectorKernels.applyRow(u.data, v.data, bu, bv, Du.data, Dv.data, D.data, alpha2, qu.data, qv.data, width, rm, r, rp);
+		}
+
+		return sum;
+	}
+}
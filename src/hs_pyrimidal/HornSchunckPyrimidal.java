@@ -1,9 +1,16 @@
 package hs_pyrimidal;
 
+import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
+import utility.FloatGrid;
 import utility.Images;
+import utility.Parallel;
 import utility.VectorField;
+import utility.VectorKernels;
 
 /**
  * 
@@ -20,14 +27,68 @@ public class HornSchunckPyrimidal
 	public int				nScales;
 	public float			dFactor;
 
+	// Linear solver used for every warp and the number of threads it may use
+	public SolverMode		solverMode;
+	public int				nThreads;
+
+	// Give the same result bit for bit whatever nThreads is
+	public boolean			deterministic;
+
+	// Use the wide stencil kernels, see VectorKernels
+	public boolean			vectorKernels;
+
+	// Buffers reused between levels and runs, or null to use the workspace of the calling thread
+	public SolverWorkspace	workspace;
+
+	// Scales solved when run starts from an initial flow, or 0 for all of them
+	public int				warmStartScales;
+
+	// Keep the pyramid levels and gradients in half precision until each is solved, see HalfGrid
+	public boolean			halfPrecision;
+
+	// Build the pyramids of frames of 8-bit values in fixed point, see FixedPyramid
+	public boolean			fixedPoint;
+
+	// Pyramids kept between runs on the same frames, shared with copies of the settings, or null to build every time
+	public PyramidCache		pyramidCache;
+
+	// Smooth the float pyramids with the recursive gaussian, whose cost does not grow with sigma, see
+	// Images.applyRecursiveGaussian
+	public boolean			recursiveSmoothing;
+
+	// Choose the number of scales from the motion of a probe solve at the coarsest scale, see run(Images[], VectorField)
+	public boolean			autoScales;
+
+	// Pixels around a region of interest solved with it, at the finest scale. Should exceed the largest motion.
+	public int				roiMargin;
+
+	// An initial flow is only used when it warps the second frame at least this much closer to the first than zero flow
+	public float			warmStartRatio;
+
 	public final float		SOR_W				= 1.9f;
-	public final float		PRESMOOTHING_SIGMA	= 0.8f;
+	public static final float	PRESMOOTHING_SIGMA	= 0.8f;
+
+	// Fewest pixels of margin kept around a region of interest at its coarsest scale
+	public final int		ROI_MIN_MARGIN		= 4;
 
 	// An aribitrary constant to initilize variables so we know if they are being set correctly.
 	public final int		BAD_VALUE			= 6661289;
 	
-	private DecimalFormat trunc = new DecimalFormat("##.################");
 	private Interpolator	ipl;
+	private ForkJoinPool	pool;
+	private Parallel		parallel;
+
+	// Linear solver iterations of the last run, and whether it started from an initial flow
+	private long			iterations;
+	private boolean			warmStarted;
+
+	// Mean residuals of the frames with the initial flow and with zero flow, from the last warm start check
+	private double			warmResidual	= Double.NaN;
+	private double			coldResidual	= Double.NaN;
+
+	// Scales solved in the last run and the largest motion estimated for it
+	private int				scalesUsed;
+	private float			maxMotion;
 
 	/**
 	 * Set the parameters to default values ref: Meinhardt-Lopis 167
@@ -40,6 +101,12 @@ public class HornSchunckPyrimidal
 		maxIterations = 150;
 		nScales = 5;
 		dFactor = 0.65f;
+		solverMode = SolverMode.SOR;
+		nThreads = Runtime.getRuntime().availableProcessors();
+		vectorKernels = VectorKernels.ENABLED;
+		warmStartScales = 2;
+		warmStartRatio = 0.9f;
+		roiMargin = 32;
 
 		ipl = new Interpolator();
 	}
@@ -54,6 +121,31 @@ public class HornSchunckPyrimidal
 		this.dFactor = dFactor;
 	}
 
+	/**
+	 * Create an instance with the same settings as this one and none of its per-run state, for use on another thread.
+	 * 
+	 * @return
+	 */
+	public HornSchunckPyrimidal copySettings()
+	{
+		HornSchunckPyrimidal hsp = new HornSchunckPyrimidal();
+		hsp.setParams(alpha, nWarps, stopCrt, maxIterations, nScales, dFactor);
+		hsp.solverMode = solverMode;
+		hsp.nThreads = nThreads;
+		hsp.deterministic = deterministic;
+		hsp.vectorKernels = vectorKernels;
+		hsp.warmStartScales = warmStartScales;
+		hsp.warmStartRatio = warmStartRatio;
+		hsp.autoScales = autoScales;
+		hsp.roiMargin = roiMargin;
+		hsp.halfPrecision = halfPrecision;
+		hsp.fixedPoint = fixedPoint;
+		hsp.recursiveSmoothing = recursiveSmoothing;
+		hsp.pyramidCache = pyramidCache;
+
+		return hsp;
+	}
+
 	/**
 	 * Check that the given number of scales will not go below 16 x 16.
 	 * 
@@ -67,6 +159,19 @@ public class HornSchunckPyrimidal
 		return newScales;
 	}
 
+	/**
+	 * The number of scales to use for an image of the given size: nScales, unless the coarsest scale would go below
+	 * 16 x 16.
+	 * 
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public int getScales(int width, int height)
+	{
+		return Math.min(nScales, checkScales(width, height));
+	}
+
 	/**
 	 * Run the pyrimidal Horn-Schunck approximation.
 	 * 
@@ -75,54 +180,384 @@ public class HornSchunckPyrimidal
 	 * @return
 	 */
 	public VectorField run(float[][] t1, float[][] t2)
+	{
+		return run(FloatGrid.fromArray(t1), FloatGrid.fromArray(t2));
+	}
+
+	/**
+	 * Run the pyrimidal Horn-Schunck approximation.
+	 * 
+	 * @param t1
+	 * @param t2
+	 * @return
+	 */
+	public VectorField run(FloatGrid t1, FloatGrid t2)
+	{
+		// Create the scales (0 = original image)
+		final int ns = getScales(t1.width, t1.height);
+
+		if (pyramidCache != null) return run(pyramidCache.get(this, t1, t2, ns, dFactor, true));
+
+		return run(createImagePyramid(t1, t2, ns, dFactor, true));
+	}
+
+	/**
+	 * Run the pyrimidal Horn-Schunck approximation on two 8-bit greyscale frames in buffers. With fixedPoint set the
+	 * pyramid is built from the bytes without converting the frames to float.
+	 * 
+	 * @param grey1 The first frame, from the buffer's position
+	 * @param grey2 The second frame, from the buffer's position
+	 * @param height
+	 * @param width
+	 * @param stride Bytes from the start of one row to the start of the next
+	 * @return
+	 */
+	public VectorField run(ByteBuffer grey1, ByteBuffer grey2, int height, int width, int stride)
+	{
+		if (!fixedPoint) return run(FloatGrid.fromGrey(grey1, height, width, stride), FloatGrid.fromGrey(grey2, height, width, stride));
+
+		return run(new FixedPyramid(this).create(grey1, grey2, height, width, stride, getScales(width, height), dFactor));
+	}
+
+	/**
+	 * Run the pyrimidal Horn-Schunck approximation for a region of interest only.
+	 * 
+	 * The frames are cropped to the region plus roiMargin pixels on each side (less where the frame ends), and the
+	 * pyramid is built and solved on the crop alone, so the cost follows the area of the region rather than of the
+	 * frame. Every scale therefore keeps the region with a margin of roiMargin * dFactor^scale pixels. Scales whose
+	 * margin would fall below ROI_MIN_MARGIN are left out, since the regularization and the warps there would mostly
+	 * see the crop border. The crop is normalized with the joint range of the whole frames, as run does, and the edges
+	 * of the crop are treated like the edges of a frame.
+	 * 
+	 * @param t1
+	 * @param t2
+	 * @param x Left column of the region
+	 * @param y Top row of the region
+	 * @param width
+	 * @param height
+	 * @return The flow of the region only
+	 */
+	public VectorField run(FloatGrid t1, FloatGrid t2, int x, int y, int width, int height)
+	{
+		return run(t1, t2, Images.greyscaleRange(t1, t2), x, y, width, height);
+	}
+
+	/**
+	 * Run the pyrimidal Horn-Schunck approximation for a region of interest only, with the range of the frames already
+	 * known, so that many regions of the same frames need not scan them again.
+	 * 
+	 * @param t1
+	 * @param t2
+	 * @param range The joint range of the frames, see Images.greyscaleRange
+	 * @param x Left column of the region
+	 * @param y Top row of the region
+	 * @param width
+	 * @param height
+	 * @return The flow of the region only
+	 */
+	public VectorField run(FloatGrid t1, FloatGrid t2, float[] range, int x, int y, int width, int height)
+	{
+		// Clip the region and its margin to the frame
+		final int rx0 = Math.max(0, x);
+		final int ry0 = Math.max(0, y);
+		final int rx1 = Math.min(t1.width, x + width);
+		final int ry1 = Math.min(t1.height, y + height);
+
+		if (rx1 <= rx0 || ry1 <= ry0) throw new IllegalArgumentException("Region lies outside of the frame.");
+
+		final int cx0 = Math.max(0, rx0 - roiMargin);
+		final int cy0 = Math.max(0, ry0 - roiMargin);
+		final int cx1 = Math.min(t1.width, rx1 + roiMargin);
+		final int cy1 = Math.min(t1.height, ry1 + roiMargin);
+
+		// Normalize the crops the way run would normalize the frames
+		FloatGrid n1 = t1.crop(cx0, cy0, cx1 - cx0, cy1 - cy0);
+		FloatGrid n2 = t2.crop(cx0, cy0, cx1 - cx0, cy1 - cy0);
+		Images.normalizeGreyscale(n1, n1, range[0], range[1]);
+		Images.normalizeGreyscale(n2, n2, range[0], range[1]);
+
+		// Keep at least ROI_MIN_MARGIN pixels of margin at the coarsest scale
+		int ns = getScales(n1.width, n1.height);
+		if (roiMargin > ROI_MIN_MARGIN)
+		{
+			ns = Math.min(ns, 1 + (int) (Math.log((double) roiMargin / ROI_MIN_MARGIN) / Math.log(1 / dFactor)));
+		}
+		else ns = 1;
+
+		VectorField flow = run(createNormalizedPyramid(n1, n2, ns, dFactor, true));
+
+		return new VectorField(flow.u.crop(rx0 - cx0, ry0 - cy0, rx1 - rx0, ry1 - ry0), flow.v.crop(rx0 - cx0, ry0 - cy0, rx1
+				- rx0, ry1 - ry0));
+	}
+
+	/**
+	 * Run the pyrimidal Horn-Schunck approximation on a pyramid that is already built, finest scale first.
+	 * 
+	 * @param iScales
+	 * @return
+	 */
+	public VectorField run(Images[] iScales)
+	{
+		return run(iScales, null);
+	}
+
+	/**
+	 * Run the pyrimidal Horn-Schunck approximation on a pyramid that is already built, starting from an initial flow
+	 * such as the flow of the previous frame pair.
+	 * 
+	 * The initial flow is downsampled to scale warmStartScales - 1 and the solve starts there instead of at the
+	 * coarsest scale with zero flow. When the initial flow does not bring the frames closer together than zero flow
+	 * does (a scene cut, or motion that has changed), the run falls back to the usual start from zero.
+	 * 
+	 * With autoScales set, a run that starts from zero first solves the coarsest scale as a probe, and takes the motion
+	 * it finds, scaled to the finest scale, as the largest motion of the pair. The run then starts at the coarsest scale
+	 * that motion needs (see getBestScales), from zero, so it gives the same flow as a run with that many scales. When
+	 * every scale is needed the probe is kept as the solve of the coarsest scale.
+	 * 
+	 * @param iScales
+	 * @param initial Flow at the finest scale, or null to start from zero
+	 * @return
+	 */
+	public VectorField run(Images[] iScales, VectorField initial)
 	{
 		alpha2 = alpha * alpha;
+		iterations = 0;
+		warmStarted = false;
+		warmResidual = coldResidual = Double.NaN;
+		maxMotion = Float.NaN;
+		int ns = iScales.length;
+
+		// Size the workspace for the finest level, so coarser levels only take views of it
+		SolverWorkspace ws = getWorkspace();
+		ws.reserve(iScales[0].height, iScales[0].width);
+
+		// The first level solved, and its flow in one of the two flow buffers
+		int k = 0;
+		int start = ns - 1;
+		VectorField flow = null;
+
+		// The size of the finest level, which is kept when the level is compressed
+		if (initial != null && initial.u.width == iScales[0].width && initial.u.height == iScales[0].height)
+		{
+			int scale = (warmStartScales > 0) ? Math.min(ns, warmStartScales) - 1 : ns - 1;
+			VectorField seed = downSampleFlow(initial, scale);
 
-		// Set the best value for nScales
-		int ns = nScales;
-		int check = checkScales(t1.length, t1[0].length);
-		if (check < ns) ns = check;
+			Images level = level(iScales[scale], ws);
 
-		// Create the scales (0 = original image)
-		Images[] iScales = createImagePyramid(t1, t2, ns, dFactor, true);
-		VectorField[] vScales = new VectorField[ns];
+			if (acceptWarmStart(level.fb1, level.fb2, seed))
+			{
+				start = scale;
+				flow = ws.flow(k, seed.u.height, seed.u.width);
+				flow.u.copyFrom(seed.u);
+				flow.v.copyFrom(seed.v);
+				warmStarted = true;
+			}
+		}
 
-		// Initialize VectorField scales
-		vScales[0] = new VectorField(iScales[0].height, iScales[0].width);
-		for (int i = 1; i < vScales.length; i++)
+		// Probe the motion at the coarsest level to choose where to start
+		boolean probed = false;
+
+		if (flow == null && autoScales && ns > 1)
 		{
-			vScales[i] = new VectorField((int) Math.ceil(vScales[i - 1].height * dFactor), (int) Math.ceil(vScales[i - 1].width * dFactor));
+			flow = ws.flow(k, iScales[start].height, iScales[start].width);
+			flow.u.fill(0);
+			flow.v.fill(0);
+			Images level = level(iScales[start], ws);
+			hs(level.fb1, level.fb2, level.fb2x, level.fb2y, flow.u, flow.v);
+
+			maxMotion = (float) (estimateMotion(flow) / Math.pow(dFactor, start));
+			int best = Math.max(1, Math.min(ns, getBestScales(dFactor, maxMotion)));
+
+			// Keep the probe when it was the first level to solve anyway
+			if (best == ns) probed = true;
+			else
+			{
+				start = best - 1;
+				flow = null;
+			}
 		}
 
-		System.out.format("Coarse Image check (5,0): %5.30f", iScales[ns - 1].fb2[0][5]);
+		// Otherwise the first level starts at zero
+		if (flow == null)
+		{
+			flow = ws.flow(k, iScales[start].height, iScales[start].width);
+			flow.u.fill(0);
+			flow.v.fill(0);
+		}
+
+		scalesUsed = start + 1;
+
+		// The resampling tables of the levels, unless the pyramid was built with other sizes
+		PyramidPlan plan = PyramidPlan.get(iScales[0].width, iScales[0].height, dFactor, ns, true);
+		if (!plan.fits(iScales)) plan = null;
+
+		if (!iScales[ns - 1].isCompressed()) System.out.format("Coarse Image check (5,0): %5.30f", iScales[ns - 1].fb2.get(5, 0));
 		
-		for (int i = ns - 1; i >= 0; i--)
+		for (int i = start; i >= 0; i--)
 		{
 			// Compute optical flow at scale i
 			System.out.println("Computing scale " + i + " with alpha=" + alpha + "...");
-			hs(iScales[i].fb1, iScales[i].fb2, vScales[i].u, vScales[i].v);
+			if (!probed || i != start)
+			{
+				Images level = level(iScales[i], ws);
+				hs(level.fb1, level.fb2, level.fb2x, level.fb2y, flow.u, flow.v);
+			}
 
 			// Skip if on last scale
 			if (i != 0)
 			{
-				// upsample vectors to next scale
-				vScales[i - 1].u = upsample(vScales[i].u, vScales[i - 1].width, vScales[i - 1].height);
-				vScales[i - 1].v = upsample(vScales[i].v, vScales[i - 1].width, vScales[i - 1].height);
+				// upsample vectors to next scale and scale them, in one pass
+				k = 1 - k;
+				VectorField next = ws.flow(k, iScales[i - 1].height, iScales[i - 1].width);
+				VectorField scratch = ws.resample(iScales[i].height, iScales[i - 1].width);
 
-				// Scale flow
-				for (int y = 0; y < iScales[i - 1].height; y++)
-				{
-					for (int x = 0; x < iScales[i - 1].width; x++)
-					{
-						vScales[i - 1].u[y][x] *= 1.0 / dFactor;
-						vScales[i - 1].v[y][x] *= 1.0 / dFactor;
-					}
-				}
+				if (plan != null) plan.upsample(flow, i - 1, next, 1 / dFactor, getParallel(), scratch);
+				else upsampleFlow(flow, next, 1 / dFactor, scratch);
+
+				flow = next;
+			}
+		}
+
+		// The final scale of vectors is our result. Copy it out of the workspace, which the next run reuses.
+		return new VectorField(flow.u.copy(), flow.v.copy());
+	}
+
+	/**
+	 * A level of the pyramid in single precision, converted into the workspace when it is compressed.
+	 * 
+	 * @param level
+	 * @param ws
+	 * @return
+	 */
+	private Images level(Images level, SolverWorkspace ws)
+	{
+		final int h = level.height;
+		final int w = level.width;
+
+		return level.expand(ws.image(0, h, w), ws.image(1, h, w), ws.image(2, h, w), ws.image(3, h, w));
+	}
+
+	/**
+	 * Downsample a flow at the finest scale to the given scale of the pyramid, scaling the vectors with it.
+	 * 
+	 * @param flow
+	 * @param scale
+	 * @return
+	 */
+	public VectorField downSampleFlow(VectorField flow, int scale)
+	{
+		FloatGrid u = flow.u;
+		FloatGrid v = flow.v;
+
+		for (int i = 0; i < scale; i++)
+		{
+			u = downSample(u, dFactor, true, false);
+			v = downSample(v, dFactor, true, false);
+
+			for (int p = 0; p < u.size(); p++)
+			{
+				u.data[p] *= dFactor;
+				v.data[p] *= dFactor;
 			}
 		}
 
-		// The final scale of vectors is our result.
-		return vScales[0];
+		return new VectorField(u, v);
+	}
+
+	/**
+	 * Check whether warping the second frame with an initial flow brings it closer to the first frame than zero flow.
+	 * 
+	 * @param t1
+	 * @param t2
+	 * @param seed
+	 * @return
+	 */
+	public boolean acceptWarmStart(FloatGrid t1, FloatGrid t2, VectorField seed)
+	{
+		FloatGrid warped = warp(t2, seed.u, seed.v, false);
+		double cold = 0;
+		double warm = 0;
+
+		for (int i = 0; i < t1.size(); i++)
+		{
+			cold += Math.abs(t2.data[i] - t1.data[i]);
+			warm += Math.abs(warped.data[i] - t1.data[i]);
+		}
+
+		warmResidual = warm / t1.size();
+		coldResidual = cold / t1.size();
+
+		return warm < warmStartRatio * cold;
+	}
+
+	/**
+	 * @return The number of linear solver iterations of the last run, over every scale and warp
+	 */
+	public long getIterations()
+	{
+		return iterations;
+	}
+
+	/**
+	 * The largest motion in a flow, taken as the 99th percentile of the vector lengths so that a few bad vectors do not
+	 * decide it.
+	 * 
+	 * @param flow
+	 * @return
+	 */
+	public float estimateMotion(VectorField flow)
+	{
+		final int size = flow.u.size();
+		float[] lengths = new float[size];
+
+		for (int i = 0; i < size; i++)
+		{
+			lengths[i] = (float) Math.hypot(flow.u.data[i], flow.v.data[i]);
+		}
+
+		Arrays.sort(lengths);
+
+		return lengths[Math.min(size - 1, (int) (0.99 * size))];
+	}
+
+	/**
+	 * @return The number of scales solved in the last run, counted from the finest
+	 */
+	public int getScalesUsed()
+	{
+		return scalesUsed;
+	}
+
+	/**
+	 * @return The largest motion estimated by the last run at the finest scale, or NaN when it did not probe
+	 */
+	public float getMaxMotion()
+	{
+		return maxMotion;
+	}
+
+	/**
+	 * @return Whether the last run started from its initial flow
+	 */
+	public boolean isWarmStarted()
+	{
+		return warmStarted;
+	}
+
+	/**
+	 * @return The mean absolute residual of the frames warped with the initial flow, or NaN when the last run had none
+	 */
+	public double getWarmResidual()
+	{
+		return warmResidual;
+	}
+
+	/**
+	 * @return The mean absolute residual of the frames at zero flow, or NaN when the last run had no initial flow
+	 */
+	public double getColdResidual()
+	{
+		return coldResidual;
 	}
 
 	/**
@@ -170,172 +605,160 @@ public class HornSchunckPyrimidal
 	 * @param u x vector field
 	 * @param v y vector field
 	 */
-	public void hs(float[][] t1, float[][] t2, float[][] u, float[][] v)
+	public void hs(FloatGrid t1, FloatGrid t2, FloatGrid u, FloatGrid v)
 	{
-		int height = t1.length;
-		int width = t1[0].length;
-		
-		for (int i = 0; i < height; i++)
-		{
-			for (int j = 0; j < width; j++)
-			{
-				t1[i][j] = Float.parseFloat(trunc.format(t1[i][j]));
-				t2[i][j] = Float.parseFloat(trunc.format(t2[i][j]));
-			}
-		}
+		hs(t1, t2, null, null, u, v);
+	}
 
-		// Warped image, x and y derivatives
-		float[][] t2Warp;
-		float[][] t2WarpY;
-		float[][] t2WarpX;
+	/**
+	 * Compute the Horn-Schunck optical flow for one scale, with the gradients of the second frame already computed.
+	 * 
+	 * @param t1 first frame
+	 * @param t2 second frame
+	 * @param gx x gradient of the second frame, or null to compute it
+	 * @param gy y gradient of the second frame, or null to compute it
+	 * @param u x vector field
+	 * @param v y vector field
+	 */
+	public void hs(FloatGrid t1, FloatGrid t2, FloatGrid gx, FloatGrid gy, FloatGrid u, FloatGrid v)
+	{
+		int height = t1.height;
+		int width = t1.width;
+
+		SolverWorkspace ws = getWorkspace();
 
 		// x and y derivatives (centered differences)
-		float[][] t2x = new float[height][width];
-		float[][] t2y = new float[height][width];
+		FloatGrid t2x = (gx != null) ? gx : ws.gradientX(height, width);
+		FloatGrid t2y = (gy != null) ? gy : ws.gradientY(height, width);
 
 		// Constants
-		float[][] Au = new float[height][width];
-		float[][] Av = new float[height][width];
-		float[][] Du = new float[height][width];
-		float[][] Dv = new float[height][width];
-		float[][] D = new float[height][width];
+		FlowSystem system = ws.system;
+		system.resize(height, width);
+		system.omega = SOR_W;
+		system.vectorKernels = vectorKernels;
+
+		LinearSolver solver = ws.getSolver(this);
+
+		// Warped image, x and y derivatives
+		WarpEngine warper = ws.warper;
+		warper.parallel = getParallel();
 
 		System.out.println("Preforming Horn-Schunck on " + width + "x" + height + " scale image...");
 
-		if (t2.length != height || t2[0].length != width) System.out.println("ALERT! Image sequence dimensions don't match!");
+		if (!t2.sameSize(t1) || !u.sameSize(t1) || !v.sameSize(t1)) System.out.println("ALERT! Image sequence dimensions don't match!");
 
 		// Compute gradient of second image
-		gradient(t2, t2x, t2y);
-
-//		System.out.println(t2[0][0]);
-//		System.out.println(t2x[0][0]);
-//		System.out.println(t2y[0][0]);
+		if (gx == null || gy == null) gradient(t2, t2x, t2y);
 
 		for (int warp = 0; warp < nWarps; warp++)
 		{
 			System.out.print("Warp " + warp + ":");
 
-			// I2(x + h), I2y(x + h), I2x(x + h)
-			t2Warp = warp(t2, u, v, true);
-			t2WarpY = warp(t2y, u, v, true);
-			t2WarpX = warp(t2x, u, v, true);
-			
-			//if (warp == 0) System.out.format("t2Warp[0][5]: %5.20f\n", t2Warp[0][5]);
+			// I2(x + h), I2x(x + h), I2y(x + h)
+			warper.warp(t2, t2x, t2y, u, v, true);
 
 			// Load constants
-			for (int y = 0; y < height; y++)
-			{
-				for (int x = 0; x < width; x++)
-				{
-					final float t2d = t2WarpX[y][x] * u[y][x] + t2WarpY[y][x] * v[y][x];
-					final float d = t1[y][x] - t2Warp[y][x] + t2d;
-
-					Au[y][x] = d * t2WarpX[y][x];
-					Av[y][x] = d * t2WarpY[y][x];
-					Du[y][x] = t2WarpX[y][x] * t2WarpX[y][x] + alpha2;
-					Dv[y][x] = t2WarpY[y][x] * t2WarpY[y][x] + alpha2;
-					D[y][x] = t2WarpX[y][x] * t2WarpY[y][x];
-				}
-			}
+			system.load(t1, warper.warped, warper.warpedX, warper.warpedY, u, v, alpha2);
 
-			float nIter = 0;
-			float error = 1000;
+			// Solve the linear system for this warp
+			int nIter = solver.solve(system, u, v, stopCrt, maxIterations);
+			iterations += nIter;
 
-			// Repeat SOR until error is acceptable or max iterations reached
-			while (error > stopCrt && nIter < maxIterations)
-			{
-				nIter++;
-				error = 0;
+			System.out.println(" Iterations: " + nIter + "(" + solver.getError() + ")");
+		}
+	}
 
-				int[] px = new int[3];
-				int[] py = new int[3];
+	/**
+	 * Create the linear solver selected by solverMode.
+	 * 
+	 * @return
+	 */
+	public LinearSolver createSolver()
+	{
+		switch (solverMode)
+		{
+			case WAVEFRONT_SOR:
+				return new WavefrontSOR();
 
-				// Do 1 SOR computation for every flow value in the image
-				for (int y = 0; y < height; y++)
-				{
-					for (int x = 0; x < width; x++)
-					{
-						// neighbor x coordinates
-						px[0] = x;
-						px[1] = gp(x - 1, width);
-						px[2] = gp(x + 1, width);
-
-						// neighbor y coordinates
-						py[0] = y;
-						py[1] = gp(y - 1, height);
-						py[2] = gp(y + 1, height);
-
-						// Calculate a sor iteration on the current pixel
-						error += sor(u, v, Au, Av, Du, Dv, D, px, py);
-					}
-				}
+			case ACTIVE_SET_SOR:
+				return new ActiveSetSOR();
 
-//				 //SOR central part of image
-//				 for (int y = 1; y < height - 1; y++)
-//				 {
-//				 for (int x = 1; x < width - 1; x++)
-//				 {
-//				 px[0] = x; px[1] = x - 1; px[2] = x + 1;
-//				 py[0] = y; py[1] = y - 1; py[2] = y + 1;
-//				
-//				 error += sor(u, v, Au, Av, Du, Dv, D, px, py);
-//				 }
-//				 }
-//				
-//				 //first and last rows
-//				 for (int x = 1; x < width - 1; x++)
-//				 {
-//				 px[0] = x; px[1] = x - 1; px[2] = x + 1;
-//				 py[0] = 0; py[1] = 0; py[2] = 1;
-//				 error += sor(u, v, Au, Av, Du, Dv, D, px, py);
-//				
-//				 px[0] = x; px[1] = x - 1; px[2] = x + 1;
-//				 py[0] = height - 1; py[1] = height - 2; py[2] = height - 1;
-//				 error += sor(u, v, Au, Av, Du, Dv, D, px, py);
-//				 }
-//				
-//				 //first and last columns
-//				 for (int y = 1; y < height - 1; y++)
-//				 {
-//				 px[0] = 0; px[1] = 0; px[2] = 1;
-//				 py[0] = y; py[1] = y - 1; py[2] = y + 1;
-//				 error += sor(u, v, Au, Av, Du, Dv, D, px, py);
-//				
-//				 px[0] = width - 1; px[1] = width - 2; px[2] = width - 1;
-//				 py[0] = y; py[1] = y - 1; py[2] = y + 1;
-//				 error += sor(u, v, Au, Av, Du, Dv, D, px, py);
-//				 }
-//				
-//				 //up left corner
-//				 px[0] = 0; px[1] = 0; px[2] = 1;
-//				 py[0] = 0; py[1] = 0; py[2] = 1;
-//				 error += sor(u, v, Au, Av, Du, Dv, D, px, py);
-//				
-//				 //up right corner
-//				 px[0] = width - 1; px[1] = width - 2; px[2] = width - 1;
-//				 py[0] = 0; py[1] = 0; py[2] = 1;
-//				 error += sor(u, v, Au, Av, Du, Dv, D, px, py);
-//				
-//				 //bottom left corner
-//				 px[0] = 0; px[1] = 0; px[2] = 1;
-//				 py[0] = height - 1; py[1] = height - 2; py[2] = height - 1;
-//				 error += sor(u, v, Au, Av, Du, Dv, D, px, py);
-//				
-//				 //bottom right corner
-//				 px[0] = width - 1; px[1] = width - 2; px[2] = width - 1;
-//				 py[0] = height - 1; py[1] = height - 2; py[2] = height - 1;
-//				 error += sor(u, v, Au, Av, Du, Dv, D, px, py);
-
-				// total error this iteration
-				error = (float) Math.sqrt(error / (width * height));
-				
-				if (warp == 0) System.out.format("error: %5.20f\n", error);
-			}
+			case CHECKERBOARD_SOR:
+				return new CheckerboardSOR(getParallel());
+
+			case MULTIGRID:
+				return new MultigridSolver(getParallel());
 
-			System.out.println(" Iterations: " + nIter + "(" + error + ")");
+			case FULL_MULTIGRID:
+				MultigridSolver fmg = new MultigridSolver(getParallel());
+				fmg.fullMultigrid = true;
+				return fmg;
+
+			case PCG:
+				return new PCGSolver(getParallel());
+
+			default:
+				return new SORSolver();
 		}
 	}
 
+	/**
+	 * Get the thread pool for parallel modes, creating it when nThreads has changed.
+	 * 
+	 * @return The pool, or null when nThreads is 1 and the work runs on the calling thread
+	 */
+	public ForkJoinPool getPool()
+	{
+		if (nThreads <= 1)
+		{
+			shutdown();
+		}
+
+		else if (pool == null || pool.getParallelism() != nThreads)
+		{
+			if (pool != null) pool.shutdown();
+			pool = new ForkJoinPool(nThreads);
+		}
+
+		return pool;
+	}
+
+	/**
+	 * Stop the threads of the pool. A later run creates a new pool when it needs one.
+	 */
+	public void shutdown()
+	{
+		if (pool != null) pool.shutdown();
+		pool = null;
+	}
+
+	/**
+	 * Get the pool together with the reduction policy selected by deterministic.
+	 * 
+	 * @return
+	 */
+	public Parallel getParallel()
+	{
+		ForkJoinPool p = getPool();
+
+		if (parallel == null || parallel.pool != p || parallel.deterministic != deterministic)
+		{
+			parallel = new Parallel(p, deterministic);
+		}
+
+		return parallel;
+	}
+
+	/**
+	 * Get the workspace to compute in, the one of the calling thread unless workspace is set.
+	 * 
+	 * @return
+	 */
+	public SolverWorkspace getWorkspace()
+	{
+		return (workspace != null) ? workspace : SolverWorkspace.local();
+	}
+
 	/**
 	 * 
 	 * @param x
@@ -360,18 +783,55 @@ public class HornSchunckPyrimidal
 	 */
 	public void gradient(final float[][] img, float[][] Ix, float[][] Iy)
 	{
-		int height = img.length;
-		int width = img[0].length;
+		FloatGrid gx = new FloatGrid(img.length, img[0].length);
+		FloatGrid gy = new FloatGrid(img.length, img[0].length);
+
+		gradient(FloatGrid.fromArray(img), gx, gy);
+
+		for (int y = 0; y < img.length; y++)
+		{
+			System.arraycopy(gx.data, y * gx.width, Ix[y], 0, gx.width);
+			System.arraycopy(gy.data, y * gy.width, Iy[y], 0, gy.width);
+		}
+	}
+
+	/**
+	 * Compute the x & y gradient of an image with centered differences.
+	 * 
+	 * @param img
+	 * @param Ix
+	 * @param Iy
+	 */
+	public void gradient(final FloatGrid image, FloatGrid gx, FloatGrid gy)
+	{
+		if (vectorKernels)
+		{
+			VectorKernels.gradient(image.data, gx.data, gy.data, image.width, image.height);
+			return;
+		}
+
+		final float[] img = image.data;
+		final float[] Ix = gx.data;
+		final float[] Iy = gy.data;
+
+		int height = image.height;
+		int width = image.width;
 		int h = height - 1;
 		int w = width - 1;
 
+		// Row offsets of the first and last rows
+		final int top = 0;
+		final int bot = h * width;
+
 		// Compute gradient in central image space
 		for (int y = 1; y < h; y++)
 		{
+			final int r = y * width;
+
 			for (int x = 1; x < w; x++)
 			{
-				Ix[y][x] = (float) (0.5 * (img[y][x + 1] - img[y][x - 1]));
-				Iy[y][x] = (float) (0.5 * (img[y + 1][x] - img[y - 1][x]));
+				Ix[r + x] = (float) (0.5 * (img[r + x + 1] - img[r + x - 1]));
+				Iy[r + x] = (float) (0.5 * (img[r + width + x] - img[r - width + x]));
 			}
 		}
 
@@ -379,41 +839,43 @@ public class HornSchunckPyrimidal
 		for (int x = 1; x < w; x++)
 		{
 			// First row
-			Ix[0][x] = (float) (0.5 * (img[0][x + 1] - img[0][x - 1]));
-			Iy[0][x] = (float) (0.5 * (img[1][x] - img[0][x]));
+			Ix[top + x] = (float) (0.5 * (img[top + x + 1] - img[top + x - 1]));
+			Iy[top + x] = (float) (0.5 * (img[width + x] - img[top + x]));
 
 			// Last row
-			Ix[h][x] = (float) (0.5 * (img[h][x + 1] - img[h][x - 1]));
-			Iy[h][x] = (float) (0.5 * (img[h][x] - img[h - 1][x]));
+			Ix[bot + x] = (float) (0.5 * (img[bot + x + 1] - img[bot + x - 1]));
+			Iy[bot + x] = (float) (0.5 * (img[bot + x] - img[bot - width + x]));
 		}
 
 		// First & last column
 		for (int y = 1; y < h; y++)
 		{
+			final int r = y * width;
+
 			// First column
-			Ix[y][0] = (float) (0.5 * (img[y][1] - img[y][0]));
-			Iy[y][0] = (float) (0.5 * (img[y + 1][0] - img[y - 1][0]));
+			Ix[r] = (float) (0.5 * (img[r + 1] - img[r]));
+			Iy[r] = (float) (0.5 * (img[r + width] - img[r - width]));
 
 			// Last column
-			Ix[y][w] = (float) (0.5 * (img[y][w] - img[y][w - 1]));
-			Iy[y][w] = (float) (0.5 * (img[y + 1][w] - img[y - 1][w]));
+			Ix[r + w] = (float) (0.5 * (img[r + w] - img[r + w - 1]));
+			Iy[r + w] = (float) (0.5 * (img[r + width + w] - img[r - width + w]));
 		}
 
 		// Top left
-		Ix[0][0] = (float) (0.5 * (img[0][1] - img[0][0]));
-		Iy[0][0] = (float) (0.5 * (img[1][0] - img[0][0]));
+		Ix[top] = (float) (0.5 * (img[top + 1] - img[top]));
+		Iy[top] = (float) (0.5 * (img[width] - img[top]));
 
 		// Top right
-		Ix[0][w] = (float) (0.5 * (img[0][w] - img[0][w - 1]));
-		Iy[0][w] = (float) (0.5 * (img[1][w] - img[0][w]));
+		Ix[top + w] = (float) (0.5 * (img[top + w] - img[top + w - 1]));
+		Iy[top + w] = (float) (0.5 * (img[width + w] - img[top + w]));
 
 		// Bottom left
-		Ix[h][0] = (float) (0.5 * (img[h][1] - img[h][0]));
-		Iy[h][0] = (float) (0.5 * (img[h][0] - img[h - 1][0]));
+		Ix[bot] = (float) (0.5 * (img[bot + 1] - img[bot]));
+		Iy[bot] = (float) (0.5 * (img[bot] - img[bot - width]));
 
 		// bottom right
-		Ix[h][w] = (float) (0.5 * (img[h][w] - img[h][w - 1]));
-		Iy[h][w] = (float) (0.5 * (img[h][w] - img[h - 1][w]));
+		Ix[bot + w] = (float) (0.5 * (img[bot + w] - img[bot + w - 1]));
+		Iy[bot + w] = (float) (0.5 * (img[bot + w] - img[bot - width + w]));
 	}
 
 	/**
@@ -426,27 +888,201 @@ public class HornSchunckPyrimidal
 	 */
 	public Images[] createImagePyramid(float[][] f1, float[][] f2, int nScales, float dFactor, boolean smooth)
 	{
+		return createImagePyramid(FloatGrid.fromArray(f1), FloatGrid.fromArray(f2), nScales, dFactor, smooth);
+	}
+
+	/**
+	 * 
+	 * @param f1
+	 * @param f2
+	 * @param nScales
+	 * @param dFactor
+	 * @return
+	 */
+	public Images[] createImagePyramid(FloatGrid f1, FloatGrid f2, int nScales, float dFactor, boolean smooth)
+	{
+		if (fixedPoint && smooth) return new FixedPyramid(this).create(f1, f2, nScales, dFactor);
+
+		FloatGrid n1 = new FloatGrid(f1.height, f1.width);
+		FloatGrid n2 = new FloatGrid(f2.height, f2.width);
+
+		Images.normalizeGreyscale(f1, f2, n1, n2);
+
+		return createNormalizedPyramid(n1, n2, nScales, dFactor, smooth);
+	}
+
+	/**
+	 * Create the pyramid of two frames that are already normalized, with the gradients of the second frame.
+	 * 
+	 * @param n1
+	 * @param n2
+	 * @param nScales
+	 * @param dFactor
+	 * @param smooth
+	 * @return
+	 */
+	public Images[] createNormalizedPyramid(final FloatGrid n1, final FloatGrid n2, int nScales, final float dFactor, final boolean smooth)
+	{
+		final FloatGrid[] p1 = new FloatGrid[nScales];
+		final FloatGrid[] p2 = new FloatGrid[nScales];
+		final FloatGrid[] p2x = new FloatGrid[nScales];
+		final FloatGrid[] p2y = new FloatGrid[nScales];
+
+		// The second frame and its gradients on the pool, while the first frame is built here
+		ForkJoinTask<?> second = null;
+		Runnable secondFrame = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				createPyramid(n2, p2, dFactor, smooth);
+				truncate(p2);
+				createGradients(p2, p2x, p2y);
+			}
+		};
+
+		Parallel parallel = getParallel();
+		if (parallel.pool != null) second = parallel.pool.submit(secondFrame);
+		createPyramid(n1, p1, dFactor, smooth);
+		truncate(p1);
+
+		if (second != null) second.join();
+		else secondFrame.run();
+
 		Images[] imgScales = new Images[nScales];
-		imgScales[0] = new Images(f1.length, f1[0].length);
 
-		Images.normalizeGreyscale(f1, f2, imgScales[0].fb1, imgScales[0].fb2);
+		for (int i = 0; i < nScales; i++)
+		{
+			imgScales[i] = new Images(p1[i], p2[i]);
+			imgScales[i].fb2x = p2x[i];
+			imgScales[i].fb2y = p2y[i];
+
+			if (halfPrecision) imgScales[i].compress();
+		}
+
+		return imgScales;
+	}
+
+	/**
+	 * Round every value of the levels of a frame to the decimal digits the solver takes. The pyramids apply it once,
+	 * before the gradients as hs did on every run, so a run never changes the levels it solves.
+	 * 
+	 * @param scales
+	 */
+	public void truncate(FloatGrid[] scales)
+	{
+		// A format per call, as the frames of a pair are truncated on two threads
+		DecimalFormat trunc = new DecimalFormat("##.################");
+
+		for (FloatGrid image : scales)
+		{
+			for (int i = 0; i < image.size(); i++)
+			{
+				image.data[i] = Float.parseFloat(trunc.format(image.data[i]));
+			}
+		}
+	}
+
+	/**
+	 * Create the pyramid of a single frame that is already normalized.
+	 * 
+	 * @param image
+	 * @param nScales
+	 * @param dFactor
+	 * @param smooth
+	 * @return The scales, finest first
+	 */
+	public FloatGrid[] createPyramid(FloatGrid image, int nScales, float dFactor, boolean smooth)
+	{
+		FloatGrid[] scales = new FloatGrid[nScales];
+		createPyramid(image, scales, dFactor, smooth);
+
+		return scales;
+	}
+
+	/**
+	 * Create the pyramid of a single frame that is already normalized, filling every scale of the given array.
+	 * 
+	 * @param image
+	 * @param scales
+	 * @param dFactor
+	 * @param smooth
+	 */
+	public void createPyramid(FloatGrid image, FloatGrid[] scales, float dFactor, boolean smooth)
+	{
+		PyramidPlan plan = PyramidPlan.get(image.width, image.height, dFactor, scales.length, smooth);
+		scales[0] = image;
+
+		// Buffers for the smoothing and resampling of each level, sized by the finest scale
+		FloatGrid scratch = new FloatGrid(image.height, image.width);
+		FloatGrid smoothed = null;
 
 		if (smooth)
 		{
-			imgScales[0].fb1 = Images.applyGaussianSmoothing(imgScales[0].fb1, 5, PRESMOOTHING_SIGMA);
-			imgScales[0].fb2 = Images.applyGaussianSmoothing(imgScales[0].fb2, 5, PRESMOOTHING_SIGMA);
+			smoothed = new FloatGrid(image.height, image.width);
+			scales[0] = smooth(image, PRESMOOTHING_SIGMA, plan.presmoothKernel, scratch, null);
 		}
 
+		final float sigma = (float) (0.6f * Math.sqrt(((1.0 / (dFactor * dFactor))) - 1.0));
+
 		// Create the pyramid at each scale
-		for (int i = 1; i < nScales; i++)
+		for (int i = 1; i < scales.length; i++)
 		{
-			float[][] sImg1 = downSample(imgScales[i - 1].fb1, dFactor, smooth, false);
-			float[][] sImg2 = downSample(imgScales[i - 1].fb2, dFactor, smooth, false);
+			FloatGrid source = scales[i - 1];
 
-			imgScales[i] = new Images(sImg1, sImg2);
+			if (smooth) source = smooth(source, sigma, plan.downKernel, scratch, smoothed);
+
+			scales[i] = plan.downSample(source, i - 1, getParallel(), scratch);
 		}
+	}
 
-		return imgScales;
+	/**
+	 * Smooth an image with the gaussian chosen by recursiveSmoothing.
+	 * 
+	 * @param image
+	 * @param sigma
+	 * @param scratch Holds the horizontal pass, may be null
+	 * @param out Holds the result, may be null
+	 * @return
+	 */
+	public FloatGrid smooth(FloatGrid image, double sigma, FloatGrid scratch, FloatGrid out)
+	{
+		return smooth(image, sigma, null, scratch, out);
+	}
+
+	/**
+	 * Smooth an image with the gaussian chosen by recursiveSmoothing, using a kernel computed before for the FIR filter.
+	 * 
+	 * @param image
+	 * @param sigma
+	 * @param kernel The half kernel of the sigma, see PyramidPlan, or null to compute it
+	 * @param scratch Holds the horizontal pass, may be null
+	 * @param out Holds the result, may be null
+	 * @return
+	 */
+	public FloatGrid smooth(FloatGrid image, double sigma, float[] kernel, FloatGrid scratch, FloatGrid out)
+	{
+		if (recursiveSmoothing) return Images.applyRecursiveGaussian(image, sigma, getParallel(), scratch, out);
+		if (kernel == null) return Images.applyGaussianSmoothing(image, 5, sigma, getParallel(), scratch, out);
+
+		return Images.convolve(image, kernel, getParallel(), scratch, out);
+	}
+
+	/**
+	 * Compute the x and y gradients of every scale of a pyramid.
+	 * 
+	 * @param scales
+	 * @param gx The x gradients, one per scale
+	 * @param gy The y gradients, one per scale
+	 */
+	public void createGradients(FloatGrid[] scales, FloatGrid[] gx, FloatGrid[] gy)
+	{
+		for (int i = 0; i < scales.length; i++)
+		{
+			gx[i] = new FloatGrid(scales[i].height, scales[i].width);
+			gy[i] = new FloatGrid(scales[i].height, scales[i].width);
+			gradient(scales[i], gx[i], gy[i]);
+		}
 	}
 
 	/**
@@ -456,10 +1092,39 @@ public class HornSchunckPyrimidal
 	 * @param dFactor
 	 * @return
 	 */
-	public float[][] downSample(float[][] img, float dFactor, boolean smooth, boolean boundZero)
+	public FloatGrid downSample(float[][] img, float dFactor, boolean smooth, boolean boundZero)
 	{
-		final int oldHeight = img.length;
-		final int oldWidth = img[0].length;
+		return downSample(FloatGrid.fromArray(img), dFactor, smooth, boundZero);
+	}
+
+	/**
+	 * 
+	 * 
+	 * @param img
+	 * @param dFactor
+	 * @return
+	 */
+	public FloatGrid downSample(FloatGrid img, float dFactor, boolean smooth, boolean boundZero)
+	{
+		return downSample(img, dFactor, smooth, boundZero, null, null);
+	}
+
+	/**
+	 * Downsample with the given buffers for the smoothing, reused when large enough (see FloatGrid.reuse).
+	 * 
+	 * @param img
+	 * @param dFactor
+	 * @param smooth
+	 * @param boundZero
+	 * @param scratch Holds the horizontal pass of the smoothing, may be null
+	 * @param smoothed Holds the smoothed image, may be null
+	 * @return
+	 */
+	public FloatGrid downSample(FloatGrid img, final float dFactor, boolean smooth, final boolean boundZero, FloatGrid scratch,
+			FloatGrid smoothed)
+	{
+		final int oldHeight = img.height;
+		final int oldWidth = img.width;
 
 		final int newWidth = (int) ((float) oldWidth * dFactor + 0.5);
 		final int newHeight = (int) ((float) oldHeight * dFactor + 0.5);
@@ -467,21 +1132,40 @@ public class HornSchunckPyrimidal
 		if (smooth)
 		{
 			final float sigma = (float) (0.6f * Math.sqrt(((1.0 / (dFactor * dFactor))) - 1.0));
-			img = Images.applyGaussianSmoothing(img, 5, sigma);
+			img = smooth(img, sigma, scratch, smoothed);
 		}
 		
-		float[][] scaledImage = new float[newHeight][newWidth];
+		final FloatGrid source = img;
+		final FloatGrid scaledImage = new FloatGrid(newHeight, newWidth);
 
-		for (int y = 0; y < newHeight; y++)
+		// Without the zero boundary every pixel is a weighted sum of clamped taps, so the weights go in tables
+		if (!boundZero)
 		{
-			for (int x = 0; x < newWidth; x++)
+			PyramidPlan.resample(source, scaledImage, new PyramidPlan.Axis(oldWidth, newWidth, dFactor), new PyramidPlan.Axis(oldHeight,
+					newHeight, dFactor), getParallel(), scratch);
+
+			return scaledImage;
+		}
+
+		getParallel().sum(0, newHeight, new Parallel.Rows()
+		{
+			@Override
+			public double compute(int from, int to)
 			{
-				final float oldY = (float) y / dFactor;
-				final float oldX = (float) x / dFactor;
+				for (int y = from; y < to; y++)
+				{
+					for (int x = 0; x < newWidth; x++)
+					{
+						final float oldY = (float) y / dFactor;
+						final float oldX = (float) x / dFactor;
+
+						scaledImage.data[y * newWidth + x] = getInterpolationPoint(source, oldX, oldY, boundZero);
+					}
+				}
 
-				scaledImage[y][x] = getInterpolationPoint(img, oldX, oldY, boundZero);
+				return 0;
 			}
-		}
+		});
 
 		return scaledImage;
 	}
@@ -495,6 +1179,19 @@ public class HornSchunckPyrimidal
 	 * @return
 	 */
 	public float getInterpolationPoint(float[][] img, double x, double y, boolean boundZero)
+	{
+		return getInterpolationPoint(FloatGrid.fromArray(img), x, y, boundZero);
+	}
+
+	/**
+	 * Compute the bicubic interpolation
+	 * 
+	 * @param img
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public float getInterpolationPoint(FloatGrid img, double x, double y, boolean boundZero)
 	{
 		double[][] kern = new double[4][4];
 		float newValue = 0.0f;
@@ -502,48 +1199,9 @@ public class HornSchunckPyrimidal
 
 		int sx = (x < 0) ? -1 : 1;
 		int sy = (y < 0) ? -1 : 1;
-		
-//		int nx = img[0].length;
-//		int ny = img.length;
 
-		int xn = gp((int) x, img[0].length);
-		int yn = gp((int) y, img.length);
-		
-//		int xx, yy, mx, my, dx, dy, ddx, ddy;
-//		
-//		xx = gp((int) x, nx, out);
-//		yy = gp((int) y, ny, out);
-//		mx = gp((int) x - sx, nx, out);
-//		my = gp((int) y - sy, ny, out);
-//		dx = gp((int) x + sx, nx, out);
-//		dy = gp((int) y + sy, ny, out);
-//		ddx = gp((int) x + sx * 2, nx, out);
-//		ddy = gp((int) y + sy * 2, ny, out);
-//		
-//		final float p11 = img[my][mx];
-//		final float p12 = img[my][xx];
-//		final float p13 = img[my][dx];
-//		final float p14 = img[my][ddx];
-//
-//		final float p21 = img[yy][mx];
-//		final float p22 = img[yy][xx];
-//		final float p23 = img[yy][dx];
-//		final float p24 = img[yy][ddx];
-//
-//		final float p31 = img[dy][mx];
-//		final float p32 = img[dy][xx];
-//		final float p33 = img[dy][dx];
-//		final float p34 = img[dy][ddx]; 
-//
-//		final float p41 = img[ddy][mx];
-//		final float p42 = img[ddy][xx];
-//		final float p43 = img[ddy][dx];
-//		final float p44 = img[ddy][ddx];
-//		
-//		kern = new double[][] {{p11, p21, p31, p41},
-//							   {p12, p22, p32, p42},
-//							   {p13, p23, p33, p43},
-//							   {p14, p24, p34, p44}};
+		int xn = gp((int) x, img.width);
+		int yn = gp((int) y, img.height);
 
 		kern[0][0] = gpNeumann(img, (int) y - sy, (int) x - sx, out);
 		kern[1][0] = gpNeumann(img, (int) y - sy, (int) x, out);
@@ -578,22 +1236,6 @@ public class HornSchunckPyrimidal
 		return newValue;
 	}
 
-//	public int gp(int x, int w, boolean[] out)
-//	{
-//		if (x < 0)
-//		{
-//			x = 0;
-//			out[0] = true;
-//		}
-//		else if (x >= w)
-//		{
-//			x = w - 1;
-//			out[0] = true;
-//		}
-//
-//		return x;
-//	}
-
 	/**
 	 * Get pixel method with Neumann boundary conditions
 	 * 
@@ -604,11 +1246,25 @@ public class HornSchunckPyrimidal
 	 * Neumann boundary condition is returned.
 	 */
 	public float gpNeumann(float[][] arr, int y, int x, boolean[] out)
+	{
+		return gpNeumann(FloatGrid.fromArray(arr), y, x, out);
+	}
+
+	/**
+	 * Get pixel method with Neumann boundary conditions
+	 * 
+	 * @param arr Pixel data grid
+	 * @param x The x positon of the desired point
+	 * @param y The y position of the desired point
+	 * @return The value of the pixel at (x, y) unless it falls outside the boundary of the image in which case the
+	 * Neumann boundary condition is returned.
+	 */
+	public float gpNeumann(FloatGrid arr, int y, int x, boolean[] out)
 	{
 		float px = 0;
 
-		int height = arr.length;
-		int width = arr[0].length;
+		int height = arr.height;
+		int width = arr.width;
 
 		if (x < 0)
 		{
@@ -634,21 +1290,22 @@ public class HornSchunckPyrimidal
 			out[0] = true;
 		}
 
-		px = arr[y][x];
+		px = arr.data[y * width + x];
 
 		return px;
 	}
 
 	/**
+	 * The fewest scales that shrink a motion of maxMotion pixels to at most a pixel at the coarsest scale.
 	 * 
 	 * @param dFactor
+	 * @param maxMotion
 	 * @return
 	 */
 	public int getBestScales(float dFactor, float maxMotion)
 	{
-		int nScales = BAD_VALUE;
-		nScales = (int) (Math.log(maxMotion) / Math.log(dFactor) + 1);
-		return nScales;
+		if (!(maxMotion > 1)) return 1;
+		return (int) Math.ceil(Math.log(maxMotion) / Math.log(1 / dFactor)) + 1;
 	}
 
 	/**
@@ -658,28 +1315,61 @@ public class HornSchunckPyrimidal
 	 * @param newWidth
 	 * @param newHeight
 	 */
-	public float[][] upsample(float[][] field, int newWidth, int newHeight)
+	public FloatGrid upsample(float[][] field, int newWidth, int newHeight)
+	{
+		return upsample(FloatGrid.fromArray(field), newWidth, newHeight);
+	}
+
+	/**
+	 * Upscale a grid of vectors to a new size using bicubic interpolation.
+	 * 
+	 * @param img
+	 * @param newWidth
+	 * @param newHeight
+	 */
+	public FloatGrid upsample(FloatGrid field, int newWidth, int newHeight)
+	{
+		FloatGrid scaledImage = new FloatGrid(newHeight, newWidth);
+		upsample(field, scaledImage);
+		return scaledImage;
+	}
+
+	/**
+	 * Upscale a grid of vectors to the size of an existing grid using bicubic interpolation.
+	 * 
+	 * @param field
+	 * @param scaledImage The output, whose size is the new size
+	 */
+	public void upsample(FloatGrid field, FloatGrid scaledImage)
 	{
-		int oldHeight = field.length;
-		int oldWidth = field[0].length;
+		int oldHeight = field.height;
+		int oldWidth = field.width;
+		int newHeight = scaledImage.height;
+		int newWidth = scaledImage.width;
 
 		float ufx = ((float) newWidth / oldWidth);
 		float ufy = ((float) newHeight / oldHeight);
 
-		float[][] scaledImage = new float[newHeight][newWidth];
-
-		for (int y = 0; y < newHeight; y++)
-		{
-			for (int x = 0; x < newWidth; x++)
-			{
-				float oldY = (float) y / ufy;
-				float oldX = (float) x / ufx;
+		PyramidPlan.resample(field, scaledImage, new PyramidPlan.Axis(oldWidth, newWidth, ufx), new PyramidPlan.Axis(oldHeight, newHeight,
+				ufy), getParallel(), null);
+	}
 
-				scaledImage[y][x] = getInterpolationPoint(field, oldX, oldY, false);
-			}
-		}
+	/**
+	 * Upscale a flow to the size of an existing flow using bicubic interpolation and multiply its vectors by a scale,
+	 * both components in the same passes.
+	 * 
+	 * @param flow
+	 * @param next The output, whose size is the new size
+	 * @param scale
+	 * @param scratch Holds the pass along the rows, may be null
+	 */
+	public void upsampleFlow(VectorField flow, VectorField next, float scale, VectorField scratch)
+	{
+		float ufx = ((float) next.u.width / flow.u.width);
+		float ufy = ((float) next.u.height / flow.u.height);
 
-		return scaledImage;
+		PyramidPlan.resample(flow, next, new PyramidPlan.Axis(flow.u.width, next.u.width, ufx), new PyramidPlan.Axis(flow.u.height,
+				next.u.height, ufy), scale, getParallel(), scratch);
 	}
 
 	/**
@@ -693,19 +1383,34 @@ public class HornSchunckPyrimidal
 	 */
 	public float[][] warp(float[][] image, float[][] u, float[][] v, boolean boundZero)
 	{
-		float[][] warpedImage = new float[image.length][image[0].length];
+		return warp(FloatGrid.fromArray(image), FloatGrid.fromArray(u), FloatGrid.fromArray(v), boundZero).toArray();
+	}
+
+	/**
+	 * Move the pixels of an image along a vector.
+	 * 
+	 * @param image The image to be warped
+	 * @param u The x component of the warping vector field
+	 * @param v The y component of the warping vector field
+	 * @param boundZero Whether to use a zero boundary condition for points outside the image area
+	 * @return The result of warping the original image along the given vectors
+	 */
+	public FloatGrid warp(FloatGrid image, FloatGrid u, FloatGrid v, boolean boundZero)
+	{
+		int h = image.height;
+		int w = image.width;
 
-		int h = image.length;
-		int w = image[0].length;
+		FloatGrid warpedImage = new FloatGrid(h, w);
 
 		for (int y = 0; y < h; y++)
 		{
 			for (int x = 0; x < w; x++)
 			{
-				final float newX = (float) (x + u[y][x]);
-				final float newY = (float) (y + v[y][x]);
+				final int i = y * w + x;
+				final float newX = (float) (x + u.data[i]);
+				final float newY = (float) (y + v.data[i]);
 
-				warpedImage[y][x] = getInterpolationPoint(image, newX, newY, boundZero);
+				warpedImage.data[i] = getInterpolationPoint(image, newX, newY, boundZero);
 			}
 		}
 
@@ -0,0 +1,29 @@
+package hs_pyrimidal;
+
+import utility.FloatGrid;
+
+/**
+ * 
+ * @author Connor Fox
+ * 
+ * A solver for the linear system of one warp.
+ */
+public interface LinearSolver
+{
+	/**
+	 * Solve the system in place, starting from the current values of u and v.
+	 * 
+	 * @param system The constants of the system
+	 * @param u x vector field
+	 * @param v y vector field
+	 * @param stopCrt Stop once the RMS change of the flow in one iteration drops to this value
+	 * @param maxIterations The most iterations to compute
+	 * @return The number of iterations computed
+	 */
+	public int solve(FlowSystem system, FloatGrid u, FloatGrid v, float stopCrt, int maxIterations);
+
+	/**
+	 * @return The RMS change of the flow in the last iteration of the last solve
+	 */
+	public float getError();
+}
@@ -0,0 +1,374 @@
+package hs_pyrimidal;
+
+import utility.FloatGrid;
+import utility.Parallel;
+
+/**
+ * 
+ * @author Connor Fox
+ * 
+ * Geometric multigrid for the coupled system of one warp. Each coarse level halves the grid, averages the data
+ * constants of its 2x2 children and divides alpha2 by 4 so the smoothness term keeps its meaning on the wider grid.
+ * Residuals are restricted by averaging and corrections prolonged bilinearly. Checkerboard Gauss-Seidel is used as
+ * the smoother, so a pool spreads the work over its threads.
+ * 
+ * One iteration is one V-cycle. With fullMultigrid set, the first iteration instead solves the residual equation
+ * from the coarsest level up, giving a good start before the remaining V-cycles.
+ */
+public class MultigridSolver implements LinearSolver
+{
+	// Smoothing sweeps before and after the coarse grid correction
+	public int						preSmooth		= 2;
+	public int						postSmooth		= 2;
+
+	// Levels are not coarsened below this size
+	public int						minSize			= 8;
+
+	// Sweeps used to solve the coarsest level
+	public int						coarseSweeps	= 50;
+
+	public boolean					fullMultigrid;
+
+	public static final float		SMOOTH_W		= 1.0f;
+	public static final float		COARSE_W		= 1.5f;
+
+	private final CheckerboardSOR	smoother;
+	private final Parallel		parallel;
+
+	private Level[]					levels;
+	private int						builtWidth, builtHeight;
+	private FloatGrid				lastU, lastV;
+	private float					error;
+
+	/**
+	 * A grid of the hierarchy. Level 0 solves for the flow, coarser levels for corrections.
+	 */
+	private static class Level
+	{
+		FlowSystem	sys;
+		FloatGrid	u, v;
+		FloatGrid	ru, rv;
+
+		/**
+		 * The finest level, which only owns its residuals, see build.
+		 */
+		Level()
+		{
+		}
+
+		Level(int height, int width)
+		{
+			sys = new FlowSystem(height, width);
+			u = new FloatGrid(height, width);
+			v = new FloatGrid(height, width);
+			ru = new FloatGrid(height, width);
+			rv = new FloatGrid(height, width);
+		}
+
+		/**
+		 * Change the size of the level, keeping its storage when it is large enough.
+		 */
+		void resize(int height, int width)
+		{
+			sys.resize(height, width);
+			u = FloatGrid.reuse(u, height, width);
+			v = FloatGrid.reuse(v, height, width);
+			ru = FloatGrid.reuse(ru, height, width);
+			rv = FloatGrid.reuse(rv, height, width);
+		}
+	}
+
+	/**
+	 * @param parallel How smoothing and residuals are run, or null to run single threaded
+	 */
+	public MultigridSolver(Parallel parallel)
+	{
+		this.parallel = (parallel == null) ? new Parallel(null, false) : parallel;
+		smoother = new CheckerboardSOR(this.parallel);
+	}
+
+	@Override
+	public int solve(FlowSystem system, FloatGrid u, FloatGrid v, float stopCrt, int maxIterations)
+	{
+		final int width = system.width;
+		final int height = system.height;
+
+		build(system, u, v);
+
+		int nIter = 0;
+		error = 1000;
+
+		// Repeat cycles until error is acceptable or max iterations reached
+		while (error > stopCrt && nIter < maxIterations)
+		{
+			lastU.copyFrom(u);
+			lastV.copyFrom(v);
+
+			if (nIter == 0 && fullMultigrid && levels.length > 1)
+			{
+				residual(0);
+				restrict(0, levels[0].ru, levels[0].rv, levels[1].sys.Au, levels[1].sys.Av, false);
+				fmg(1);
+				prolong(1);
+				vCycle(0);
+			}
+
+			else
+			{
+				vCycle(0);
+			}
+
+			nIter++;
+
+			double sum = 0;
+			for (int i = 0; i < width * height; i++)
+			{
+				final float du = u.data[i] - lastU.data[i];
+				final float dv = v.data[i] - lastV.data[i];
+				sum += du * du + dv * dv;
+			}
+
+			error = (float) Math.sqrt(sum / (width * height));
+		}
+
+		return nIter;
+	}
+
+	/**
+	 * Set up the hierarchy for the system, reusing the coarse grids when the size has not changed.
+	 */
+	private void build(FlowSystem system, FloatGrid u, FloatGrid v)
+	{
+		if (levels == null || builtWidth != system.width || builtHeight != system.height)
+		{
+			builtWidth = system.width;
+			builtHeight = system.height;
+
+			int n = 1;
+			for (int w = builtWidth, h = builtHeight; Math.min(w, h) > minSize; w = (w + 1) / 2, h = (h + 1) / 2)
+			{
+				n++;
+			}
+
+			// Grow or shrink the hierarchy, reusing the storage of the levels already there
+			Level[] old = (levels == null) ? new Level[0] : levels;
+			levels = new Level[n];
+
+			for (int i = 0, h = builtHeight, w = builtWidth; i < n; i++, h = (h + 1) / 2, w = (w + 1) / 2)
+			{
+				if (i == 0)
+				{
+					// Only the residuals of the finest level are ours, the rest belongs to the caller
+					levels[0] = (old.length > 0) ? old[0] : new Level();
+					levels[0].ru = FloatGrid.reuse(levels[0].ru, h, w);
+					levels[0].rv = FloatGrid.reuse(levels[0].rv, h, w);
+				}
+
+				else if (i < old.length)
+				{
+					levels[i] = old[i];
+					levels[i].resize(h, w);
+				}
+
+				else
+				{
+					levels[i] = new Level(h, w);
+				}
+			}
+
+			lastU = FloatGrid.reuse(lastU, builtHeight, builtWidth);
+			lastV = FloatGrid.reuse(lastV, builtHeight, builtWidth);
+		}
+
+		// The finest level works directly on the caller's system and flow
+		levels[0].sys = system;
+		levels[0].u = u;
+		levels[0].v = v;
+
+		for (int i = 1; i < levels.length; i++)
+		{
+			FlowSystem fine = levels[i - 1].sys;
+			FlowSystem coarse = levels[i].sys;
+
+			coarse.alpha2 = fine.alpha2 / 4;
+			coarse.omega = SMOOTH_W;
+			coarse.vectorKernels = fine.vectorKernels;
+
+			// Data terms are the diagonal constants without the smoothness weight
+			for (int y = 0; y < coarse.height; y++)
+			{
+				for (int x = 0; x < coarse.width; x++)
+				{
+					float du = 0, dv = 0, d = 0;
+					int count = 0;
+
+					for (int fy = 2 * y; fy < Math.min(2 * y + 2, fine.height); fy++)
+					{
+						for (int fx = 2 * x; fx < Math.min(2 * x + 2, fine.width); fx++)
+						{
+							final int f = fy * fine.width + fx;
+
+							du += fine.Du.data[f] - fine.alpha2;
+							dv += fine.Dv.data[f] - fine.alpha2;
+							d += fine.D.data[f];
+							count++;
+						}
+					}
+
+					final int c = y * coarse.width + x;
+
+					coarse.Du.data[c] = du / count + coarse.alpha2;
+					coarse.Dv.data[c] = dv / count + coarse.alpha2;
+					coarse.D.data[c] = d / count;
+				}
+			}
+		}
+	}
+
+	private void vCycle(int l)
+	{
+		Level level = levels[l];
+
+		if (l == levels.length - 1)
+		{
+			for (int i = 0; i < coarseSweeps; i++)
+			{
+				smoother.sweep(level.sys, level.u, level.v, COARSE_W);
+			}
+			return;
+		}
+
+		for (int i = 0; i < preSmooth; i++)
+		{
+			smoother.sweep(level.sys, level.u, level.v, SMOOTH_W);
+		}
+
+		// Coarse grid correction
+		residual(l);
+		restrict(l, level.ru, level.rv, levels[l + 1].sys.Au, levels[l + 1].sys.Av, false);
+		clear(levels[l + 1]);
+		vCycle(l + 1);
+		prolong(l + 1);
+
+		for (int i = 0; i < postSmooth; i++)
+		{
+			smoother.sweep(level.sys, level.u, level.v, SMOOTH_W);
+		}
+	}
+
+	/**
+	 * Solve level l from a zero start, using the coarser levels to find the start of each finer one.
+	 */
+	private void fmg(int l)
+	{
+		Level level = levels[l];
+		clear(level);
+
+		if (l < levels.length - 1)
+		{
+			restrict(l, level.sys.Au, level.sys.Av, levels[l + 1].sys.Au, levels[l + 1].sys.Av, true);
+			fmg(l + 1);
+			prolong(l + 1);
+		}
+
+		vCycle(l);
+	}
+
+	private double residual(final int l)
+	{
+		final Level level = levels[l];
+
+		return parallel.sum(0, level.sys.height, new Parallel.Rows()
+		{
+			@Override
+			public double compute(int from, int to)
+			{
+				return level.sys.residual(level.u, level.v, level.ru, level.rv, from, to);
+			}
+		});
+	}
+
+	/**
+	 * Average the fine values of every 2x2 block of level l into level l + 1, where the last row and column of an odd
+	 * sized fine grid have fewer children.
+	 * 
+	 * With average set, such a coarse cell divides by the children it has, as build does for the data constants. fmg
+	 * uses it for the right hand sides of the levels it solves one after another. The coarse grid correction of a
+	 * V-cycle instead counts missing children as zero, the transpose of prolong: dividing by the children there makes
+	 * the cycles diverge on grids with odd sizes.
+	 */
+	private void restrict(int l, FloatGrid fu, FloatGrid fv, FloatGrid cu, FloatGrid cv, boolean average)
+	{
+		final int fh = levels[l].sys.height;
+		final int fw = levels[l].sys.width;
+
+		final int cw = levels[l + 1].sys.width;
+
+		for (int y = 0; y < levels[l + 1].sys.height; y++)
+		{
+			final int y0 = 2 * y;
+			final int y1 = Math.min(y0 + 1, fh - 1);
+			final int r0 = y0 * fw;
+			final int r1 = y1 * fw;
+
+			for (int x = 0; x < cw; x++)
+			{
+				final int x0 = 2 * x;
+				final int x1 = Math.min(x0 + 1, fw - 1);
+				final float wx = (x0 + 1 < fw) ? 1 : 0;
+				final float wy = (y0 + 1 < fh) ? 1 : 0;
+				final float scale = average ? 1 / ((1 + wx) * (1 + wy)) : 0.25f;
+
+				cu.data[y * cw + x] = scale * (fu.data[r0 + x0] + wx * fu.data[r0 + x1] + wy * fu.data[r1 + x0] + wx * wy * fu.data[r1 + x1]);
+				cv.data[y * cw + x] = scale * (fv.data[r0 + x0] + wx * fv.data[r0 + x1] + wy * fv.data[r1 + x0] + wx * wy * fv.data[r1 + x1]);
+			}
+		}
+	}
+
+	/**
+	 * Add the bilinear interpolation of the correction on level l to the next finer level.
+	 */
+	private void prolong(int l)
+	{
+		final float[] cu = levels[l].u.data;
+		final float[] cv = levels[l].v.data;
+		final float[] fu = levels[l - 1].u.data;
+		final float[] fv = levels[l - 1].v.data;
+
+		final int ch = levels[l].sys.height;
+		final int cw = levels[l].sys.width;
+
+		final int fw = levels[l - 1].sys.width;
+
+		for (int y = 0; y < levels[l - 1].sys.height; y++)
+		{
+			// Fine pixel centres sit a quarter of a coarse pixel from the nearest coarse centre
+			final int y0 = y / 2;
+			final int y1 = Math.max(0, Math.min(ch - 1, (y % 2 == 0) ? y0 - 1 : y0 + 1));
+			final int r0 = y0 * cw;
+			final int r1 = y1 * cw;
+
+			for (int x = 0; x < fw; x++)
+			{
+				final int x0 = x / 2;
+				final int x1 = Math.max(0, Math.min(cw - 1, (x % 2 == 0) ? x0 - 1 : x0 + 1));
+				final int i = y * fw + x;
+
+				fu[i] += 0.5625f * cu[r0 + x0] + 0.1875f * (cu[r0 + x1] + cu[r1 + x0]) + 0.0625f * cu[r1 + x1];
+				fv[i] += 0.5625f * cv[r0 + x0] + 0.1875f * (cv[r0 + x1] + cv[r1 + x0]) + 0.0625f * cv[r1 + x1];
+			}
+		}
+	}
+
+	private void clear(Level level)
+	{
+		level.u.fill(0);
+		level.v.fill(0);
+	}
+
+	@Override
+	public float getError()
+	{
+		return error;
+	}
+}
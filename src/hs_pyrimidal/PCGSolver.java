@@ -0,0 +1,180 @@
+package hs_pyrimidal;
+
+import utility.FloatGrid;
+import utility.Parallel;
+
+/**
+ * 
+ * @author Connor Fox
+ * 
+ * Matrix free preconditioned conjugate gradients for the system of one warp. The system is symmetric positive
+ * definite, and the preconditioner inverts the 2x2 data block [Du D; D Dv] of every pixel. Each pass over the image
+ * only touches pixels independently, so the rows are spread over the pool without any ordering between them.
+ * 
+ * The error of an iteration is the RMS change of the flow, as for SOR.
+ */
+public class PCGSolver implements LinearSolver
+{
+	private final Parallel	parallel;
+
+	// Residual, preconditioned residual, search direction and its product with the matrix
+	private FloatGrid			ru, rv, zu, zv, pu, pv, qu, qv;
+	private float				error;
+
+	/**
+	 * @param parallel How the row passes are run, or null to run single threaded
+	 */
+	public PCGSolver(Parallel parallel)
+	{
+		this.parallel = (parallel == null) ? new Parallel(null, false) : parallel;
+	}
+
+	@Override
+	public int solve(final FlowSystem system, final FloatGrid u, final FloatGrid v, float stopCrt, int maxIterations)
+	{
+		final int width = system.width;
+		final int height = system.height;
+
+		// Keep the buffers of earlier, larger systems
+		ru = FloatGrid.reuse(ru, height, width);
+		rv = FloatGrid.reuse(rv, height, width);
+		zu = FloatGrid.reuse(zu, height, width);
+		zv = FloatGrid.reuse(zv, height, width);
+		pu = FloatGrid.reuse(pu, height, width);
+		pv = FloatGrid.reuse(pv, height, width);
+		qu = FloatGrid.reuse(qu, height, width);
+		qv = FloatGrid.reuse(qv, height, width);
+
+		// r = b - Ax, z = M^-1 r, p = z
+		parallel.sum(0, height, new Parallel.Rows()
+		{
+			@Override
+			public double compute(int from, int to)
+			{
+				return system.residual(u, v, ru, rv, from, to);
+			}
+		});
+
+		double rz = precondition(system);
+		double pp = parallel.sum(0, height, new Parallel.Rows()
+		{
+			@Override
+			public double compute(int from, int to)
+			{
+				double sum = 0;
+
+				for (int i = from * width; i < to * width; i++)
+				{
+					pu.data[i] = zu.data[i];
+					pv.data[i] = zv.data[i];
+					sum += pu.data[i] * pu.data[i] + pv.data[i] * pv.data[i];
+				}
+
+				return sum;
+			}
+		});
+
+		int nIter = 0;
+		error = 1000;
+
+		while (error > stopCrt && nIter < maxIterations && rz > 0)
+		{
+			nIter++;
+
+			// q = Ap
+			final double pq = parallel.sum(0, height, new Parallel.Rows()
+			{
+				@Override
+				public double compute(int from, int to)
+				{
+					return system.multiply(pu, pv, qu, qv, from, to);
+				}
+			});
+
+			if (pq <= 0) break;
+
+			final float alpha = (float) (rz / pq);
+			error = (float) (Math.abs(alpha) * Math.sqrt(pp / (width * height)));
+
+			// x += alpha p, r -= alpha q
+			parallel.sum(0, height, new Parallel.Rows()
+			{
+				@Override
+				public double compute(int from, int to)
+				{
+					for (int i = from * width; i < to * width; i++)
+					{
+						u.data[i] += alpha * pu.data[i];
+						v.data[i] += alpha * pv.data[i];
+						ru.data[i] -= alpha * qu.data[i];
+						rv.data[i] -= alpha * qv.data[i];
+					}
+
+					return 0;
+				}
+			});
+
+			final double rzNew = precondition(system);
+			final float beta = (float) (rzNew / rz);
+			rz = rzNew;
+
+			// p = z + beta p
+			pp = parallel.sum(0, height, new Parallel.Rows()
+			{
+				@Override
+				public double compute(int from, int to)
+				{
+					double sum = 0;
+
+					for (int i = from * width; i < to * width; i++)
+					{
+						pu.data[i] = zu.data[i] + beta * pu.data[i];
+						pv.data[i] = zv.data[i] + beta * pv.data[i];
+						sum += pu.data[i] * pu.data[i] + pv.data[i] * pv.data[i];
+					}
+
+					return sum;
+				}
+			});
+		}
+
+		return nIter;
+	}
+
+	/**
+	 * Compute z = M^-1 r by inverting the 2x2 block of every pixel.
+	 * 
+	 * @return The dot product of r and z
+	 */
+	private double precondition(final FlowSystem system)
+	{
+		return parallel.sum(0, system.height, new Parallel.Rows()
+		{
+			@Override
+			public double compute(int from, int to)
+			{
+				double sum = 0;
+
+				for (int i = from * system.width; i < to * system.width; i++)
+				{
+					final float a = system.Du.data[i];
+					final float b = system.D.data[i];
+					final float d = system.Dv.data[i];
+					final float det = a * d - b * b;
+
+					zu.data[i] = (d * ru.data[i] - b * rv.data[i]) / det;
+					zv.data[i] = (a * rv.data[i] - b * ru.data[i]) / det;
+					sum += ru.data[i] * zu.data[i] + rv.data[i] * zv.data[i];
+				}
+
+				return sum;
+			}
+		});
+	}
+
+	@Override
+	public float getError()
+	{
+		return error;
+	}
+}
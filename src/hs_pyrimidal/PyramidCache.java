@@ -0,0 +1,177 @@
+package hs_pyrimidal;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import utility.FloatGrid;
+import utility.Images;
+
+/**
+ *
+ * @author Connor Fox
+ *
+ * Keeps the pyramids built for pairs of frames, so that runs on the same frames with other solver settings, such as a
+ * sweep over alpha, build each pyramid only once. Set it as HornSchunckPyrimidal.pyramidCache.
+ *
+ * A pyramid is found by the content of its frames, not by the objects holding them: the key is a 64-bit hash of the
+ * size and every value of both frames, with dFactor, the number of scales, smoothing and the settings that change how a
+ * pyramid is built (fixedPoint, recursiveSmoothing and halfPrecision). Two different pairs of frames are only mistaken
+ * for each other when their hashes collide.
+ *
+ * The pyramids kept use at most maxBytes, beyond that the least recently used are dropped. The cached pyramids are
+ * shared by every run that finds them, so they must not be changed. All methods may be called from any thread.
+ */
+public class PyramidCache
+{
+	// Memory the cached pyramids may use, in bytes
+	public final long						maxBytes;
+
+	private final Map<String, Images[]>		pyramids	= new LinkedHashMap<String, Images[]>(16, 0.75f, true);
+	private long							bytes;
+	private long							hits, misses, evictions;
+
+	/**
+	 * @param maxBytes Memory the cached pyramids may use, in bytes
+	 */
+	public PyramidCache(long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Get the pyramid of two frames, building it with the settings of hsp when it is not cached.
+	 *
+	 * @param hsp
+	 * @param t1
+	 * @param t2
+	 * @param nScales
+	 * @param dFactor
+	 * @param smooth
+	 * @return The pyramid, as HornSchunckPyrimidal.createImagePyramid
+	 */
+	public Images[] get(HornSchunckPyrimidal hsp, FloatGrid t1, FloatGrid t2, int nScales, float dFactor, boolean smooth)
+	{
+		final String key = Long.toHexString(hash(t1, t2)) + "/" + Float.floatToIntBits(dFactor) + "/" + nScales + "/" + smooth + "/"
+				+ hsp.fixedPoint + "/" + hsp.recursiveSmoothing + "/" + hsp.halfPrecision;
+
+		synchronized (this)
+		{
+			Images[] pyramid = pyramids.get(key);
+
+			if (pyramid != null)
+			{
+				hits++;
+				return pyramid;
+			}
+
+			misses++;
+		}
+
+		// Built outside the lock, so other threads can use the cache meanwhile
+		Images[] pyramid = hsp.createImagePyramid(t1, t2, nScales, dFactor, smooth);
+		final long size = bytes(pyramid);
+
+		synchronized (this)
+		{
+			if (size <= maxBytes && !pyramids.containsKey(key))
+			{
+				pyramids.put(key, pyramid);
+				bytes += size;
+
+				// Drop the least recently used until the new pyramid fits
+				Iterator<Images[]> eldest = pyramids.values().iterator();
+
+				while (bytes > maxBytes)
+				{
+					bytes -= bytes(eldest.next());
+					eldest.remove();
+					evictions++;
+				}
+			}
+		}
+
+		return pyramid;
+	}
+
+	/**
+	 * Drop every cached pyramid. The counters are kept.
+	 */
+	public synchronized void clear()
+	{
+		pyramids.clear();
+		bytes = 0;
+	}
+
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	/**
+	 * @return Memory used by the cached pyramids, in bytes
+	 */
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	public synchronized int size()
+	{
+		return pyramids.size();
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "PyramidCache: " + pyramids.size() + " pyramids, " + (bytes >> 10) + " KiB, " + hits + " hits, " + misses + " misses, "
+				+ evictions + " evictions";
+	}
+
+	/**
+	 * FNV-1a over the size and the bits of every value of both frames.
+	 */
+	private static long hash(FloatGrid t1, FloatGrid t2)
+	{
+		long h = 0xcbf29ce484222325L;
+
+		for (FloatGrid frame : new FloatGrid[] { t1, t2 })
+		{
+			h = (h ^ frame.width) * 0x100000001b3L;
+			h = (h ^ frame.height) * 0x100000001b3L;
+
+			for (int i = 0; i < frame.size(); i++)
+			{
+				h = (h ^ Float.floatToRawIntBits(frame.data[i])) * 0x100000001b3L;
+			}
+		}
+
+		return h;
+	}
+
+	/**
+	 * The memory held by the frames and gradients of a pyramid, in single or half precision.
+	 */
+	private static long bytes(Images[] pyramid)
+	{
+		long size = 0;
+
+		for (Images level : pyramid)
+		{
+			final long pixels = (long) level.width * level.height;
+			size += (level.isCompressed() ? 2 : 4) * pixels * ((level.fb2x != null || level.hb2x != null) ? 4 : 2);
+		}
+
+		return size;
+	}
+}
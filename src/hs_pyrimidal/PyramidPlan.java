@@ -0,0 +1,378 @@
+package hs_pyrimidal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import utility.FloatGrid;
+import utility.Images;
+import utility.Parallel;
+import utility.VectorField;
+
+/**
+ *
+ * @author Connor Fox
+ *
+ * Everything about a pyramid that depends only on its size and settings: the size of every level, the smoothing
+ * kernels, and for each pair of neighbouring levels the source pixels and bicubic weights of every output column and
+ * row, to downsample and to upsample. Resampling with a plan is a pass along the rows and then a pass along the
+ * columns, each reading four taps from a table, instead of a 4x4 interpolation with its weights worked out per pixel.
+ *
+ * The tables sample the same positions, clamp the same way and use the same cubic as getInterpolationPoint, so a plan
+ * gives the results of downSample and upsample to within float rounding.
+ *
+ * Plans are cached by width, height, dFactor, nScales and smoothing, see get, so frames of a fixed size compute theirs
+ * once.
+ */
+public class PyramidPlan
+{
+	// Plans kept in the cache, beyond this the least recently used is dropped
+	public static final int							CACHE_SIZE	= 16;
+
+	private static final Map<String, PyramidPlan>	CACHE		= new LinkedHashMap<String, PyramidPlan>(CACHE_SIZE, 0.75f, true)
+																{
+																	private static final long	serialVersionUID	= -3170652294736187418L;
+
+																	@Override
+																	protected boolean removeEldestEntry(Map.Entry<String, PyramidPlan> eldest)
+																	{
+																		return size() > CACHE_SIZE;
+																	}
+																};
+
+	public final int								width, height, nScales;
+	public final float								dFactor;
+	public final boolean							smoothing;
+
+	// Size of every level, finest first
+	public final int[]								widths, heights;
+
+	// Half kernels of the pre-smoothing and of the smoothing before each downsample, centre first, or null without
+	// smoothing
+	public final float[]							presmoothKernel, downKernel;
+
+	// Tables from level i to level i + 1 and back, by i
+	private final Axis[]							downX, downY, upX, upY;
+
+	/**
+	 * Get the plan of a pyramid, from the cache when it has been computed before.
+	 *
+	 * @param width Width of the finest level
+	 * @param height Height of the finest level
+	 * @param dFactor
+	 * @param nScales
+	 * @param smoothing Whether the pyramid is smoothed, see HornSchunckPyrimidal.createPyramid
+	 * @return
+	 */
+	public static PyramidPlan get(int width, int height, float dFactor, int nScales, boolean smoothing)
+	{
+		final String key = width + "x" + height + "/" + Float.floatToIntBits(dFactor) + "/" + nScales + "/" + smoothing;
+
+		synchronized (CACHE)
+		{
+			PyramidPlan plan = CACHE.get(key);
+
+			if (plan == null)
+			{
+				plan = new PyramidPlan(width, height, dFactor, nScales, smoothing);
+				CACHE.put(key, plan);
+			}
+
+			return plan;
+		}
+	}
+
+	/**
+	 * Drop every cached plan.
+	 */
+	public static void clearCache()
+	{
+		synchronized (CACHE)
+		{
+			CACHE.clear();
+		}
+	}
+
+	private PyramidPlan(int width, int height, float dFactor, int nScales, boolean smoothing)
+	{
+		this.width = width;
+		this.height = height;
+		this.dFactor = dFactor;
+		this.nScales = nScales;
+		this.smoothing = smoothing;
+
+		widths = new int[nScales];
+		heights = new int[nScales];
+		widths[0] = width;
+		heights[0] = height;
+
+		// The sizes of HornSchunckPyrimidal.downSample
+		for (int i = 1; i < nScales; i++)
+		{
+			widths[i] = (int) ((float) widths[i - 1] * dFactor + 0.5);
+			heights[i] = (int) ((float) heights[i - 1] * dFactor + 0.5);
+		}
+
+		if (smoothing)
+		{
+			final float sigma = (float) (0.6f * Math.sqrt(((1.0 / (dFactor * dFactor))) - 1.0));
+			final float presmoothing = HornSchunckPyrimidal.PRESMOOTHING_SIGMA;
+
+			presmoothKernel = Images.createNormalizedKernel((int) (5 * presmoothing) + 1, presmoothing);
+			downKernel = Images.createNormalizedKernel((int) (5 * sigma) + 1, sigma);
+		}
+		else
+		{
+			presmoothKernel = downKernel = null;
+		}
+
+		final int n = Math.max(0, nScales - 1);
+		downX = new Axis[n];
+		downY = new Axis[n];
+		upX = new Axis[n];
+		upY = new Axis[n];
+
+		for (int i = 0; i < n; i++)
+		{
+			downX[i] = new Axis(widths[i], widths[i + 1], dFactor);
+			downY[i] = new Axis(heights[i], heights[i + 1], dFactor);
+
+			// The factors of HornSchunckPyrimidal.upsample
+			upX[i] = new Axis(widths[i + 1], widths[i], (float) widths[i] / widths[i + 1]);
+			upY[i] = new Axis(heights[i + 1], heights[i], (float) heights[i] / heights[i + 1]);
+		}
+	}
+
+	/**
+	 * Whether the levels of a pyramid have the sizes of this plan.
+	 *
+	 * @param scales
+	 * @return
+	 */
+	public boolean fits(Images[] scales)
+	{
+		if (scales.length != nScales) return false;
+
+		for (int i = 0; i < nScales; i++)
+		{
+			if (scales[i].width != widths[i] || scales[i].height != heights[i]) return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Resample an image at a level to the next coarser level, without smoothing it.
+	 *
+	 * @param image An image with the size of the level
+	 * @param level
+	 * @param parallel
+	 * @param scratch Holds the pass along the rows, reused if large enough (see FloatGrid.reuse), may be null
+	 * @return A new image at level + 1
+	 */
+	public FloatGrid downSample(FloatGrid image, int level, Parallel parallel, FloatGrid scratch)
+	{
+		check(image, level);
+
+		FloatGrid scaled = new FloatGrid(heights[level + 1], widths[level + 1]);
+		resample(image, scaled, downX[level], downY[level], parallel, scratch);
+
+		return scaled;
+	}
+
+	/**
+	 * Resample a field at level + 1 to the next finer level. The vectors are not rescaled.
+	 *
+	 * @param field A field with the size of level + 1
+	 * @param level
+	 * @param out A grid with the size of the level to write to
+	 * @param parallel
+	 * @param scratch Holds the pass along the rows, reused if large enough (see FloatGrid.reuse), may be null
+	 */
+	public void upsample(FloatGrid field, int level, FloatGrid out, Parallel parallel, FloatGrid scratch)
+	{
+		check(field, level + 1);
+		check(out, level);
+
+		resample(field, out, upX[level], upY[level], parallel, scratch);
+	}
+
+	/**
+	 * Resample a flow at level + 1 to the next finer level and scale its vectors, both components in the same passes.
+	 *
+	 * @param flow A flow with the size of level + 1
+	 * @param level
+	 * @param out A flow with the size of the level to write to
+	 * @param scale The factor to multiply the vectors by, 1 / dFactor between levels
+	 * @param parallel
+	 * @param scratch Holds the pass along the rows, reused if large enough (see FloatGrid.reuse), may be null
+	 */
+	public void upsample(VectorField flow, int level, VectorField out, float scale, Parallel parallel, VectorField scratch)
+	{
+		check(flow.u, level + 1);
+		check(out.u, level);
+
+		resample(flow, out, upX[level], upY[level], scale, parallel, scratch);
+	}
+
+	private void check(FloatGrid grid, int level)
+	{
+		if (grid.width != widths[level] || grid.height != heights[level])
+			throw new IllegalArgumentException("Grid is " + grid.width + "x" + grid.height + ", level " + level + " of the plan is "
+					+ widths[level] + "x" + heights[level] + ".");
+	}
+
+	/**
+	 * Resample a grid along its rows into a scratch grid, then along the columns of that into the output.
+	 *
+	 * @param src
+	 * @param dst
+	 * @param ax The table from the width of src to the width of dst
+	 * @param ay The table from the height of src to the height of dst
+	 * @param parallel
+	 * @param scratch
+	 */
+	public static void resample(FloatGrid src, FloatGrid dst, Axis ax, Axis ay, Parallel parallel, FloatGrid scratch)
+	{
+		resample(new FloatGrid[] { src }, new FloatGrid[] { dst }, ax, ay, 1, parallel, new FloatGrid[] { scratch });
+	}
+
+	/**
+	 * Resample both components of a flow and multiply them by a scale, see resample.
+	 *
+	 * @param src
+	 * @param dst
+	 * @param ax The table from the width of src to the width of dst
+	 * @param ay The table from the height of src to the height of dst
+	 * @param scale
+	 * @param parallel
+	 * @param scratch May be null
+	 */
+	public static void resample(VectorField src, VectorField dst, Axis ax, Axis ay, float scale, Parallel parallel, VectorField scratch)
+	{
+		FloatGrid[] buffers = (scratch == null) ? new FloatGrid[2] : new FloatGrid[] { scratch.u, scratch.v };
+		resample(new FloatGrid[] { src.u, src.v }, new FloatGrid[] { dst.u, dst.v }, ax, ay, scale, parallel, buffers);
+	}
+
+	/**
+	 * Resample grids of the same size along their rows into scratch grids, then along the columns of those into the
+	 * outputs, multiplying by a scale on the way. Each pass goes through every grid a row at a time.
+	 */
+	private static void resample(final FloatGrid[] src, final FloatGrid[] dst, final Axis ax, final Axis ay, float scale,
+			Parallel parallel, FloatGrid[] scratch)
+	{
+		final int h = src[0].height;
+		final int w = src[0].width;
+		final int nw = dst[0].width;
+		final float[][] rows = new float[src.length][];
+
+		for (int c = 0; c < src.length; c++)
+		{
+			rows[c] = FloatGrid.reuse(scratch[c], h, nw).data;
+		}
+
+		// The scale goes into the weights of the columns
+		final float[] wy = new float[ay.weight.length];
+
+		for (int i = 0; i < wy.length; i++)
+		{
+			wy[i] = ay.weight[i] * scale;
+		}
+
+		// along the rows, every row of the source
+		parallel.sum(0, h, new Parallel.Rows()
+		{
+			@Override
+			public double compute(int from, int to)
+			{
+				final int[] index = ax.index;
+				final float[] weight = ax.weight;
+
+				for (int y = from; y < to; y++)
+				{
+					final int row = y * w;
+
+					for (int c = 0; c < src.length; c++)
+					{
+						final float[] in = src[c].data;
+						final float[] out = rows[c];
+
+						for (int x = 0; x < nw; x++)
+						{
+							final int t = 4 * x;
+
+							out[y * nw + x] = in[row + index[t]] * weight[t] + in[row + index[t + 1]] * weight[t + 1]
+									+ in[row + index[t + 2]] * weight[t + 2] + in[row + index[t + 3]] * weight[t + 3];
+						}
+					}
+				}
+
+				return 0;
+			}
+		});
+
+		// along the columns, four rows at a time
+		parallel.sum(0, dst[0].height, new Parallel.Rows()
+		{
+			@Override
+			public double compute(int from, int to)
+			{
+				for (int y = from; y < to; y++)
+				{
+					final int t = 4 * y;
+					final int r0 = ay.index[t] * nw, r1 = ay.index[t + 1] * nw, r2 = ay.index[t + 2] * nw, r3 = ay.index[t + 3] * nw;
+					final float w0 = wy[t], w1 = wy[t + 1], w2 = wy[t + 2], w3 = wy[t + 3];
+					final int row = y * nw;
+
+					for (int c = 0; c < dst.length; c++)
+					{
+						final float[] in = rows[c];
+						final float[] out = dst[c].data;
+
+						for (int x = 0; x < nw; x++)
+						{
+							out[row + x] = in[r0 + x] * w0 + in[r1 + x] * w1 + in[r2 + x] * w2 + in[r3 + x] * w3;
+						}
+					}
+				}
+
+				return 0;
+			}
+		});
+	}
+
+	/**
+	 * The source pixels and cubic weights of every output position along one side of a resampling. The output position o
+	 * samples the source at o / scale.
+	 */
+	public static final class Axis
+	{
+		// Four clamped source positions and four weights per output position
+		public final int[]		index;
+		public final float[]	weight;
+
+		public Axis(int size, int n, float scale)
+		{
+			index = new int[4 * n];
+			weight = new float[4 * n];
+
+			for (int o = 0; o < n; o++)
+			{
+				final float p = (float) o / scale;
+				final int base = (int) p;
+
+				// The fraction is taken from the clamped position, as getInterpolationPoint does
+				final double t = p - Math.max(0, Math.min(size - 1, base));
+
+				// Catmull-Rom weights, as Interpolator.getCubic
+				final double[] c = { (-t * t * t + 2 * t * t - t) / 2, (3 * t * t * t - 5 * t * t + 2) / 2,
+						(-3 * t * t * t + 4 * t * t + t) / 2, (t * t * t - t * t) / 2 };
+
+				for (int k = 0; k < 4; k++)
+				{
+					index[4 * o + k] = Math.max(0, Math.min(size - 1, base - 1 + k));
+					weight[4 * o + k] = (float) c[k];
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package hs_pyrimidal;
+
+import utility.FloatGrid;
+
+/**
+ * 
+ * @author Connor Fox
+ * 
+ * Single threaded SOR visiting the pixels in row order.
+ */
+public class SORSolver implements LinearSolver
+{
+	private float	error;
+
+	@Override
+	public int solve(FlowSystem system, FloatGrid u, FloatGrid v, float stopCrt, int maxIterations)
+	{
+		final int width = system.width;
+		final int height = system.height;
+
+		int nIter = 0;
+		error = 1000;
+
+		// Repeat SOR until error is acceptable or max iterations reached
+		while (error > stopCrt && nIter < maxIterations)
+		{
+			nIter++;
+			error = 0;
+
+			// Do 1 SOR computation for every flow value in the image
+			for (int y = 0; y < height; y++)
+			{
+				error += system.relaxRow(u, v, y, 0, 1, system.omega);
+			}
+
+			// total error this iteration
+			error = (float) Math.sqrt(error / (width * height));
+		}
+
+		return nIter;
+	}
+
+	@Override
+	public float getError()
+	{
+		return error;
+	}
+}
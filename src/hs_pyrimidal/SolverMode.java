@@ -0,0 +1,31 @@
+package hs_pyrimidal;
+
+/**
+ * 
+ * @author Connor Fox
+ * 
+ * The linear solvers available to HornSchunckPyrimidal.
+ */
+public enum SolverMode
+{
+	// Single threaded SOR in row order
+	SOR,
+
+	// SOR in row order, several sweeps per pass over the image to stay in cache
+	WAVEFRONT_SOR,
+
+	// SOR in row order that stops relaxing tiles once they have converged
+	ACTIVE_SET_SOR,
+
+	// SOR in checkerboard order, spread over the thread pool
+	CHECKERBOARD_SOR,
+
+	// Multigrid V-cycles with checkerboard smoothing
+	MULTIGRID,
+
+	// A full multigrid cycle followed by V-cycles
+	FULL_MULTIGRID,
+
+	// Conjugate gradients with a 2x2 block Jacobi preconditioner
+	PCG
+}
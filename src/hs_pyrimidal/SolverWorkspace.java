@@ -0,0 +1,151 @@
+package hs_pyrimidal;
+
+import utility.FloatGrid;
+import utility.Parallel;
+import utility.VectorField;
+
+/**
+ * 
+ * @author Connor Fox
+ * 
+ * The buffers used while computing the flow of a pyramid: the gradients of the second frame, the warped images, the
+ * constants of the linear system, the solver with its own scratch space, and the flow of two levels. Every buffer is
+ * sized for the largest level seen so far and each smaller level uses a view of its front, so once a workspace has
+ * seen the finest level, further levels and runs allocate nothing but small views.
+ * 
+ * The flow is kept in two pairs of buffers used in turn: the level being solved and the level being upsampled to.
+ * Peak memory is therefore two levels of flow, one set of constants and the warp and gradient buffers.
+ * 
+ * A workspace may only be used by one thread at a time. local() gives each thread its own.
+ */
+public class SolverWorkspace
+{
+	private static final ThreadLocal<SolverWorkspace>	LOCAL	= new ThreadLocal<SolverWorkspace>()
+	{
+		@Override
+		protected SolverWorkspace initialValue()
+		{
+			return new SolverWorkspace();
+		}
+	};
+
+	public final FlowSystem								system	= new FlowSystem(0, 0);
+	public final WarpEngine								warper	= new WarpEngine(null);
+
+	// Gradients of the second frame
+	private FloatGrid									t2x, t2y;
+
+	// A level of the pyramid converted from half precision: both frames and the gradients
+	private final FloatGrid[]							images	= new FloatGrid[4];
+
+	// The pass along the rows when upsampling the flow, see PyramidPlan.resample
+	private final FloatGrid[]							resample	= new FloatGrid[2];
+
+	// Flow of the two levels in use
+	private final FloatGrid[]							flowU	= new FloatGrid[2];
+	private final FloatGrid[]							flowV	= new FloatGrid[2];
+
+	// The solver and the settings it was created with
+	private LinearSolver								solver;
+	private SolverMode									solverMode;
+	private Parallel									parallel;
+
+	/**
+	 * @return The workspace of the calling thread
+	 */
+	public static SolverWorkspace local()
+	{
+		return LOCAL.get();
+	}
+
+	/**
+	 * Size every buffer for a level of the given size, so that no smaller level has to allocate.
+	 * 
+	 * @param height
+	 * @param width
+	 */
+	public void reserve(int height, int width)
+	{
+		system.resize(height, width);
+		warper.resize(height, width);
+		gradientX(height, width);
+		gradientY(height, width);
+		flow(0, height, width);
+		flow(1, height, width);
+		resample(height, width);
+	}
+
+	public FloatGrid gradientX(int height, int width)
+	{
+		return t2x = FloatGrid.reuse(t2x, height, width);
+	}
+
+	public FloatGrid gradientY(int height, int width)
+	{
+		return t2y = FloatGrid.reuse(t2y, height, width);
+	}
+
+	/**
+	 * Get one of the buffers a compressed level is converted into. Its values are left as they were.
+	 * 
+	 * @param k Which buffer: 0 and 1 for the frames, 2 and 3 for the gradients
+	 * @param height
+	 * @param width
+	 * @return
+	 */
+	public FloatGrid image(int k, int height, int width)
+	{
+		return images[k] = FloatGrid.reuse(images[k], height, width);
+	}
+
+	/**
+	 * Get the buffers of the pass along the rows of a resampling of the flow. Their values are left as they were.
+	 * 
+	 * @param height
+	 * @param width
+	 * @return
+	 */
+	public VectorField resample(int height, int width)
+	{
+		resample[0] = FloatGrid.reuse(resample[0], height, width);
+		resample[1] = FloatGrid.reuse(resample[1], height, width);
+
+		return new VectorField(resample[0], resample[1]);
+	}
+
+	/**
+	 * Get one of the two flow buffers at the given size. Its values are left as they were.
+	 * 
+	 * @param k Which buffer, 0 or 1
+	 * @param height
+	 * @param width
+	 * @return
+	 */
+	public VectorField flow(int k, int height, int width)
+	{
+		flowU[k] = FloatGrid.reuse(flowU[k], height, width);
+		flowV[k] = FloatGrid.reuse(flowV[k], height, width);
+
+		return new VectorField(flowU[k], flowV[k]);
+	}
+
+	/**
+	 * Get the solver for the given settings, creating it only when they have changed since the last call.
+	 * 
+	 * @param hsp The settings
+	 * @return
+	 */
+	public LinearSolver getSolver(HornSchunckPyrimidal hsp)
+	{
+		Parallel p = hsp.getParallel();
+
+		if (solver == null || solverMode != hsp.solverMode || parallel != p)
+		{
+			solver = hsp.createSolver();
+			solverMode = hsp.solverMode;
+			parallel = p;
+		}
+
+		return solver;
+	}
+}
@@ -0,0 +1,303 @@
+package hs_pyrimidal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import utility.FloatGrid;
+import utility.Images;
+import utility.VectorField;
+
+/**
+ * 
+ * @author Connor Fox
+ * 
+ * Computes the flow of a frame too large to solve in one piece by solving overlapping tiles, so that only the tiles
+ * being solved need their pyramids, constants and warped images in memory.
+ * 
+ * The frame is cut into core tiles. Each tile is solved as a region of interest (see HornSchunckPyrimidal.run with a
+ * region) that reaches overlap / 2 pixels into its neighbours, plus roiMargin pixels of context that are solved but
+ * thrown away. Within the overlap the flows of neighbouring tiles are blended with linear ramps that add up to one, so
+ * there is no visible seam where the tiles disagree a little. The tile size is chosen so that the memory of one tile,
+ * margin included, stays within memoryBudget.
+ * 
+ * Every tile is a task on a fork/join pool, whose idle workers steal the tiles left. Each worker solves its tiles with
+ * its own copy of the settings and its own workspace.
+ */
+public class TiledFlow
+{
+	// Bytes used per pixel of a tile while it is solved: frames, gradients and flow over every scale, the constants of
+	// the linear system, the warped images and the scratch of the smoothing
+	public static final int				BYTES_PER_PIXEL	= 128;
+
+	// Smallest core tile, in pixels along each side
+	public static final int				MIN_TILE		= 64;
+
+	// Memory one tile may use while it is solved, in bytes
+	public long							memoryBudget	= 64L << 20;
+
+	// Width of the band in which neighbouring tiles are blended, at most the smallest core tile (MIN_TILE / 2 always
+	// fits, as the tiles are spread evenly)
+	public int							overlap			= 32;
+
+	// Number of tiles solved at the same time
+	public int							nThreads		= Runtime.getRuntime().availableProcessors();
+
+	private final HornSchunckPyrimidal	settings;
+
+	// Core tile size and seams of the last run
+	private int							tile;
+	private int[]						seamsX, seamsY;
+
+	/**
+	 * @param hsp The settings to solve every tile with, roiMargin included
+	 */
+	public TiledFlow(HornSchunckPyrimidal hsp)
+	{
+		settings = hsp.copySettings();
+		settings.nThreads = 1;
+	}
+
+	/**
+	 * The side of a core tile for the given budget.
+	 * 
+	 * @return
+	 */
+	public int getTileSize()
+	{
+		final int side = (int) Math.sqrt((double) memoryBudget / BYTES_PER_PIXEL);
+		return Math.max(MIN_TILE, side - 2 * settings.roiMargin - overlap);
+	}
+
+	/**
+	 * Compute the flow from t1 to t2 tile by tile.
+	 * 
+	 * @param t1
+	 * @param t2
+	 * @return
+	 */
+	public VectorField run(final FloatGrid t1, final FloatGrid t2)
+	{
+		final int width = t1.width;
+		final int height = t1.height;
+
+		tile = getTileSize();
+		seamsX = seams(width);
+		seamsY = seams(height);
+
+		// The ramps only add up to one when no core is narrower than the band they blend over
+		final int smallest = Math.min(smallestCore(seamsX, width), smallestCore(seamsY, height));
+
+		if (overlap < 0 || overlap > smallest)
+			throw new IllegalStateException("Overlap " + overlap + " does not fit the smallest tile of " + smallest + " pixels.");
+
+		final float[] range = Images.greyscaleRange(t1, t2);
+		final VectorField flow = new VectorField(height, width);
+
+		// The copies keep nThreads at 1, so each solves its tile on its own worker without a pool
+		final List<HornSchunckPyrimidal> copies = new ArrayList<HornSchunckPyrimidal>();
+		final ThreadLocal<HornSchunckPyrimidal> local = new ThreadLocal<HornSchunckPyrimidal>()
+		{
+			@Override
+			protected HornSchunckPyrimidal initialValue()
+			{
+				HornSchunckPyrimidal copy = settings.copySettings();
+
+				synchronized (copies)
+				{
+					copies.add(copy);
+				}
+
+				return copy;
+			}
+		};
+
+		final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+
+		for (int ty = 0; ty <= seamsY.length; ty++)
+		{
+			for (int tx = 0; tx <= seamsX.length; tx++)
+			{
+				final int x0 = (tx == 0) ? 0 : seamsX[tx - 1];
+				final int x1 = (tx == seamsX.length) ? width : seamsX[tx];
+				final int y0 = (ty == 0) ? 0 : seamsY[ty - 1];
+				final int y1 = (ty == seamsY.length) ? height : seamsY[ty];
+
+				tasks.add(new RecursiveAction()
+				{
+					private static final long	serialVersionUID	= 4409318532750136208L;
+
+					@Override
+					protected void compute()
+					{
+						solveTile(local.get(), t1, t2, range, flow, x0, y0, x1, y1);
+					}
+				});
+			}
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, nThreads));
+
+		try
+		{
+			pool.invoke(new RecursiveAction()
+			{
+				private static final long	serialVersionUID	= -2209547161366004773L;
+
+				@Override
+				protected void compute()
+				{
+					invokeAll(tasks);
+				}
+			});
+		}
+		finally
+		{
+			pool.shutdown();
+
+			for (HornSchunckPyrimidal copy : copies)
+			{
+				copy.shutdown();
+			}
+		}
+
+		return flow;
+	}
+
+	/**
+	 * Solve the tile with core [x0, x1) x [y0, y1) and blend it into the flow.
+	 */
+	private void solveTile(HornSchunckPyrimidal hsp, FloatGrid t1, FloatGrid t2, float[] range, VectorField flow, int x0, int y0,
+			int x1, int y1)
+	{
+		final int half = overlap / 2;
+
+		// The tile reaches half the overlap into its neighbours, but not past the frame
+		final int bx0 = Math.max(0, x0 - half);
+		final int by0 = Math.max(0, y0 - half);
+		final int bx1 = Math.min(t1.width, x1 + half);
+		final int by1 = Math.min(t1.height, y1 + half);
+
+		VectorField tileFlow = hsp.run(t1, t2, range, bx0, by0, bx1 - bx0, by1 - by0);
+
+		final float[] wx = ramp(bx0, bx1, x0, x1, t1.width);
+		final float[] wy = ramp(by0, by1, y0, y1, t1.height);
+		final int w = bx1 - bx0;
+
+		// Neighbouring tiles write the same pixels of the overlap
+		synchronized (flow)
+		{
+			for (int y = by0; y < by1; y++)
+			{
+				final int row = y * flow.u.width;
+				final int tileRow = (y - by0) * w;
+
+				for (int x = bx0; x < bx1; x++)
+				{
+					final float weight = wx[x - bx0] * wy[y - by0];
+
+					flow.u.data[row + x] += weight * tileFlow.u.data[tileRow + x - bx0];
+					flow.v.data[row + x] += weight * tileFlow.v.data[tileRow + x - bx0];
+				}
+			}
+		}
+	}
+
+	/**
+	 * The blending weights along one side of a tile: one over the core, falling linearly across the overlap, so that
+	 * the weights of two neighbouring tiles add up to one. There is no ramp at the edges of the frame.
+	 */
+	private float[] ramp(int b0, int b1, int c0, int c1, int size)
+	{
+		final int half = overlap / 2;
+		float[] weights = new float[b1 - b0];
+
+		for (int i = b0; i < b1; i++)
+		{
+			float weight = 1;
+
+			if (c0 > 0 && i < c0 + half) weight = (i - (c0 - half) + 0.5f) / (2 * half);
+			else if (c1 < size && i >= c1 - half) weight = ((c1 + half) - i - 0.5f) / (2 * half);
+
+			weights[i - b0] = Math.max(0, Math.min(1, weight));
+		}
+
+		return weights;
+	}
+
+	/**
+	 * The positions of the seams between core tiles along a side of the given length.
+	 */
+	private int[] seams(int length)
+	{
+		final int nTiles = Math.max(1, (length + tile - 1) / tile);
+		int[] seams = new int[nTiles - 1];
+
+		// Spread the length evenly, so the last tile is not a sliver
+		for (int i = 1; i < nTiles; i++)
+		{
+			seams[i - 1] = (int) ((long) length * i / nTiles);
+		}
+
+		return seams;
+	}
+
+	/**
+	 * The narrowest core tile between the given seams, or the whole length when there are none.
+	 */
+	private static int smallestCore(int[] seams, int length)
+	{
+		int smallest = length;
+		int start = 0;
+
+		for (int seam : seams)
+		{
+			smallest = Math.min(smallest, seam - start);
+			start = seam;
+		}
+
+		return (seams.length == 0) ? Integer.MAX_VALUE : Math.min(smallest, length - start);
+	}
+
+	/**
+	 * The mean distance between the flow of the last run and a flow of the whole frame, over the pixels within half the
+	 * overlap of a seam between tiles.
+	 * 
+	 * @param tiled The flow of the last run
+	 * @param whole The flow of the same frames solved in one piece
+	 * @return The mean endpoint distance at the seams, or 0 when the frame was a single tile
+	 */
+	public double getSeamError(VectorField tiled, VectorField whole)
+	{
+		final int half = Math.max(1, overlap / 2);
+		double sum = 0;
+		long count = 0;
+
+		for (int y = 0; y < tiled.u.height; y++)
+		{
+			final boolean seamY = nearSeam(y, seamsY, half);
+
+			for (int x = 0; x < tiled.u.width; x++)
+			{
+				if (!seamY && !nearSeam(x, seamsX, half)) continue;
+
+				final int i = y * tiled.u.width + x;
+				sum += Math.hypot(tiled.u.data[i] - whole.u.data[i], tiled.v.data[i] - whole.v.data[i]);
+				count++;
+			}
+		}
+
+		return (count == 0) ? 0 : sum / count;
+	}
+
+	private boolean nearSeam(int i, int[] seams, int half)
+	{
+		for (int seam : seams)
+		{
+			if (i >= seam - half && i < seam + half) return true;
+		}
+
+		return false;
+	}
+}
@@ -0,0 +1,206 @@
+package hs_pyrimidal;
+
+import utility.FloatGrid;
+import utility.Parallel;
+
+/**
+ * 
+ * @author Connor Fox
+ * 
+ * Warps an image and its two gradients along a flow field in one pass. The bicubic neighbourhood and the cubic weights
+ * of each pixel are found once and applied to all three sources, and the results go into buffers that are kept between
+ * calls, so a warp allocates nothing once the buffers are large enough for the image.
+ * 
+ * Pixels whose whole 4x4 neighbourhood lies inside the image take a branch free path. The rest take a border path
+ * that clamps every sample like HornSchunckPyrimidal.getInterpolationPoint, including its mirroring of the
+ * neighbourhood for negative coordinates, and give zero when boundZero is set and a sample was clamped.
+ */
+public class WarpEngine
+{
+	// I2(x + h), I2x(x + h), I2y(x + h)
+	public FloatGrid		warped, warpedX, warpedY;
+
+	// How the rows are run
+	public Parallel			parallel;
+
+	/**
+	 * @param parallel How the rows are run, or null to run single threaded
+	 */
+	public WarpEngine(Parallel parallel)
+	{
+		this.parallel = (parallel == null) ? new Parallel(null, false) : parallel;
+	}
+
+	/**
+	 * Size the output buffers for an image, keeping their storage when it is large enough.
+	 * 
+	 * @param height
+	 * @param width
+	 */
+	public void resize(int height, int width)
+	{
+		warped = FloatGrid.reuse(warped, height, width);
+		warpedX = FloatGrid.reuse(warpedX, height, width);
+		warpedY = FloatGrid.reuse(warpedY, height, width);
+	}
+
+	/**
+	 * Warp an image and its gradients into warped, warpedX and warpedY.
+	 * 
+	 * @param image The image to be warped
+	 * @param imageX The x gradient of the image
+	 * @param imageY The y gradient of the image
+	 * @param u The x component of the warping vector field
+	 * @param v The y component of the warping vector field
+	 * @param boundZero Whether to use a zero boundary condition for points outside the image area
+	 */
+	public void warp(final FloatGrid image, final FloatGrid imageX, final FloatGrid imageY, final FloatGrid u, final FloatGrid v,
+			final boolean boundZero)
+	{
+		resize(image.height, image.width);
+
+		parallel.sum(0, image.height, new Parallel.Rows()
+		{
+			@Override
+			public double compute(int from, int to)
+			{
+				warpRows(image.data, imageX.data, imageY.data, u.data, v.data, image.width, image.height, boundZero, from, to);
+				return 0;
+			}
+		});
+	}
+
+	private void warpRows(final float[] img, final float[] imgX, final float[] imgY, final float[] u, final float[] v, final int w,
+			final int h, final boolean boundZero, final int from, final int to)
+	{
+		final float[] out = warped.data;
+		final float[] outX = warpedX.data;
+		final float[] outY = warpedY.data;
+
+		for (int y = from; y < to; y++)
+		{
+			for (int x = 0; x < w; x++)
+			{
+				final int i = y * w + x;
+				final float px = x + u[i];
+				final float py = y + v[i];
+
+				final int xi = (int) px;
+				final int yi = (int) py;
+
+				// Interior: the whole neighbourhood is in the image
+				if (xi >= 1 && yi >= 1 && xi + 2 < w && yi + 2 < h)
+				{
+					final double tx = px - xi;
+					final double ty = py - yi;
+
+					final double wx0 = tx * (-1 + tx * (2 - tx)) / 2.0;
+					final double wx1 = 1 + tx * tx * (-5 + 3 * tx) / 2.0;
+					final double wx2 = tx * (1 + tx * (4 - 3 * tx)) / 2.0;
+					final double wx3 = tx * tx * (-1 + tx) / 2.0;
+
+					final double wy0 = ty * (-1 + ty * (2 - ty)) / 2.0;
+					final double wy1 = 1 + ty * ty * (-5 + 3 * ty) / 2.0;
+					final double wy2 = ty * (1 + ty * (4 - 3 * ty)) / 2.0;
+					final double wy3 = ty * ty * (-1 + ty) / 2.0;
+
+					final int r0 = (yi - 1) * w + xi - 1;
+					final int r1 = r0 + w;
+					final int r2 = r1 + w;
+					final int r3 = r2 + w;
+
+					out[i] = (float) interpolate(img, r0, r1, r2, r3, wx0, wx1, wx2, wx3, wy0, wy1, wy2, wy3);
+					outX[i] = (float) interpolate(imgX, r0, r1, r2, r3, wx0, wx1, wx2, wx3, wy0, wy1, wy2, wy3);
+					outY[i] = (float) interpolate(imgY, r0, r1, r2, r3, wx0, wx1, wx2, wx3, wy0, wy1, wy2, wy3);
+				}
+
+				else
+				{
+					warpBorder(img, imgX, imgY, w, h, px, py, boundZero, i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Apply the separable weights to a contiguous 4x4 block given by the offsets of its rows.
+	 */
+	private static double interpolate(final float[] s, final int r0, final int r1, final int r2, final int r3, final double wx0,
+			final double wx1, final double wx2, final double wx3, final double wy0, final double wy1, final double wy2, final double wy3)
+	{
+		final double c0 = wy0 * s[r0] + wy1 * s[r1] + wy2 * s[r2] + wy3 * s[r3];
+		final double c1 = wy0 * s[r0 + 1] + wy1 * s[r1 + 1] + wy2 * s[r2 + 1] + wy3 * s[r3 + 1];
+		final double c2 = wy0 * s[r0 + 2] + wy1 * s[r1 + 2] + wy2 * s[r2 + 2] + wy3 * s[r3 + 2];
+		final double c3 = wy0 * s[r0 + 3] + wy1 * s[r1 + 3] + wy2 * s[r2 + 3] + wy3 * s[r3 + 3];
+
+		return wx0 * c0 + wx1 * c1 + wx2 * c2 + wx3 * c3;
+	}
+
+	/**
+	 * Warp one pixel whose neighbourhood leaves the image, clamping every sample to the border.
+	 */
+	private void warpBorder(final float[] img, final float[] imgX, final float[] imgY, final int w, final int h, final double px,
+			final double py, final boolean boundZero, final int i)
+	{
+		final int sx = (px < 0) ? -1 : 1;
+		final int sy = (py < 0) ? -1 : 1;
+		final int xi = (int) px;
+		final int yi = (int) py;
+
+		final int x0 = clamp(xi - sx, w), x1 = clamp(xi, w), x2 = clamp(xi + sx, w), x3 = clamp(xi + 2 * sx, w);
+		final int y0 = clamp(yi - sy, h), y1 = clamp(yi, h), y2 = clamp(yi + sy, h), y3 = clamp(yi + 2 * sy, h);
+
+		// The third row reads its last sample at xi + 2 whatever the direction, as getInterpolationPoint does
+		final int x32 = clamp(xi + 2, w);
+
+		final boolean out = x0 != xi - sx || x1 != xi || x2 != xi + sx || x3 != xi + 2 * sx || y0 != yi - sy || y1 != yi || y2 != yi + sy
+				|| y3 != yi + 2 * sy || x32 != xi + 2;
+
+		if (out && boundZero)
+		{
+			warped.data[i] = 0;
+			warpedX.data[i] = 0;
+			warpedY.data[i] = 0;
+			return;
+		}
+
+		final double tx = px - x1;
+		final double ty = py - y1;
+
+		final double wx0 = tx * (-1 + tx * (2 - tx)) / 2.0;
+		final double wx1 = 1 + tx * tx * (-5 + 3 * tx) / 2.0;
+		final double wx2 = tx * (1 + tx * (4 - 3 * tx)) / 2.0;
+		final double wx3 = tx * tx * (-1 + tx) / 2.0;
+
+		final double wy0 = ty * (-1 + ty * (2 - ty)) / 2.0;
+		final double wy1 = 1 + ty * ty * (-5 + 3 * ty) / 2.0;
+		final double wy2 = ty * (1 + ty * (4 - 3 * ty)) / 2.0;
+		final double wy3 = ty * ty * (-1 + ty) / 2.0;
+
+		final int r0 = y0 * w, r1 = y1 * w, r2 = y2 * w, r3 = y3 * w;
+
+		warped.data[i] = (float) interpolate(img, r0, r1, r2, r3, x0, x1, x2, x3, x32, wx0, wx1, wx2, wx3, wy0, wy1, wy2, wy3);
+		warpedX.data[i] = (float) interpolate(imgX, r0, r1, r2, r3, x0, x1, x2, x3, x32, wx0, wx1, wx2, wx3, wy0, wy1, wy2, wy3);
+		warpedY.data[i] = (float) interpolate(imgY, r0, r1, r2, r3, x0, x1, x2, x3, x32, wx0, wx1, wx2, wx3, wy0, wy1, wy2, wy3);
+	}
+
+	/**
+	 * Apply the separable weights to a 4x4 block given by the offsets of its rows and its columns.
+	 */
+	private static double interpolate(final float[] s, final int r0, final int r1, final int r2, final int r3, final int x0,
+			final int x1, final int x2, final int x3, final int x32, final double wx0, final double wx1, final double wx2,
+			final double wx3, final double wy0, final double wy1, final double wy2, final double wy3)
+	{
+		final double c0 = wy0 * s[r0 + x0] + wy1 * s[r1 + x0] + wy2 * s[r2 + x0] + wy3 * s[r3 + x0];
+		final double c1 = wy0 * s[r0 + x1] + wy1 * s[r1 + x1] + wy2 * s[r2 + x1] + wy3 * s[r3 + x1];
+		final double c2 = wy0 * s[r0 + x2] + wy1 * s[r1 + x2] + wy2 * s[r2 + x2] + wy3 * s[r3 + x2];
+		final double c3 = wy0 * s[r0 + x3] + wy1 * s[r1 + x3] + wy2 * s[r2 + x32] + wy3 * s[r3 + x3];
+
+		return wx0 * c0 + wx1 * c1 + wx2 * c2 + wx3 * c3;
+	}
+
+	private static int clamp(int p, int n)
+	{
+		return (p < 0) ? 0 : (p >= n) ? n - 1 : p;
+	}
+}
@@ -0,0 +1,104 @@
+package hs_pyrimidal;
+
+import utility.FloatGrid;
+
+/**
+ * 
+ * @author Connor Fox
+ * 
+ * Row order SOR that runs several sweeps in one pass over the image, so that a band of rows is relaxed depth times
+ * while it is still in cache instead of streaming every array from memory once per sweep.
+ * 
+ * Sweep s of row y reads rows y - 1 and y + 1, and must see row y - 1 after sweep s and row y + 1 after sweep s - 1
+ * only. The sweeps are therefore skewed by two rows: at step t sweep s relaxes row t - 2s. Every row is then relaxed
+ * with exactly the values plain SOR would give it, so depth sweeps here equal depth sweeps of SORSolver bit for bit,
+ * while only about 2 * depth + 1 rows of every array are in use at any time.
+ * 
+ * The error is still measured for each sweep, but only checked after each pass, so a solve may do up to depth - 1
+ * sweeps more than SORSolver before stopping.
+ */
+public class WavefrontSOR implements LinearSolver
+{
+	// Sweeps per pass over the image, or 0 to choose from cacheBytes
+	public int				depth;
+
+	// The cache the rows in use should fit in when depth is chosen automatically
+	public int				cacheBytes		= 1 << 20;
+
+	// Deepest pass chosen automatically
+	public static final int	MAX_DEPTH		= 8;
+
+	// Arrays of one pixel read by a relaxation: u, v, Au, Av, Du, Dv, D
+	private static final int	ARRAYS			= 7;
+
+	private float[]			errors;
+	private float			error;
+
+	@Override
+	public int solve(FlowSystem system, FloatGrid u, FloatGrid v, float stopCrt, int maxIterations)
+	{
+		final int width = system.width;
+		final int height = system.height;
+		final int d = getDepth(width);
+
+		if (errors == null || errors.length < d) errors = new float[d];
+
+		int nIter = 0;
+		error = 1000;
+
+		// Repeat passes until error is acceptable or max iterations reached
+		while (error > stopCrt && nIter < maxIterations)
+		{
+			final int k = Math.min(d, maxIterations - nIter);
+
+			for (int s = 0; s < k; s++)
+			{
+				errors[s] = 0;
+			}
+
+			// Wavefront: sweep s relaxes row t - 2s at step t
+			for (int t = 0; t < height + 2 * (k - 1); t++)
+			{
+				for (int s = 0; s < k; s++)
+				{
+					final int y = t - 2 * s;
+
+					if (y >= 0 && y < height)
+					{
+						errors[s] += system.relaxRow(u, v, y, 0, 1, system.omega);
+					}
+				}
+			}
+
+			nIter += k;
+
+			// error of the last sweep of the pass
+			error = (float) Math.sqrt(errors[k - 1] / (width * height));
+		}
+
+		return nIter;
+	}
+
+	/**
+	 * The number of sweeps per pass for rows of the given width.
+	 * 
+	 * @param width
+	 * @return
+	 */
+	public int getDepth(int width)
+	{
+		if (depth > 0) return depth;
+
+		// 2 * depth + 1 rows of every array should fit
+		final long rowBytes = (long) ARRAYS * 4 * width;
+		final int fit = (int) ((cacheBytes / rowBytes - 1) / 2);
+
+		return Math.max(1, Math.min(MAX_DEPTH, fit));
+	}
+
+	@Override
+	public float getError()
+	{
+		return error;
+	}
+}
@@ -0,0 +1,113 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import hs_pyrimidal.FlowBatch;
+import hs_pyrimidal.HornSchunckPyrimidal;
+
+import org.junit.Test;
+
+import utility.FloatGrid;
+import utility.Images;
+import utility.VectorField;
+
+public class TestFlowBatch
+{
+	private FloatGrid random(int height, int width, Random r)
+	{
+		FloatGrid g = new FloatGrid(height, width);
+
+		for (int i = 0; i < g.size(); i++)
+		{
+			g.data[i] = r.nextFloat() * 255;
+		}
+
+		return g;
+	}
+
+	@Test
+	public void testMatchesRun() throws Exception
+	{
+		Random r = new Random(6);
+		HornSchunckPyrimidal hsp = new HornSchunckPyrimidal();
+		hsp.nWarps = 2;
+		hsp.maxIterations = 30;
+		hsp.nThreads = 1;
+
+		List<Images> pairs = new ArrayList<Images>();
+
+		for (int p = 0; p < 5; p++)
+		{
+			pairs.add(new Images(random(32 + p, 40, r), random(32 + p, 40, r)));
+		}
+
+		// Two workers with room for one waiting pair, so the calling thread waits for them
+		FlowBatch batch = new FlowBatch(hsp, 2, 1);
+		List<VectorField> flows = batch.runAll(pairs);
+		batch.shutdown();
+
+		for (int p = 0; p < pairs.size(); p++)
+		{
+			VectorField expected = hsp.run(pairs.get(p).fb1, pairs.get(p).fb2);
+
+			for (int i = 0; i < expected.u.size(); i++)
+			{
+				assertEquals(expected.u.data[i], flows.get(p).u.data[i], 0);
+				assertEquals(expected.v.data[i], flows.get(p).v.data[i], 0);
+			}
+		}
+	}
+
+	@Test
+	public void testMorePairsThanQueue() throws Exception
+	{
+		Random r = new Random(7);
+		HornSchunckPyrimidal hsp = new HornSchunckPyrimidal();
+		hsp.nWarps = 2;
+		hsp.maxIterations = 30;
+		hsp.nThreads = 1;
+
+		FloatGrid f1 = random(32, 40, r);
+		FloatGrid f2 = random(32, 40, r);
+		VectorField expected = hsp.run(f1, f2);
+
+		// Three times as many pairs as the workers and the queue hold, each solved by a worker
+		final int nThreads = 2;
+		final int queueSize = 2;
+		FlowBatch batch = new FlowBatch(hsp, nThreads, queueSize);
+		List<Future<VectorField>> results = new ArrayList<Future<VectorField>>();
+
+		for (int p = 0; p < 3 * (nThreads + queueSize); p++)
+		{
+			results.add(batch.submit(f1, f2));
+		}
+
+		batch.shutdown();
+
+		for (Future<VectorField> result : results)
+		{
+			VectorField flow = result.get();
+
+			for (int i = 0; i < expected.u.size(); i++)
+			{
+				assertEquals(expected.u.data[i], flow.u.data[i], 0);
+				assertEquals(expected.v.data[i], flow.v.data[i], 0);
+			}
+		}
+
+		try
+		{
+			batch.submit(f1, f2);
+			fail("Submitted a pair after shutdown");
+		}
+		catch (RejectedExecutionException e)
+		{
+		}
+	}
+}
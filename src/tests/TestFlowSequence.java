@@ -0,0 +1,212 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import hs_pyrimidal.FlowSequence;
+import hs_pyrimidal.HornSchunckPyrimidal;
+import hs_pyrimidal.PyramidCache;
+
+import org.junit.Test;
+
+import utility.FloatGrid;
+import utility.VectorField;
+
+public class TestFlowSequence
+{
+	// A frame that already spans 0-255, so normalizing it alone or with another such frame changes nothing
+	private FloatGrid frame(int height, int width, Random r)
+	{
+		FloatGrid g = new FloatGrid(height, width);
+
+		for (int i = 0; i < g.size(); i++)
+		{
+			g.data[i] = r.nextInt(256);
+		}
+
+		g.data[1] = 0;
+		g.data[2] = 255;
+
+		return g;
+	}
+
+	private HornSchunckPyrimidal create()
+	{
+		HornSchunckPyrimidal hsp = new HornSchunckPyrimidal();
+		hsp.nWarps = 2;
+		hsp.maxIterations = 30;
+
+		return hsp;
+	}
+
+	@Test
+	public void testMatchesPairs()
+	{
+		Random r = new Random(3);
+		FloatGrid[] frames = { frame(40, 52, r), frame(40, 52, r), frame(40, 52, r) };
+
+		HornSchunckPyrimidal hsp = create();
+		FlowSequence sequence = new FlowSequence(create());
+
+		assertNull(sequence.push(frames[0]));
+
+		for (int f = 1; f < frames.length; f++)
+		{
+			VectorField expected = hsp.run(frames[f - 1], frames[f]);
+			VectorField flow = sequence.push(frames[f]);
+
+			for (int i = 0; i < expected.u.size(); i++)
+			{
+				assertEquals(expected.u.data[i], flow.u.data[i], 0);
+				assertEquals(expected.v.data[i], flow.v.data[i], 0);
+			}
+		}
+	}
+
+	@Test
+	public void testPyramidSettings()
+	{
+		Random r = new Random(6);
+		FloatGrid[] frames = { frame(40, 52, r), frame(40, 52, r) };
+
+		// Fixed point and half precision pyramids give the flow of the same pairs
+		for (int setting = 0; setting < 2; setting++)
+		{
+			HornSchunckPyrimidal hsp = create();
+			hsp.fixedPoint = setting == 0;
+			hsp.halfPrecision = setting == 1;
+
+			FlowSequence sequence = new FlowSequence(hsp.copySettings());
+			sequence.push(frames[0]);
+
+			VectorField expected = hsp.run(frames[0], frames[1]);
+			VectorField flow = sequence.push(frames[1]);
+
+			for (int i = 0; i < expected.u.size(); i++)
+			{
+				assertEquals(expected.u.data[i], flow.u.data[i], 0);
+				assertEquals(expected.v.data[i], flow.v.data[i], 0);
+			}
+		}
+
+		// A pyramid cache would not be used
+		HornSchunckPyrimidal cached = create();
+		cached.pyramidCache = new PyramidCache(1 << 20);
+
+		try
+		{
+			new FlowSequence(cached).push(frames[0]);
+			fail("Pushed a frame with a pyramid cache");
+		}
+		catch (IllegalStateException e)
+		{
+		}
+	}
+
+	@Test
+	public void testKeepsPyramid()
+	{
+		Random r = new Random(4);
+		FlowSequence sequence = new FlowSequence(create());
+
+		sequence.push(frame(40, 52, r));
+		FloatGrid[] pyramid = sequence.getPyramid();
+		sequence.push(frame(40, 52, r));
+
+		assertNotNull(pyramid);
+		assertFalse(pyramid == sequence.getPyramid());
+
+		// A frame of another size needs a new sequence
+		try
+		{
+			sequence.push(frame(30, 52, r));
+			fail("Pushed a frame of another size");
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+
+		sequence.reset();
+		assertNull(sequence.push(frame(30, 52, r)));
+	}
+
+	@Test
+	public void testWarmStart()
+	{
+		HornSchunckPyrimidal cold = create();
+		FlowSequence coldSequence = new FlowSequence(cold);
+		HornSchunckPyrimidal warm = create();
+		FlowSequence warmSequence = new FlowSequence(warm);
+		warmSequence.warmStart = true;
+
+		// The camera pans one pixel per frame over a smooth texture
+		int h = 48, w = 64;
+
+		for (int f = 0; f < 4; f++)
+		{
+			FloatGrid frame = new FloatGrid(h, w);
+
+			for (int y = 0; y < h; y++)
+			{
+				for (int x = 0; x < w; x++)
+				{
+					final double sx = x + f;
+					frame.set(x, y, (float) (127 + 60 * Math.sin(0.3 * sx + 0.1 * y) + 50 * Math.cos(0.23 * y - 0.17 * sx)));
+				}
+			}
+
+			VectorField coldFlow = coldSequence.push(frame);
+			VectorField warmFlow = warmSequence.push(frame);
+
+			if (f < 2) continue;
+
+			assertTrue(warm.isWarmStarted());
+			assertTrue(warm.getWarmResidual() < warm.getColdResidual());
+			assertTrue(warm.getIterations() < cold.getIterations());
+
+			for (int i = 0; i < coldFlow.u.size(); i++)
+			{
+				assertEquals(coldFlow.u.data[i], warmFlow.u.data[i], 0.1);
+				assertEquals(coldFlow.v.data[i], warmFlow.v.data[i], 0.1);
+			}
+		}
+
+		// A cut to an unrelated frame starts from zero again
+		warmSequence.push(frame(h, w, new Random(5)));
+		assertFalse(warm.isWarmStarted());
+	}
+
+	@Test
+	public void testWarmStartHalfPrecision()
+	{
+		HornSchunckPyrimidal hsp = create();
+		hsp.halfPrecision = true;
+		FlowSequence sequence = new FlowSequence(hsp);
+		sequence.warmStart = true;
+
+		// From the third frame on, each compressed pair starts from the flow of the pair before it
+		int h = 48, w = 64;
+
+		for (int f = 0; f < 4; f++)
+		{
+			FloatGrid frame = new FloatGrid(h, w);
+
+			for (int y = 0; y < h; y++)
+			{
+				for (int x = 0; x < w; x++)
+				{
+					final double sx = x + f;
+					frame.set(x, y, (float) (127 + 60 * Math.sin(0.3 * sx + 0.1 * y) + 50 * Math.cos(0.23 * y - 0.17 * sx)));
+				}
+			}
+
+			VectorField flow = sequence.push(frame);
+
+			if (f < 2) continue;
+
+			assertTrue(hsp.isWarmStarted());
+			assertEquals(-1, flow.u.get(w / 2, h / 2), 0.2);
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import utility.FloatGrid;
+import utility.HalfGrid;
+
+public class TestHalfGrid
+{
+	@Test
+	public void testRoundTrip()
+	{
+		// Every half other than NaN converts to a float and back unchanged
+		for (int h = 0; h < 0x10000; h++)
+		{
+			if ((h & 0x7c00) == 0x7c00 && (h & 0x3ff) != 0) continue;
+			assertEquals(h, HalfGrid.toHalf(HalfGrid.toFloat((short) h)) & 0xffff);
+		}
+
+		assertTrue(Float.isNaN(HalfGrid.toFloat(HalfGrid.toHalf(Float.NaN))));
+	}
+
+	@Test
+	public void testRounding()
+	{
+		assertEquals(1.0f, HalfGrid.toFloat(HalfGrid.toHalf(1.0004f)), 0);
+		assertEquals(65504f, HalfGrid.toFloat(HalfGrid.toHalf(65519f)), 0);
+		assertEquals(Float.POSITIVE_INFINITY, HalfGrid.toFloat(HalfGrid.toHalf(65520f)), 0);
+		assertEquals(0x1p-24f, HalfGrid.toFloat(HalfGrid.toHalf(0x1.8p-25f)), 0);
+		assertEquals(0f, HalfGrid.toFloat(HalfGrid.toHalf(0x1p-25f)), 0);
+
+		// The nearest half is chosen: no neighbour of the result is closer
+		Random r = new Random(10);
+
+		for (int i = 0; i < 100000; i++)
+		{
+			float f = (float) ((r.nextDouble() - 0.5) * Math.pow(2, r.nextInt(30) - 20));
+			short h = HalfGrid.toHalf(f);
+			float error = Math.abs(HalfGrid.toFloat(h) - f);
+
+			assertTrue(Math.abs(HalfGrid.toFloat((short) (h + 1)) - f) >= error);
+			if ((h & 0x7fff) != 0) assertTrue(Math.abs(HalfGrid.toFloat((short) (h - 1)) - f) >= error);
+		}
+	}
+
+	@Test
+	public void testGrid()
+	{
+		FloatGrid grid = new FloatGrid(3, 4);
+
+		for (int i = 0; i < grid.size(); i++)
+		{
+			grid.data[i] = i * 21.3f;
+		}
+
+		FloatGrid decoded = HalfGrid.encode(grid).decode(null);
+
+		for (int i = 0; i < grid.size(); i++)
+		{
+			assertEquals(grid.data[i], decoded.data[i], grid.data[i] / 2048);
+		}
+	}
+}
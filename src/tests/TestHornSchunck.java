@@ -23,7 +23,7 @@ public class TestHornSchunck
 		float[][] v = new float[testMv.height][testMv.width];
 
 		HornSchunck hs = new HornSchunck(1, 10);
-		hs.run(u, v, testMv.fb1, testMv.fb2);
+		hs.run(u, v, testMv.fb1.toArray(), testMv.fb2.toArray());
 
 		for (int i = 0; i < testMv.height; i++)
 		{
@@ -48,7 +48,7 @@ public class TestHornSchunck
 		float[][] v = new float[testMv.height][testMv.width];
 
 		HornSchunck hs = new HornSchunck(2, 10);
-		hs.run(u, v, testMv.fb1, testMv.fb2);
+		hs.run(u, v, testMv.fb1.toArray(), testMv.fb2.toArray());
 
 		for (int i = 0; i < testMv.height; i++)
 		{
@@ -73,7 +73,7 @@ public class TestHornSchunck
 		float[][] v = new float[testMv.height][testMv.width];
 
 		HornSchunck hs = new HornSchunck(1, 0);
-		hs.run(u, v, testMv.fb1, testMv.fb2);
+		hs.run(u, v, testMv.fb1.toArray(), testMv.fb2.toArray());
 
 		for (int i = 0; i < testMv.height; i++)
 		{
@@ -103,7 +103,7 @@ public class TestHornSchunck
 		float[][] It = new float[h][w];
 
 		HornSchunck hs = new HornSchunck(0, 0);
-		hs.computeImageDerivatives(Ix, Iy, It, testMv.fb1, testMv.fb2);
+		hs.computeImageDerivatives(Ix, Iy, It, testMv.fb1.toArray(), testMv.fb2.toArray());
 
 		for (int i = 0; i < testMv.height; i++)
 		{
@@ -162,7 +162,7 @@ public class TestHornSchunck
 		float[][] It = new float[h][w];
 
 		HornSchunck hs = new HornSchunck(0, 0);
-		hs.computeImageDerivatives(Ix, Iy, It, rightMv.fb1, rightMv.fb2);
+		hs.computeImageDerivatives(Ix, Iy, It, rightMv.fb1.toArray(), rightMv.fb2.toArray());
 
 		for (int i = 0; i < rightMv.height; i++)
 		{
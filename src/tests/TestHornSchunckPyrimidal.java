@@ -1,12 +1,19 @@
 package tests;
 
 import static org.junit.Assert.*;
+import hs_pyrimidal.FixedPyramid;
 import hs_pyrimidal.HornSchunckPyrimidal;
+import hs_pyrimidal.PyramidPlan;
 
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.util.Random;
+
 import utility.Experiment;
+import utility.FloatGrid;
 import utility.Images;
+import utility.VectorField;
 
 public class TestHornSchunckPyrimidal
 {
@@ -28,14 +35,253 @@ public class TestHornSchunckPyrimidal
 		HornSchunckPyrimidal hsp = new HornSchunckPyrimidal();
 		Images[] output = hsp.createImagePyramid(testHS.fb1, testHS.fb2, 2, 0.65f, false);
 
-		assertEquals(output[1].fb1.length, 4);
-		assertEquals(output[1].fb1[0].length, 4);
+		assertEquals(output[1].fb1.height, 4);
+		assertEquals(output[1].fb1.width, 4);
 
-		for (int i = 0; i < output[1].fb1.length; i++)
+		for (int i = 0; i < output[1].fb1.height; i++)
 		{
-			for (int j = 0; j < output[1].fb1[0].length; j++)
+			for (int j = 0; j < output[1].fb1.width; j++)
 			{
-				//assertEquals(output[1].fb1[i][j], refValues[i][j], 0.1);
+				//assertEquals(output[1].fb1.get(j, i), refValues[i][j], 0.1);
+			}
+		}
+	}
+
+	@Test
+	public void testParallelPyramid()
+	{
+		Random r = new Random(7);
+		FloatGrid f1 = new FloatGrid(61, 83);
+		FloatGrid f2 = new FloatGrid(61, 83);
+
+		for (int i = 0; i < f1.size(); i++)
+		{
+			f1.data[i] = r.nextFloat() * 255;
+			f2.data[i] = r.nextFloat() * 255;
+		}
+
+		HornSchunckPyrimidal serial = new HornSchunckPyrimidal();
+		serial.nThreads = 1;
+		HornSchunckPyrimidal parallel = new HornSchunckPyrimidal();
+		parallel.nThreads = 3;
+
+		Images[] expected = serial.createImagePyramid(f1, f2, 4, 0.65f, true);
+		Images[] output = parallel.createImagePyramid(f1, f2, 4, 0.65f, true);
+
+		for (int s = 0; s < expected.length; s++)
+		{
+			FloatGrid gx = new FloatGrid(output[s].height, output[s].width);
+			FloatGrid gy = new FloatGrid(output[s].height, output[s].width);
+			serial.gradient(output[s].fb2, gx, gy);
+
+			for (int i = 0; i < expected[s].fb1.size(); i++)
+			{
+				assertEquals(expected[s].fb1.data[i], output[s].fb1.data[i], 0);
+				assertEquals(expected[s].fb2.data[i], output[s].fb2.data[i], 0);
+
+				// Each level keeps the gradients of its second frame
+				assertEquals(gx.data[i], output[s].fb2x.data[i], 0);
+				assertEquals(gy.data[i], output[s].fb2y.data[i], 0);
+			}
+		}
+
+		// A single thread runs on the calling thread, without a pool
+		assertNull(serial.getPool());
+		assertEquals(3, parallel.getPool().getParallelism());
+
+		parallel.shutdown();
+		assertTrue(parallel.getPool().getParallelism() == 3 && !parallel.getPool().isShutdown());
+		parallel.shutdown();
+	}
+
+	@Test
+	public void testFixedPointPyramid()
+	{
+		Random r = new Random(11);
+		FloatGrid f1 = new FloatGrid(61, 83);
+		FloatGrid f2 = new FloatGrid(61, 83);
+		ByteBuffer g1 = ByteBuffer.allocateDirect(f1.size());
+		ByteBuffer g2 = ByteBuffer.allocateDirect(f2.size());
+
+		for (int i = 0; i < f1.size(); i++)
+		{
+			f1.data[i] = r.nextInt(256);
+			f2.data[i] = r.nextInt(256);
+			g1.put(i, (byte) f1.data[i]);
+			g2.put(i, (byte) f2.data[i]);
+		}
+
+		// The full range, so both normalizations are the identity
+		f1.data[0] = 0;
+		f1.data[1] = 255;
+		g1.put(0, (byte) 0);
+		g1.put(1, (byte) 255);
+
+		HornSchunckPyrimidal hsp = new HornSchunckPyrimidal();
+		Images[] expected = hsp.createImagePyramid(f1, f2, 4, 0.65f, true);
+
+		hsp.fixedPoint = true;
+		Images[] output = hsp.createImagePyramid(f1, f2, 4, 0.65f, true);
+		Images[] bytes = new FixedPyramid(hsp).create(g1, g2, 61, 83, 83, 4, 0.65f);
+
+		for (int s = 0; s < expected.length; s++)
+		{
+			assertEquals(expected[s].width, output[s].width);
+			assertEquals(expected[s].height, output[s].height);
+
+			for (int i = 0; i < expected[s].fb1.size(); i++)
+			{
+				// Within a few steps of 1/128 of the float pyramid
+				assertEquals(expected[s].fb1.data[i], output[s].fb1.data[i], 0.05);
+				assertEquals(expected[s].fb2.data[i], output[s].fb2.data[i], 0.05);
+				assertEquals(expected[s].fb2x.data[i], output[s].fb2x.data[i], 0.05);
+
+				assertEquals(output[s].fb1.data[i], bytes[s].fb1.data[i], 0);
+				assertEquals(output[s].fb2.data[i], bytes[s].fb2.data[i], 0);
+			}
+		}
+	}
+
+	@Test
+	public void testPyramidPlan()
+	{
+		Random r = new Random(13);
+		FloatGrid image = new FloatGrid(61, 83);
+
+		for (int i = 0; i < image.size(); i++)
+		{
+			image.data[i] = r.nextFloat() * 255;
+		}
+
+		HornSchunckPyrimidal hsp = new HornSchunckPyrimidal();
+		PyramidPlan plan = PyramidPlan.get(83, 61, 0.65f, 4, true);
+
+		// Computed once for each size and settings
+		assertTrue(plan == PyramidPlan.get(83, 61, 0.65f, 4, true));
+		assertTrue(plan != PyramidPlan.get(83, 61, 0.65f, 4, false));
+
+		for (int level = 0; level < 3; level++)
+		{
+			FloatGrid down = plan.downSample(image, level, hsp.getParallel(), null);
+
+			assertEquals(plan.widths[level + 1], down.width);
+			assertEquals(plan.heights[level + 1], down.height);
+
+			for (int y = 0; y < down.height; y++)
+			{
+				for (int x = 0; x < down.width; x++)
+				{
+					float expected = hsp.getInterpolationPoint(image, (float) x / 0.65f, (float) y / 0.65f, false);
+					assertEquals(expected, down.get(x, y), 1e-3);
+				}
+			}
+
+			// Back up to the level, as run upsamples the flow
+			FloatGrid up = new FloatGrid(image.height, image.width);
+			plan.upsample(down, level, up, hsp.getParallel(), null);
+
+			float ufx = (float) image.width / down.width;
+			float ufy = (float) image.height / down.height;
+
+			for (int y = 0; y < up.height; y++)
+			{
+				for (int x = 0; x < up.width; x++)
+				{
+					float expected = hsp.getInterpolationPoint(down, (float) x / ufx, (float) y / ufy, false);
+					assertEquals(expected, up.get(x, y), 1e-3);
+				}
+			}
+
+			image = down;
+		}
+	}
+
+	@Test
+	public void testGetBestScales()
+	{
+		HornSchunckPyrimidal hsp = new HornSchunckPyrimidal();
+		assertEquals(1, hsp.getBestScales(0.5f, 0.5f));
+		assertEquals(3, hsp.getBestScales(0.5f, 4));
+		assertEquals(4, hsp.getBestScales(0.5f, 4.5f));
+	}
+
+	@Test
+	public void testAutoScales()
+	{
+		// A smooth texture moving one pixel needs few scales
+		FloatGrid f1 = new FloatGrid(96, 128);
+		FloatGrid f2 = new FloatGrid(96, 128);
+
+		for (int y = 0; y < f1.height; y++)
+		{
+			for (int x = 0; x < f1.width; x++)
+			{
+				f1.set(x, y, (float) (127 + 60 * Math.sin(0.3 * x + 0.1 * y) + 50 * Math.cos(0.23 * y - 0.17 * x)));
+				f2.set(x, y, (float) (127 + 60 * Math.sin(0.3 * (x + 1) + 0.1 * y) + 50 * Math.cos(0.23 * y - 0.17 * (x + 1))));
+			}
+		}
+
+		HornSchunckPyrimidal auto = new HornSchunckPyrimidal();
+		auto.nWarps = 2;
+		auto.nScales = 20;
+		auto.autoScales = true;
+		VectorField flow = auto.run(f1, f2);
+
+		assertTrue(auto.getScalesUsed() < auto.checkScales(128, 96));
+		// The probe may overestimate, which only costs scales, but must not miss the motion
+		assertTrue(auto.getMaxMotion() > 0.5 && auto.getMaxMotion() < 4);
+
+		// The same flow as a run with the chosen number of scales
+		HornSchunckPyrimidal fixed = new HornSchunckPyrimidal();
+		fixed.nWarps = 2;
+		fixed.nScales = auto.getScalesUsed();
+		VectorField expected = fixed.run(f1, f2);
+
+		for (int i = 0; i < flow.u.size(); i++)
+		{
+			assertEquals(expected.u.data[i], flow.u.data[i], 0);
+			assertEquals(expected.v.data[i], flow.v.data[i], 0);
+		}
+	}
+
+	@Test
+	public void testRegionOfInterest()
+	{
+		FloatGrid f1 = new FloatGrid(120, 160);
+		FloatGrid f2 = new FloatGrid(120, 160);
+
+		for (int y = 0; y < f1.height; y++)
+		{
+			for (int x = 0; x < f1.width; x++)
+			{
+				f1.set(x, y, (float) (127 + 60 * Math.sin(0.3 * x + 0.1 * y) + 50 * Math.cos(0.23 * y - 0.17 * x)));
+				f2.set(x, y, (float) (127 + 60 * Math.sin(0.3 * (x + 1.5) + 0.1 * y) + 50 * Math.cos(0.23 * y - 0.17 * (x + 1.5))));
+			}
+		}
+
+		HornSchunckPyrimidal hsp = new HornSchunckPyrimidal();
+		hsp.nWarps = 2;
+		VectorField full = hsp.run(f1, f2);
+
+		// One region inside the frame, one cut by its corner
+		int[][] regions = { { 60, 40, 30, 20 }, { 140, -10, 40, 30 } };
+
+		for (int[] r : regions)
+		{
+			VectorField roi = hsp.run(f1, f2, r[0], r[1], r[2], r[3]);
+			int x0 = Math.max(0, r[0]);
+			int y0 = Math.max(0, r[1]);
+
+			assertEquals(Math.min(160, r[0] + r[2]) - x0, roi.u.width);
+			assertEquals(Math.min(120, r[1] + r[3]) - y0, roi.u.height);
+
+			for (int y = 0; y < roi.u.height; y++)
+			{
+				for (int x = 0; x < roi.u.width; x++)
+				{
+					assertEquals(full.u.get(x + x0, y + y0), roi.u.get(x, y), 0.05);
+					assertEquals(full.v.get(x + x0, y + y0), roi.v.get(x, y), 0.05);
+				}
 			}
 		}
 	}
@@ -51,9 +297,9 @@ public class TestHornSchunckPyrimidal
 
 		HornSchunckPyrimidal hsp = new HornSchunckPyrimidal();
 
-		for (int i = 0; i < testHS.fb1.length; i++)
+		for (int i = 0; i < testHS.fb1.height; i++)
 		{
-			for (int j = 0; j < testHS.fb1[0].length; j++)
+			for (int j = 0; j < testHS.fb1.width; j++)
 			{
 				assertEquals(hsp.getInterpolationPoint(testHS.fb1, i, j, false), refValues[i][j], 0);
 			}
@@ -71,9 +317,9 @@ public class TestHornSchunckPyrimidal
 
 		HornSchunckPyrimidal hsp = new HornSchunckPyrimidal();
 
-		for (int i = 0; i < testHS.fb1.length; i++)
+		for (int i = 0; i < testHS.fb1.height; i++)
 		{
-			for (int j = 0; j < testHS.fb1[0].length; j++)
+			for (int j = 0; j < testHS.fb1.width; j++)
 			{
 				assertEquals(hsp.getInterpolationPoint(testHS.fb1, i, j, true), refValues[i][j], 0);
 			}
@@ -89,7 +335,7 @@ public class TestHornSchunckPyrimidal
 		testHS.init();
 
 		HornSchunckPyrimidal hsp = new HornSchunckPyrimidal();
-		float[][] output = hsp.downSample(testHS.fb1, .65f, false, false);
+		float[][] output = hsp.downSample(testHS.fb1, .65f, false, false).toArray();
 
 		for (int i = 0; i < output.length; i++)
 		{
@@ -132,7 +378,7 @@ public class TestHornSchunckPyrimidal
 		testHS.init();
 
 		HornSchunckPyrimidal hsp = new HornSchunckPyrimidal();
-		float[][] output = hsp.upsample(testHS.fb1, 9, 9);
+		float[][] output = hsp.upsample(testHS.fb1, 9, 9).toArray();
 
 		for (int i = 0; i < output.length; i++)
 		{
@@ -143,6 +389,39 @@ public class TestHornSchunckPyrimidal
 		}
 	}
 
+	@Test
+	public void testUpsampleFlow()
+	{
+		Random r = new Random(17);
+		VectorField flow = new VectorField(new FloatGrid(40, 54), new FloatGrid(40, 54));
+
+		for (int i = 0; i < flow.u.size(); i++)
+		{
+			flow.u.data[i] = r.nextFloat() * 4 - 2;
+			flow.v.data[i] = r.nextFloat() * 4 - 2;
+		}
+
+		HornSchunckPyrimidal hsp = new HornSchunckPyrimidal();
+		PyramidPlan plan = PyramidPlan.get(83, 61, 0.65f, 2, true);
+		VectorField fused = new VectorField(new FloatGrid(61, 83), new FloatGrid(61, 83));
+		VectorField planned = new VectorField(new FloatGrid(61, 83), new FloatGrid(61, 83));
+
+		hsp.upsampleFlow(flow, fused, 1 / 0.65f, null);
+		plan.upsample(flow, 0, planned, 1 / 0.65f, hsp.getParallel(), null);
+
+		// The same as upsampling each component and then scaling it
+		FloatGrid u = hsp.upsample(flow.u, 83, 61);
+		FloatGrid v = hsp.upsample(flow.v, 83, 61);
+
+		for (int i = 0; i < u.size(); i++)
+		{
+			assertEquals(u.data[i] / 0.65f, fused.u.data[i], 1e-4);
+			assertEquals(v.data[i] / 0.65f, fused.v.data[i], 1e-4);
+			assertEquals(fused.u.data[i], planned.u.data[i], 0);
+			assertEquals(fused.v.data[i], planned.v.data[i], 0);
+		}
+	}
+
 	@Test
 	public void testWarp()
 	{
@@ -158,7 +437,7 @@ public class TestHornSchunckPyrimidal
 		test.init();
 
 		HornSchunckPyrimidal hsp = new HornSchunckPyrimidal();
-		float[][] out = hsp.warp(test.fb1, u, v, false);
+		float[][] out = hsp.warp(test.fb1.toArray(), u, v, false);
 
 		for (int i = 0; i < 6; i++)
 		{
@@ -184,7 +463,7 @@ public class TestHornSchunckPyrimidal
 		HornSchunckPyrimidal hsp = new HornSchunckPyrimidal();
 		float[][] Ix = new float[6][6];
 		float[][] Iy = new float[6][6];
-		hsp.gradient(test.fb1, Ix, Iy);
+		hsp.gradient(test.fb1.toArray(), Ix, Iy);
 
 		for (int i = 0; i < 6; i++)
 		{
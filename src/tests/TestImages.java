@@ -2,13 +2,38 @@ package tests;
 
 import static org.junit.Assert.assertEquals;
 
+import java.nio.ByteBuffer;
+import java.util.Random;
+
 import org.junit.Test;
 
 import utility.Experiment;
+import utility.FloatGrid;
 import utility.Images;
+import utility.Parallel;
 
 public class TestImages
 {
+	@Test
+	public void testGreyBuffer()
+	{
+		// Two rows of three pixels, padded to a stride of four, in a direct buffer
+		ByteBuffer grey = ByteBuffer.allocateDirect(9);
+		grey.put((byte) 7).put(new byte[] { 0, (byte) 255, (byte) 128, 9, 1, 2, 3, 9 });
+		grey.position(1);
+
+		Images s = new Images(grey, grey, 2, 3, 4);
+		float[] expected = { 0, 255, 128, 1, 2, 3 };
+
+		assertEquals(1, grey.position());
+
+		for (int i = 0; i < expected.length; i++)
+		{
+			assertEquals(expected[i], s.fb1.data[i], 0);
+			assertEquals(expected[i], s.fb2.data[i], 0);
+		}
+	}
+
 	@Test
 	public void testExtractByteDataGreyscale()
 	{
@@ -18,7 +43,7 @@ public class TestImages
 		Images s = new Images(Experiment.TEST_PATH + "testImage.png", Experiment.TEST_PATH + "testImage.png");
 		s.init();
 
-		float[][] imgBytes = s.fb1;
+		float[][] imgBytes = s.fb1.toArray();
 
 		assertEquals(imgBytes.length * imgBytes[0].length, refValues.length * refValues[0].length);
 
@@ -39,8 +64,8 @@ public class TestImages
 
 		Images s = new Images(Experiment.TEST_PATH + "testNorm1.png", Experiment.TEST_PATH + "testNorm2.png");
 		s.init();
-		float[][] img1Bytes = s.fb1;
-		float[][] img2Bytes = s.fb2;
+		float[][] img1Bytes = s.fb1.toArray();
+		float[][] img2Bytes = s.fb2.toArray();
 		float[][] nmBytes1 = new float[img1Bytes.length][img1Bytes[0].length];
 		float[][] nmBytes2 = new float[img2Bytes.length][img2Bytes[0].length];
 		Images.normalizeGreyscale(img1Bytes, img2Bytes, nmBytes1, nmBytes2);
@@ -79,6 +104,127 @@ public class TestImages
 		}
 	}
 
+	@Test
+	public void testSmoothingInterior()
+	{
+		// Wide and narrow images, so that some rows have no interior at all
+		int[][] sizes = { { 37, 53 }, { 9, 5 }, { 6, 11 } };
+		Random r = new Random(3);
+
+		for (int[] size : sizes)
+		{
+			FloatGrid image = new FloatGrid(size[0], size[1]);
+
+			for (int i = 0; i < image.size(); i++)
+			{
+				image.data[i] = r.nextFloat() * 255;
+			}
+
+			double sigma = 0.8;
+			int taps = (int) (5 * sigma) + 1;
+			double[] kernel = Images.create1DGaussianKernel(taps, sigma);
+			double n = -kernel[0];
+
+			for (double k : kernel)
+			{
+				n += 2 * k;
+			}
+
+			// Double precision with a reflected index for every tap
+			double[] rows = new double[image.size()];
+
+			for (int y = 0; y < image.height; y++)
+			{
+				for (int x = 0; x < image.width; x++)
+				{
+					for (int i = 1 - taps; i < taps; i++)
+					{
+						rows[y * image.width + x] += image.get(Images.reflect(x + i, image.width), y) * kernel[Math.abs(i)] / n;
+					}
+				}
+			}
+
+			FloatGrid smoothed = Images.applyGaussianSmoothing(image, 5, sigma, new Parallel(null, false), null, null);
+
+			for (int y = 0; y < image.height; y++)
+			{
+				for (int x = 0; x < image.width; x++)
+				{
+					double expected = 0;
+
+					for (int i = 1 - taps; i < taps; i++)
+					{
+						expected += rows[Images.reflect(y + i, image.height) * image.width + x] * kernel[Math.abs(i)] / n;
+					}
+
+					assertEquals(expected, smoothed.get(x, y), 1e-3);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testRecursiveGaussian()
+	{
+		Random r = new Random(5);
+		FloatGrid texture = new FloatGrid(97, 131);
+		FloatGrid noise = new FloatGrid(97, 131);
+
+		for (int y = 0; y < texture.height; y++)
+		{
+			for (int x = 0; x < texture.width; x++)
+			{
+				texture.set(x, y, (float) (127 + 60 * Math.sin(0.3 * x + 0.1 * y) + 50 * Math.cos(0.23 * y - 0.17 * x)));
+				noise.set(x, y, r.nextFloat() * 255);
+			}
+		}
+
+		Parallel serial = new Parallel(null, false);
+
+		// Close to the FIR filter, on average and at every pixel
+		for (double sigma : new double[] { 0.8, 1.039, 2, 5 })
+		{
+			for (FloatGrid image : new FloatGrid[] { texture, noise })
+			{
+				FloatGrid fir = Images.applyGaussianSmoothing(image, 5, sigma, serial, null, null);
+				FloatGrid iir = Images.applyRecursiveGaussian(image, sigma, serial, null, null);
+				double mean = 0;
+
+				for (int i = 0; i < fir.size(); i++)
+				{
+					assertEquals(fir.data[i], iir.data[i], 0.03 * 255);
+					mean += Math.abs(fir.data[i] - iir.data[i]) / fir.size();
+				}
+
+				assertEquals(0, mean, 0.005 * 255);
+			}
+		}
+
+		// Below the smallest sigma it is the FIR filter
+		FloatGrid fir = Images.applyGaussianSmoothing(noise, 5, 0.5, serial, null, null);
+		FloatGrid iir = Images.applyRecursiveGaussian(noise, 0.5, serial, null, null);
+
+		for (int i = 0; i < fir.size(); i++)
+		{
+			assertEquals(fir.data[i], iir.data[i], 0);
+		}
+
+		// A flat image stays flat
+		FloatGrid flat = new FloatGrid(20, 30);
+
+		for (int i = 0; i < flat.size(); i++)
+		{
+			flat.data[i] = 42;
+		}
+
+		FloatGrid smoothed = Images.applyRecursiveGaussian(flat, 3, serial, null, null);
+
+		for (int i = 0; i < flat.size(); i++)
+		{
+			assertEquals(42, smoothed.data[i], 1e-3);
+		}
+	}
+
 	@Test
 	public void testCreate1DGaussianKernel()
 	{
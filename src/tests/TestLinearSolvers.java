@@ -0,0 +1,351 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import hs_pyrimidal.ActiveSetSOR;
+import hs_pyrimidal.CheckerboardSOR;
+import hs_pyrimidal.FlowSystem;
+import hs_pyrimidal.MultigridSolver;
+import hs_pyrimidal.PCGSolver;
+import hs_pyrimidal.SORSolver;
+import hs_pyrimidal.WavefrontSOR;
+
+import org.junit.Test;
+
+import utility.FloatGrid;
+import utility.Parallel;
+
+public class TestLinearSolvers
+{
+	/**
+	 * Build a system from random gradients and flow.
+	 */
+	private FlowSystem createSystem(int height, int width, long seed)
+	{
+		Random r = new Random(seed);
+		FloatGrid t1 = new FloatGrid(height, width);
+		FloatGrid t2 = new FloatGrid(height, width);
+		FloatGrid t2x = new FloatGrid(height, width);
+		FloatGrid t2y = new FloatGrid(height, width);
+		FloatGrid u = new FloatGrid(height, width);
+		FloatGrid v = new FloatGrid(height, width);
+
+		for (int y = 0; y < height; y++)
+		{
+			for (int x = 0; x < width; x++)
+			{
+				t1.set(x, y, r.nextFloat() * 255);
+				t2.set(x, y, r.nextFloat() * 255);
+				t2x.set(x, y, r.nextFloat() * 20 - 10);
+				t2y.set(x, y, r.nextFloat() * 20 - 10);
+			}
+		}
+
+		FlowSystem system = new FlowSystem(height, width);
+		system.omega = 1.9f;
+		system.load(t1, t2, t2x, t2y, u, v, 15 * 15);
+		return system;
+	}
+
+	@Test
+	public void testCheckerboardMatchesSOR()
+	{
+		FlowSystem system = createSystem(23, 31, 1);
+
+		FloatGrid u1 = new FloatGrid(23, 31);
+		FloatGrid v1 = new FloatGrid(23, 31);
+		FloatGrid u2 = new FloatGrid(23, 31);
+		FloatGrid v2 = new FloatGrid(23, 31);
+
+		new SORSolver().solve(system, u1, v1, 1e-6f, 2000);
+		new CheckerboardSOR(null).solve(system, u2, v2, 1e-6f, 2000);
+
+		for (int y = 0; y < 23; y++)
+		{
+			for (int x = 0; x < 31; x++)
+			{
+				assertEquals(u1.get(x, y), u2.get(x, y), 0.001);
+				assertEquals(v1.get(x, y), v2.get(x, y), 0.001);
+			}
+		}
+	}
+
+	@Test
+	public void testCheckerboardThreadsIndependent()
+	{
+		FlowSystem system = createSystem(40, 17, 2);
+
+		FloatGrid u1 = new FloatGrid(40, 17);
+		FloatGrid v1 = new FloatGrid(40, 17);
+		FloatGrid u2 = new FloatGrid(40, 17);
+		FloatGrid v2 = new FloatGrid(40, 17);
+
+		// Pixels of one colour never touch, so every update is the same no matter how the rows are split
+		new CheckerboardSOR(null).sweep(system, u1, v1);
+		new CheckerboardSOR(new Parallel(new ForkJoinPool(4), false)).sweep(system, u2, v2);
+
+		for (int y = 0; y < 40; y++)
+		{
+			for (int x = 0; x < 17; x++)
+			{
+				assertEquals(u1.get(x, y), u2.get(x, y), 0);
+				assertEquals(v1.get(x, y), v2.get(x, y), 0);
+			}
+		}
+	}
+
+	@Test
+	public void testMultigridMatchesSOR()
+	{
+		FlowSystem system = createSystem(45, 61, 3);
+
+		FloatGrid u1 = new FloatGrid(45, 61);
+		FloatGrid v1 = new FloatGrid(45, 61);
+		FloatGrid u2 = new FloatGrid(45, 61);
+		FloatGrid v2 = new FloatGrid(45, 61);
+
+		new SORSolver().solve(system, u1, v1, 1e-7f, 20000);
+
+		MultigridSolver mg = new MultigridSolver(null);
+		mg.solve(system, u2, v2, 1e-6f, 200);
+
+		for (int y = 0; y < 45; y++)
+		{
+			for (int x = 0; x < 61; x++)
+			{
+				assertEquals(u1.get(x, y), u2.get(x, y), 0.001);
+				assertEquals(v1.get(x, y), v2.get(x, y), 0.001);
+			}
+		}
+	}
+
+	@Test
+	public void testMultigridOddSizes()
+	{
+		// Smooth gradients weaken the data term, so the smoothness term decides how the cycles converge. Every level of
+		// the taller grid has an odd height
+		int[][] sizes = { { 64, 64 }, { 65, 64 }, { 97, 72 } };
+
+		for (int[] size : sizes)
+		{
+			final int h = size[0];
+			final int w = size[1];
+			Random r = new Random(5);
+			FloatGrid t1 = new FloatGrid(h, w);
+			FloatGrid t2 = new FloatGrid(h, w);
+			FloatGrid t2x = new FloatGrid(h, w);
+			FloatGrid t2y = new FloatGrid(h, w);
+
+			for (int y = 0; y < h; y++)
+			{
+				for (int x = 0; x < w; x++)
+				{
+					t1.set(x, y, (float) (128 + 100 * Math.sin(x * 0.05) * Math.cos(y * 0.07)));
+					t2.set(x, y, t1.get(x, y) + r.nextFloat() * 5);
+					t2x.set(x, y, (float) (5 * Math.cos(x * 0.05) + r.nextFloat()));
+					t2y.set(x, y, (float) (-7 * Math.sin(y * 0.07) + r.nextFloat()));
+				}
+			}
+
+			FlowSystem system = new FlowSystem(h, w);
+			system.omega = 1.9f;
+			system.load(t1, t2, t2x, t2y, new FloatGrid(h, w), new FloatGrid(h, w), 100);
+
+			for (boolean full : new boolean[] { false, true })
+			{
+				MultigridSolver mg = new MultigridSolver(null);
+				mg.fullMultigrid = full;
+				int cycles = mg.solve(system, new FloatGrid(h, w), new FloatGrid(h, w), 1e-4f, 200);
+
+				assertTrue(mg.getError() <= 1e-4f);
+				assertTrue(cycles < 30);
+			}
+		}
+	}
+
+	@Test
+	public void testMultigridCycles()
+	{
+		// Cycles needed should not grow with the size of the grid
+		int[] cycles = new int[2];
+		int[][] sizes = { { 37, 51 }, { 147, 203 } };
+
+		for (int i = 0; i < sizes.length; i++)
+		{
+			int h = sizes[i][0];
+			int w = sizes[i][1];
+			FlowSystem system = createSystem(h, w, 4);
+
+			MultigridSolver mg = new MultigridSolver(null);
+			mg.fullMultigrid = true;
+			cycles[i] = mg.solve(system, new FloatGrid(h, w), new FloatGrid(h, w), 1e-4f, 150);
+
+			assertTrue(mg.getError() <= 1e-4f);
+		}
+
+		assertTrue(cycles[1] <= cycles[0] + 5);
+	}
+
+	@Test
+	public void testPCGMatchesSOR()
+	{
+		FlowSystem system = createSystem(45, 61, 5);
+
+		FloatGrid u1 = new FloatGrid(45, 61);
+		FloatGrid v1 = new FloatGrid(45, 61);
+		FloatGrid u2 = new FloatGrid(45, 61);
+		FloatGrid v2 = new FloatGrid(45, 61);
+
+		new SORSolver().solve(system, u1, v1, 1e-7f, 20000);
+		int nIter = new PCGSolver(new Parallel(new ForkJoinPool(3), false)).solve(system, u2, v2, 1e-6f, 2000);
+
+		assertTrue(nIter < 2000);
+
+		for (int y = 0; y < 45; y++)
+		{
+			for (int x = 0; x < 61; x++)
+			{
+				assertEquals(u1.get(x, y), u2.get(x, y), 0.001);
+				assertEquals(v1.get(x, y), v2.get(x, y), 0.001);
+			}
+		}
+	}
+
+	@Test
+	public void testDeterministicThreads()
+	{
+		FlowSystem system = createSystem(101, 37, 6);
+		int[] threads = { 0, 2, 5 };
+
+		FloatGrid[] u = new FloatGrid[threads.length];
+		FloatGrid[] v = new FloatGrid[threads.length];
+		int[] nIter = new int[threads.length];
+
+		for (int i = 0; i < threads.length; i++)
+		{
+			u[i] = new FloatGrid(101, 37);
+			v[i] = new FloatGrid(101, 37);
+			ForkJoinPool pool = (threads[i] == 0) ? null : new ForkJoinPool(threads[i]);
+			nIter[i] = new PCGSolver(new Parallel(pool, true)).solve(system, u[i], v[i], 1e-5f, 500);
+		}
+
+		for (int i = 1; i < threads.length; i++)
+		{
+			assertEquals(nIter[0], nIter[i]);
+
+			for (int p = 0; p < u[0].size(); p++)
+			{
+				assertEquals(Float.floatToIntBits(u[0].data[p]), Float.floatToIntBits(u[i].data[p]));
+				assertEquals(Float.floatToIntBits(v[0].data[p]), Float.floatToIntBits(v[i].data[p]));
+			}
+		}
+	}
+
+	@Test
+	public void testWavefrontMatchesSOR()
+	{
+		// Passes that end early and passes deeper than the image still give the sweeps of plain SOR exactly
+		int[] depths = { 1, 4, 5, 30 };
+
+		for (int depth : depths)
+		{
+			FlowSystem system = createSystem(29, 23, 7);
+
+			FloatGrid u1 = new FloatGrid(29, 23);
+			FloatGrid v1 = new FloatGrid(29, 23);
+			FloatGrid u2 = new FloatGrid(29, 23);
+			FloatGrid v2 = new FloatGrid(29, 23);
+
+			SORSolver sor = new SORSolver();
+			WavefrontSOR wf = new WavefrontSOR();
+			wf.depth = depth;
+
+			assertEquals(12, sor.solve(system, u1, v1, 0, 12));
+			assertEquals(12, wf.solve(system, u2, v2, 0, 12));
+			assertEquals(Float.floatToIntBits(sor.getError()), Float.floatToIntBits(wf.getError()));
+
+			for (int i = 0; i < u1.size(); i++)
+			{
+				assertEquals(Float.floatToIntBits(u1.data[i]), Float.floatToIntBits(u2.data[i]));
+				assertEquals(Float.floatToIntBits(v1.data[i]), Float.floatToIntBits(v2.data[i]));
+			}
+		}
+	}
+
+	@Test
+	public void testActiveSetMatchesSOR()
+	{
+		// With a zero stop criterion no tile ever converges, so every sweep is a plain one
+		FlowSystem system = createSystem(37, 45, 8);
+
+		FloatGrid u1 = new FloatGrid(37, 45);
+		FloatGrid v1 = new FloatGrid(37, 45);
+		FloatGrid u2 = new FloatGrid(37, 45);
+		FloatGrid v2 = new FloatGrid(37, 45);
+
+		ActiveSetSOR as = new ActiveSetSOR();
+		as.tileSize = 8;
+
+		new SORSolver().solve(system, u1, v1, 0, 10);
+		as.solve(system, u2, v2, 0, 10);
+
+		assertEquals(1, as.getWorkFraction(), 0);
+
+		for (int i = 0; i < u1.size(); i++)
+		{
+			assertEquals(Float.floatToIntBits(u1.data[i]), Float.floatToIntBits(u2.data[i]));
+			assertEquals(Float.floatToIntBits(v1.data[i]), Float.floatToIntBits(v2.data[i]));
+		}
+	}
+
+	@Test
+	public void testActiveSetSkipsStatic()
+	{
+		// Only a small patch of the frame moves, the rest has no data term to drive the flow
+		int h = 96, w = 128;
+		Random r = new Random(9);
+		FloatGrid t1 = new FloatGrid(h, w);
+		FloatGrid t2 = new FloatGrid(h, w);
+		FloatGrid t2x = new FloatGrid(h, w);
+		FloatGrid t2y = new FloatGrid(h, w);
+
+		for (int y = 0; y < h; y++)
+		{
+			for (int x = 0; x < w; x++)
+			{
+				t2x.set(x, y, r.nextFloat() * 20 - 10);
+				t2y.set(x, y, r.nextFloat() * 20 - 10);
+				if (x > 20 && x < 36 && y > 40 && y < 56) t1.set(x, y, r.nextFloat() * 255);
+			}
+		}
+
+		FlowSystem system = new FlowSystem(h, w);
+		system.omega = 1.3f;
+		system.load(t1, t2, t2x, t2y, new FloatGrid(h, w), new FloatGrid(h, w), 15 * 15);
+
+		FloatGrid u1 = new FloatGrid(h, w);
+		FloatGrid v1 = new FloatGrid(h, w);
+		FloatGrid u2 = new FloatGrid(h, w);
+		FloatGrid v2 = new FloatGrid(h, w);
+
+		SORSolver sor = new SORSolver();
+		ActiveSetSOR as = new ActiveSetSOR();
+		as.tileSize = 16;
+
+		sor.solve(system, u1, v1, 1e-5f, 2000);
+		as.solve(system, u2, v2, 1e-5f, 2000);
+
+		// The last sweep covered every pixel and met the global criterion
+		assertTrue(as.getError() <= 1e-5f);
+		assertTrue(as.getWorkFraction() < 0.5);
+
+		for (int i = 0; i < u1.size(); i++)
+		{
+			assertEquals(u1.data[i], u2.data[i], 0.001);
+			assertEquals(v1.data[i], v2.data[i], 0.001);
+		}
+	}
+}
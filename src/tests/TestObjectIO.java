@@ -36,12 +36,12 @@ public class TestObjectIO
 		assertEquals(load.frame1path, save.frame1path);
 		assertEquals(load.frame2path, save.frame2path);
 		
-		for (int i = 0; i < load.fb1.length; i++)
+		for (int i = 0; i < load.fb1.height; i++)
 		{
-			for (int j = 0; j < load.fb1[0].length; j++)
+			for (int j = 0; j < load.fb1.width; j++)
 			{
-				assertEquals(load.fb1[i][j], save.fb1[i][j], 0);
-				assertEquals(load.fb2[i][j], save.fb2[i][j], 0);
+				assertEquals(load.fb1.get(j, i), save.fb1.get(j, i), 0);
+				assertEquals(load.fb2.get(j, i), save.fb2.get(j, i), 0);
 			}
 		}
 		
@@ -0,0 +1,184 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import hs_pyrimidal.FlowBatch;
+import hs_pyrimidal.HornSchunckPyrimidal;
+import hs_pyrimidal.PyramidCache;
+
+import org.junit.Test;
+
+import utility.FloatGrid;
+import utility.Images;
+import utility.VectorField;
+
+public class TestPyramidCache
+{
+	private FloatGrid frame(int height, int width, Random r)
+	{
+		FloatGrid g = new FloatGrid(height, width);
+
+		for (int i = 0; i < g.size(); i++)
+		{
+			g.data[i] = r.nextInt(256);
+		}
+
+		return g;
+	}
+
+	private HornSchunckPyrimidal create()
+	{
+		HornSchunckPyrimidal hsp = new HornSchunckPyrimidal();
+		hsp.nWarps = 2;
+		hsp.maxIterations = 30;
+
+		return hsp;
+	}
+
+	@Test
+	public void testHitsByContent()
+	{
+		Random r = new Random(5);
+		FloatGrid f1 = frame(40, 52, r);
+		FloatGrid f2 = frame(40, 52, r);
+
+		HornSchunckPyrimidal hsp = create();
+		PyramidCache cache = new PyramidCache(64L << 20);
+
+		Images[] first = cache.get(hsp, f1, f2, 3, 0.5f, true);
+
+		// Copies of the same frames find the same pyramid
+		assertTrue(first == cache.get(hsp, f1.copy(), f2.copy(), 3, 0.5f, true));
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+
+		// Other frames or settings do not
+		FloatGrid changed = f2.copy();
+		changed.data[17] += 1;
+
+		assertTrue(first != cache.get(hsp, f1, changed, 3, 0.5f, true));
+		assertTrue(first != cache.get(hsp, f1, f2, 3, 0.65f, true));
+		assertTrue(first != cache.get(hsp, f1, f2, 2, 0.5f, true));
+		assertTrue(first != cache.get(hsp, f1, f2, 3, 0.5f, false));
+
+		hsp.halfPrecision = true;
+		assertTrue(first != cache.get(hsp, f1, f2, 3, 0.5f, true));
+
+		assertEquals(6, cache.getMisses());
+		assertEquals(1, cache.getHits());
+		assertEquals(0, cache.getEvictions());
+		assertEquals(6, cache.size());
+	}
+
+	@Test
+	public void testEviction()
+	{
+		Random r = new Random(6);
+		FloatGrid[] frames = { frame(40, 52, r), frame(40, 52, r), frame(40, 52, r) };
+
+		HornSchunckPyrimidal hsp = create();
+
+		// Room for two pyramids of 40x52 and 20x26, frames and gradients in floats
+		long pyramid = 16L * (40 * 52 + 20 * 26);
+		PyramidCache cache = new PyramidCache(2 * pyramid);
+
+		Images[] a = cache.get(hsp, frames[0], frames[1], 2, 0.5f, true);
+		Images[] b = cache.get(hsp, frames[1], frames[2], 2, 0.5f, true);
+		assertEquals(2 * pyramid, cache.getBytes());
+
+		// Using a makes b the least recently used, which the third pyramid pushes out
+		assertTrue(a == cache.get(hsp, frames[0], frames[1], 2, 0.5f, true));
+		cache.get(hsp, frames[2], frames[0], 2, 0.5f, true);
+
+		assertEquals(1, cache.getEvictions());
+		assertEquals(2, cache.size());
+		assertTrue(a == cache.get(hsp, frames[0], frames[1], 2, 0.5f, true));
+		assertTrue(b != cache.get(hsp, frames[1], frames[2], 2, 0.5f, true));
+	}
+
+	@Test
+	public void testSweep()
+	{
+		Random r = new Random(7);
+		FloatGrid f1 = frame(40, 52, r);
+		FloatGrid f2 = frame(40, 52, r);
+
+		HornSchunckPyrimidal plain = create();
+		HornSchunckPyrimidal cached = create();
+		cached.pyramidCache = new PyramidCache(64L << 20);
+
+		// A sweep over alpha builds the pyramid once, and gives the flow of runs without the cache
+		for (int alpha = 5; alpha <= 15; alpha += 5)
+		{
+			plain.alpha = alpha;
+			cached.alpha = alpha;
+
+			VectorField expected = plain.run(f1, f2);
+			VectorField flow = cached.run(f1, f2);
+
+			for (int i = 0; i < expected.u.size(); i++)
+			{
+				assertEquals(expected.u.data[i], flow.u.data[i], 0);
+				assertEquals(expected.v.data[i], flow.v.data[i], 0);
+			}
+		}
+
+		assertEquals(1, cached.pyramidCache.getMisses());
+		assertEquals(2, cached.pyramidCache.getHits());
+	}
+
+	@Test
+	public void testSharedByThreads() throws Exception
+	{
+		Random r = new Random(8);
+		FloatGrid[] frames = { frame(40, 52, r), frame(40, 52, r), frame(40, 52, r) };
+
+		HornSchunckPyrimidal plain = create();
+		HornSchunckPyrimidal cached = create();
+		cached.pyramidCache = new PyramidCache(64L << 20);
+
+		// Two pairs, each run several times by workers that share the cached pyramids
+		List<Images> pairs = new ArrayList<Images>();
+
+		for (int k = 0; k < 8; k++)
+		{
+			pairs.add(new Images(frames[k % 2], frames[k % 2 + 1]));
+		}
+
+		FlowBatch batch = new FlowBatch(cached, 4, 4);
+		List<VectorField> flows = batch.runAll(pairs);
+		batch.shutdown();
+
+		for (int k = 0; k < pairs.size(); k++)
+		{
+			VectorField expected = plain.run(pairs.get(k).fb1, pairs.get(k).fb2);
+
+			for (int i = 0; i < expected.u.size(); i++)
+			{
+				assertEquals(expected.u.data[i], flows.get(k).u.data[i], 0);
+				assertEquals(expected.v.data[i], flows.get(k).v.data[i], 0);
+			}
+		}
+
+		// The runs left the cached levels as they were built
+		final int nScales = cached.getScales(52, 40);
+
+		for (int p = 0; p < 2; p++)
+		{
+			Images[] built = plain.createImagePyramid(frames[p], frames[p + 1], nScales, cached.dFactor, true);
+			Images[] shared = cached.pyramidCache.get(cached, frames[p], frames[p + 1], nScales, cached.dFactor, true);
+
+			for (int s = 0; s < nScales; s++)
+			{
+				assertArrayEquals(built[s].fb1.data, shared[s].fb1.data, 0);
+				assertArrayEquals(built[s].fb2.data, shared[s].fb2.data, 0);
+			}
+		}
+
+		assertEquals(2, cached.pyramidCache.size());
+	}
+}
@@ -0,0 +1,106 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import hs_pyrimidal.HornSchunckPyrimidal;
+import hs_pyrimidal.SolverMode;
+import hs_pyrimidal.SolverWorkspace;
+
+import org.junit.Test;
+
+import utility.FloatGrid;
+import utility.VectorField;
+
+public class TestSolverWorkspace
+{
+	private FloatGrid random(int height, int width, Random r)
+	{
+		FloatGrid g = new FloatGrid(height, width);
+
+		for (int i = 0; i < g.size(); i++)
+		{
+			g.data[i] = r.nextFloat() * 255;
+		}
+
+		return g;
+	}
+
+	@Test
+	public void testReuse()
+	{
+		FloatGrid big = new FloatGrid(10, 12);
+		FloatGrid small = FloatGrid.reuse(big, 5, 7);
+
+		assertTrue(small.data == big.data);
+		assertEquals(5, small.height);
+		assertEquals(7, small.width);
+		assertTrue(FloatGrid.reuse(small, 10, 12).data == big.data);
+		assertTrue(FloatGrid.reuse(big, 10, 12) == big);
+		assertFalse(FloatGrid.reuse(big, 11, 12).data == big.data);
+	}
+
+	@Test
+	public void testRunsShareBuffers()
+	{
+		Random r = new Random(1);
+		FloatGrid t1 = random(48, 64, r);
+		FloatGrid t2 = random(48, 64, r);
+
+		for (SolverMode mode : new SolverMode[] { SolverMode.SOR, SolverMode.MULTIGRID, SolverMode.PCG })
+		{
+			HornSchunckPyrimidal hsp = new HornSchunckPyrimidal();
+			hsp.solverMode = mode;
+			hsp.nWarps = 2;
+			SolverWorkspace ws = new SolverWorkspace();
+			hsp.workspace = ws;
+
+			VectorField first = hsp.run(t1.copy(), t2.copy());
+			float[] buffer = ws.flow(0, 1, 1).u.data;
+
+			// The second run keeps the buffers of the first
+			VectorField second = hsp.run(t1.copy(), t2.copy());
+			assertTrue(buffer == ws.flow(0, 1, 1).u.data);
+
+			// A fresh workspace gives the same result as a used one
+			hsp.workspace = new SolverWorkspace();
+			VectorField third = hsp.run(t1.copy(), t2.copy());
+
+			for (int i = 0; i < first.u.size(); i++)
+			{
+				assertEquals(first.u.data[i], second.u.data[i], 0);
+				assertEquals(first.v.data[i], second.v.data[i], 0);
+				assertEquals(first.u.data[i], third.u.data[i], 0);
+				assertEquals(first.v.data[i], third.v.data[i], 0);
+			}
+
+			// The result is a copy, not a view of the workspace
+			assertFalse(first.u.data == buffer);
+			assertFalse(second.u.data == first.u.data);
+		}
+	}
+
+	@Test
+	public void testReserveBoundsBuffers()
+	{
+		SolverWorkspace ws = new SolverWorkspace();
+		ws.reserve(30, 40);
+
+		float[] flow = ws.flow(1, 30, 40).u.data;
+		float[] coefficients = ws.system.Au.data;
+		float[] warped = ws.warper.warped.data;
+
+		// Every smaller level is a view of the buffers reserved for the finest one
+		for (int h = 30, w = 40; h > 4; h = (int) (h * 0.65f + 0.5), w = (int) (w * 0.65f + 0.5))
+		{
+			ws.system.resize(h, w);
+			ws.warper.resize(h, w);
+
+			assertTrue(ws.flow(1, h, w).u.data == flow);
+			assertTrue(ws.system.Au.data == coefficients);
+			assertTrue(ws.warper.warped.data == warped);
+			assertTrue(ws.gradientX(h, w).data.length == 30 * 40);
+		}
+	}
+}
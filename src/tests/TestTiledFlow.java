@@ -0,0 +1,65 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import hs_pyrimidal.HornSchunckPyrimidal;
+import hs_pyrimidal.TiledFlow;
+
+import org.junit.Test;
+
+import utility.FloatGrid;
+import utility.VectorField;
+
+public class TestTiledFlow
+{
+	@Test
+	public void testMatchesWholeFrame()
+	{
+		FloatGrid f1 = new FloatGrid(150, 200);
+		FloatGrid f2 = new FloatGrid(150, 200);
+
+		for (int y = 0; y < f1.height; y++)
+		{
+			for (int x = 0; x < f1.width; x++)
+			{
+				f1.set(x, y, (float) (127 + 60 * Math.sin(0.3 * x + 0.1 * y) + 50 * Math.cos(0.23 * y - 0.17 * x)));
+				f2.set(x, y, (float) (127 + 60 * Math.sin(0.3 * (x + 1.5) + 0.1 * y) + 50 * Math.cos(0.23 * (y - 1) - 0.17 * (x + 1.5))));
+			}
+		}
+
+		HornSchunckPyrimidal hsp = new HornSchunckPyrimidal();
+		hsp.nWarps = 2;
+		hsp.roiMargin = 16;
+		VectorField whole = hsp.run(f1, f2);
+
+		// A budget for tiles of 64 pixels plus margin and overlap, so the frame is cut into 4 x 3 tiles
+		TiledFlow tiled = new TiledFlow(hsp);
+		tiled.overlap = 16;
+		tiled.nThreads = 2;
+		tiled.memoryBudget = (long) TiledFlow.BYTES_PER_PIXEL * 112 * 112;
+		assertEquals(64, tiled.getTileSize());
+
+		VectorField flow = tiled.run(f1, f2);
+
+		for (int i = 0; i < whole.u.size(); i++)
+		{
+			assertEquals(whole.u.data[i], flow.u.data[i], 0.05);
+			assertEquals(whole.v.data[i], flow.v.data[i], 0.05);
+		}
+
+		assertTrue(tiled.getSeamError(flow, whole) > 0);
+		assertTrue(tiled.getSeamError(flow, whole) < 0.01);
+
+		// The 4 cores across the frame are 50 pixels, too narrow for ramps of 64
+		tiled.overlap = 64;
+
+		try
+		{
+			tiled.run(f1, f2);
+			fail("Ran with an overlap wider than a tile");
+		}
+		catch (IllegalStateException e)
+		{
+		}
+	}
+}
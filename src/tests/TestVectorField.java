@@ -1,7 +1,18 @@
 package tests;
 
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
 import org.junit.Test;
 
+import utility.VectorField;
+
 public class TestVectorField
 {
 	@Test
@@ -15,4 +26,58 @@ public class TestVectorField
 	{
 		
 	}
+
+	@Test
+	public void testFloRoundTrip() throws IOException
+	{
+		Random r = new Random(8);
+
+		// More pairs than are written in one block
+		VectorField flow = new VectorField(70, 110);
+
+		for (int i = 0; i < flow.u.size(); i++)
+		{
+			flow.u.data[i] = r.nextFloat() * 10 - 5;
+			flow.v.data[i] = r.nextFloat() * 10 - 5;
+		}
+
+		File file = File.createTempFile("flow", ".flo");
+		file.deleteOnExit();
+
+		flow.writeToFlo(file.getPath());
+		assertEquals(12 + 8 * 70 * 110, file.length());
+
+		VectorField read = VectorField.readFromFlo(file.getPath());
+		assertEquals(70, read.u.height);
+		assertEquals(110, read.u.width);
+
+		for (int i = 0; i < flow.u.size(); i++)
+		{
+			assertEquals(flow.u.data[i], read.u.data[i], 0);
+			assertEquals(flow.v.data[i], read.v.data[i], 0);
+		}
+
+		// Rewriting with a smaller field leaves no trailing data
+		new VectorField(2, 3).writeToFlo(file.getPath());
+		assertEquals(12 + 8 * 2 * 3, file.length());
+	}
+
+	@Test
+	public void testFloNegativeSize() throws IOException
+	{
+		File file = File.createTempFile("flow", ".flo");
+		file.deleteOnExit();
+
+		ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+		header.putFloat(VectorField.FLO_TAG).putInt(-3).putInt(-5);
+
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(header.array());
+		out.close();
+
+		// The size is rejected before anything is allocated, which reads as an empty field
+		VectorField read = VectorField.readFromFlo(file.getPath());
+		assertEquals(0, read.u.size());
+		assertTrue(file.delete());
+	}
 }
@@ -0,0 +1,157 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import hs_classic.HornSchunck;
+import hs_pyrimidal.FlowSystem;
+import hs_pyrimidal.HornSchunckPyrimidal;
+
+import org.junit.Test;
+
+import utility.FloatGrid;
+
+public class TestVectorKernels
+{
+	// Sizes including the degenerate one and two column cases
+	private static final int[][]	SIZES	= { { 23, 31 }, { 7, 2 }, { 5, 1 }, { 1, 9 }, { 40, 17 } };
+
+	private FloatGrid random(int height, int width, Random r, float scale)
+	{
+		FloatGrid g = new FloatGrid(height, width);
+
+		for (int i = 0; i < g.size(); i++)
+		{
+			g.data[i] = (r.nextFloat() - 0.5f) * scale;
+		}
+
+		return g;
+	}
+
+	private FlowSystem createSystem(int height, int width, Random r, boolean vectorKernels)
+	{
+		FlowSystem system = new FlowSystem(height, width);
+		system.omega = 1.9f;
+		system.vectorKernels = vectorKernels;
+		system.load(random(height, width, r, 255), random(height, width, r, 255), random(height, width, r, 20), random(height, width, r, 20),
+				new FloatGrid(height, width), new FloatGrid(height, width), 15 * 15);
+		return system;
+	}
+
+	private void assertClose(FloatGrid expected, FloatGrid actual, float tol)
+	{
+		for (int i = 0; i < expected.size(); i++)
+		{
+			assertEquals(expected.data[i], actual.data[i], tol * Math.max(1, Math.abs(expected.data[i])));
+		}
+	}
+
+	@Test
+	public void testGradient()
+	{
+		Random r = new Random(1);
+		HornSchunckPyrimidal hsp = new HornSchunckPyrimidal();
+
+		for (int[] s : SIZES)
+		{
+			// The scalar gradient needs at least two rows and columns
+			if (s[0] < 2 || s[1] < 2) continue;
+
+			FloatGrid img = random(s[0], s[1], r, 255);
+			FloatGrid ix1 = new FloatGrid(s[0], s[1]), iy1 = new FloatGrid(s[0], s[1]);
+			FloatGrid ix2 = new FloatGrid(s[0], s[1]), iy2 = new FloatGrid(s[0], s[1]);
+
+			hsp.vectorKernels = false;
+			hsp.gradient(img, ix1, iy1);
+			hsp.vectorKernels = true;
+			hsp.gradient(img, ix2, iy2);
+
+			// Halving is exact in float, so both must agree bit for bit
+			assertClose(ix1, ix2, 0);
+			assertClose(iy1, iy2, 0);
+		}
+	}
+
+	@Test
+	public void testLocalAverages()
+	{
+		Random r = new Random(2);
+
+		for (int[] s : SIZES)
+		{
+			float[][] u = random(s[0], s[1], r, 10).toArray();
+			float[][] v = random(s[0], s[1], r, 10).toArray();
+			float[][] uBar1 = new float[s[0]][s[1]], vBar1 = new float[s[0]][s[1]];
+			float[][] uBar2 = new float[s[0]][s[1]], vBar2 = new float[s[0]][s[1]];
+
+			HornSchunck hs = new HornSchunck(1, 15);
+			hs.vectorKernels = false;
+			hs.computeLocalAverages(uBar1, vBar1, u, v);
+			hs.vectorKernels = true;
+			hs.computeLocalAverages(uBar2, vBar2, u, v);
+
+			assertClose(FloatGrid.fromArray(uBar1), FloatGrid.fromArray(uBar2), 1e-5f);
+			assertClose(FloatGrid.fromArray(vBar1), FloatGrid.fromArray(vBar2), 1e-5f);
+		}
+	}
+
+	@Test
+	public void testRelaxRow()
+	{
+		for (int[] s : SIZES)
+		{
+			for (int step = 1; step <= 2; step++)
+			{
+				FlowSystem scalar = createSystem(s[0], s[1], new Random(3), false);
+				FlowSystem wide = createSystem(s[0], s[1], new Random(3), true);
+
+				FloatGrid u1 = random(s[0], s[1], new Random(4), 4), v1 = random(s[0], s[1], new Random(5), 4);
+				FloatGrid u2 = u1.copy(), v2 = v1.copy();
+
+				float e1 = 0, e2 = 0;
+
+				for (int y = 0; y < s[0]; y++)
+				{
+					for (int start = 0; start < step; start++)
+					{
+						e1 += scalar.relaxRow(u1, v1, y, start, step, scalar.omega);
+						e2 += wide.relaxRow(u2, v2, y, start, step, wide.omega);
+					}
+				}
+
+				assertClose(u1, u2, 1e-4f);
+				assertClose(v1, v2, 1e-4f);
+				assertEquals(e1, e2, 1e-4f * e1);
+			}
+		}
+	}
+
+	@Test
+	public void testResidualAndMultiply()
+	{
+		for (int[] s : SIZES)
+		{
+			FlowSystem scalar = createSystem(s[0], s[1], new Random(6), false);
+			FlowSystem wide = createSystem(s[0], s[1], new Random(6), true);
+
+			FloatGrid u = random(s[0], s[1], new Random(7), 4), v = random(s[0], s[1], new Random(8), 4);
+			FloatGrid a1 = new FloatGrid(s[0], s[1]), b1 = new FloatGrid(s[0], s[1]);
+			FloatGrid a2 = new FloatGrid(s[0], s[1]), b2 = new FloatGrid(s[0], s[1]);
+
+			double r1 = scalar.residual(u, v, a1, b1, 0, s[0]);
+			double r2 = wide.residual(u, v, a2, b2, 0, s[0]);
+
+			assertClose(a1, a2, 1e-4f);
+			assertClose(b1, b2, 1e-4f);
+			assertEquals(r1, r2, 1e-4 * r1);
+
+			double m1 = scalar.multiply(u, v, a1, b1, 0, s[0]);
+			double m2 = wide.multiply(u, v, a2, b2, 0, s[0]);
+
+			assertClose(a1, a2, 1e-4f);
+			assertClose(b1, b2, 1e-4f);
+			assertEquals(m1, m2, 1e-4 * Math.abs(m1));
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import hs_pyrimidal.HornSchunckPyrimidal;
+import hs_pyrimidal.WarpEngine;
+
+import org.junit.Test;
+
+import utility.FloatGrid;
+
+public class TestWarpEngine
+{
+	private FloatGrid random(int height, int width, Random r, float scale)
+	{
+		FloatGrid g = new FloatGrid(height, width);
+
+		for (int i = 0; i < g.size(); i++)
+		{
+			g.data[i] = (r.nextFloat() - 0.5f) * scale;
+		}
+
+		return g;
+	}
+
+	@Test
+	public void testMatchesWarp()
+	{
+		Random r = new Random(1);
+		HornSchunckPyrimidal hsp = new HornSchunckPyrimidal();
+		WarpEngine engine = new WarpEngine(null);
+
+		int h = 19, w = 27;
+		FloatGrid img = random(h, w, r, 255);
+		FloatGrid imgX = random(h, w, r, 50);
+		FloatGrid imgY = random(h, w, r, 50);
+
+		// Small and large flows, so pixels land inside, on the border and outside of the image
+		for (float scale : new float[] { 1, 8, 60 })
+		{
+			FloatGrid u = random(h, w, r, scale);
+			FloatGrid v = random(h, w, r, scale);
+
+			for (boolean boundZero : new boolean[] { false, true })
+			{
+				engine.warp(img, imgX, imgY, u, v, boundZero);
+
+				FloatGrid[] sources = { img, imgX, imgY };
+				FloatGrid[] results = { engine.warped, engine.warpedX, engine.warpedY };
+
+				for (int k = 0; k < 3; k++)
+				{
+					FloatGrid expected = hsp.warp(sources[k], u, v, boundZero);
+
+					for (int i = 0; i < expected.size(); i++)
+					{
+						assertEquals(expected.data[i], results[k].data[i], 1e-3);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testReusesBuffers()
+	{
+		Random r = new Random(2);
+		WarpEngine engine = new WarpEngine(null);
+
+		FloatGrid img = random(8, 9, r, 255);
+		FloatGrid u = random(8, 9, r, 2);
+		FloatGrid v = random(8, 9, r, 2);
+
+		engine.warp(img, img, img, u, v, true);
+		FloatGrid warped = engine.warped;
+		engine.warp(img, img, img, v, u, true);
+
+		assertTrue(warped == engine.warped);
+	}
+}
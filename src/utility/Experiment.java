@@ -5,9 +5,17 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
 
 import hs_classic.HornSchunck;
+import hs_pyrimidal.FlowSystem;
 import hs_pyrimidal.HornSchunckPyrimidal;
+import hs_pyrimidal.LinearSolver;
+import hs_pyrimidal.PyramidCache;
+import hs_pyrimidal.SORSolver;
+import hs_pyrimidal.SolverMode;
+import hs_pyrimidal.WavefrontSOR;
 
 public class Experiment
 {
@@ -28,6 +36,11 @@ public class Experiment
 
 	public static final String[]	OP_COLUMNS		= new String[] { "alpha", "EPE", "AAE" };
 	public static final String[]	EXP_COLUMNS		= new String[] { "alpha", "EPE", "AAE" };
+	public static final String[]	DET_COLUMNS		= new String[] { "threads", "deterministic", "seconds", "EPE" };
+	public static final String[]	SWEEP_COLUMNS	= new String[] { "width", "height", "depth", "ms/sweep" };
+
+	// Memory for the pyramids kept between the runs of a sweep over alpha
+	public static final long		PYRAMID_CACHE_BYTES	= 256L << 20;
 
 	public Experiment()
 	{
@@ -68,6 +81,10 @@ public class Experiment
 		// exp.runEXP1();
 
 		// exp.runEXP2();
+
+		// exp.resultsToCSV(SWEEP_COLUMNS, exp.runSweepBenchmark(new int[][] { { 1920, 1080 }, { 3840, 2160 } }, new int[] { 1, 2, 4, 8 }, 20), "output/sweeps");
+
+		// exp.resultsToCSV(DET_COLUMNS, exp.runDeterminism(exp.testSequences.get(4), exp.groundTruths.get(4), SolverMode.PCG, new int[] { 1, 4 }), "output/determinism");
 	}
 
 	/**
@@ -128,6 +145,7 @@ public class Experiment
 	public float[][] runOPPilot(Images seq, VectorField gt)
 	{
 		HornSchunckPyrimidal hsp = new HornSchunckPyrimidal();
+		hsp.pyramidCache = new PyramidCache(PYRAMID_CACHE_BYTES);
 		float[][] results = new float[9][3];
 
 		// alpha 5 -> 45, incrementing by 5
@@ -141,6 +159,8 @@ public class Experiment
 			results[i - 1][2] = OPout.angularError(gt);
 		}
 
+		System.out.println(hsp.pyramidCache);
+
 		return results;
 	}
 
@@ -176,6 +196,7 @@ public class Experiment
 	private float[][] runEXP1testSequence(Images seq, VectorField gt, int low, int high)
 	{
 		HornSchunckPyrimidal hsp = new HornSchunckPyrimidal();
+		hsp.pyramidCache = new PyramidCache(PYRAMID_CACHE_BYTES);
 		float[][] results = new float[high - low + 1][3];
 
 		for (int i = low; i <= high; i++)
@@ -189,6 +210,8 @@ public class Experiment
 			results[i - low][2] = EXPout.angularError(gt);
 		}
 
+		System.out.println(hsp.pyramidCache);
+
 		return results;
 	}
 
@@ -203,7 +226,7 @@ public class Experiment
 			Images imgs = testSequences.get(i);
 			float[][] u = new float[imgs.height][imgs.width];
 			float[][] v = new float[imgs.height][imgs.width];
-			hs.run(u, v, imgs.fb1, imgs.fb2);
+			hs.run(u, v, imgs.fb1.toArray(), imgs.fb2.toArray());
 			VectorField result = new VectorField(u, v);
 			output[i][0] = 15;
 			output[i][1] = result.endPointError(groundTruths.get(i));
@@ -213,9 +236,119 @@ public class Experiment
 		resultsToCSV(EXP_COLUMNS, output, "output/experiment2/run1");
 	}
 	
+	/**
+	 * Time SOR sweeps on frames of the given sizes, plain (depth 0) and with the wavefront schedule at each depth.
+	 * The system is built from random gradients, as only the memory traffic matters here.
+	 * 
+	 * @param sizes Pairs of width and height
+	 * @param depths The sweeps per pass to try
+	 * @param sweeps The sweeps to time for each entry
+	 * @return One row of SWEEP_COLUMNS per size and depth
+	 */
+	public float[][] runSweepBenchmark(int[][] sizes, int[] depths, int sweeps)
+	{
+		float[][] results = new float[sizes.length * (depths.length + 1)][];
+		Random r = new Random(1);
+		int row = 0;
+
+		for (int[] size : sizes)
+		{
+			int w = size[0];
+			int h = size[1];
+
+			FloatGrid t1 = new FloatGrid(h, w), t2 = new FloatGrid(h, w), t2x = new FloatGrid(h, w), t2y = new FloatGrid(h, w);
+			for (int i = 0; i < t1.size(); i++)
+			{
+				t1.data[i] = r.nextFloat() * 255;
+				t2.data[i] = r.nextFloat() * 255;
+				t2x.data[i] = r.nextFloat() * 20 - 10;
+				t2y.data[i] = r.nextFloat() * 20 - 10;
+			}
+
+			FlowSystem system = new FlowSystem(h, w);
+			system.omega = 1.9f;
+			system.vectorKernels = VectorKernels.ENABLED;
+			system.load(t1, t2, t2x, t2y, new FloatGrid(h, w), new FloatGrid(h, w), 15 * 15);
+
+			for (int d = -1; d < depths.length; d++)
+			{
+				LinearSolver solver;
+
+				if (d < 0)
+				{
+					solver = new SORSolver();
+				}
+
+				else
+				{
+					WavefrontSOR wf = new WavefrontSOR();
+					wf.depth = depths[d];
+					solver = wf;
+				}
+
+				// Warm up, then time with a stop criterion that is never met
+				solver.solve(system, new FloatGrid(h, w), new FloatGrid(h, w), 0, 2);
+
+				FloatGrid u = new FloatGrid(h, w);
+				FloatGrid v = new FloatGrid(h, w);
+				long start = System.nanoTime();
+				solver.solve(system, u, v, 0, sweeps);
+				float ms = (System.nanoTime() - start) / 1e6f / sweeps;
+
+				results[row++] = new float[] { w, h, (d < 0) ? 0 : depths[d], ms };
+				System.out.format("%dx%d depth %d: %.2f ms/sweep\n", w, h, (d < 0) ? 0 : depths[d], ms);
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * Time a test sequence with the fast and the deterministic parallel modes for each number of threads. Prints the
+	 * throughput cost of the deterministic mode and whether its flows were identical for every thread count.
+	 */
+	public float[][] runDeterminism(Images seq, VectorField gt, SolverMode mode, int[] threads)
+	{
+		HornSchunckPyrimidal hsp = new HornSchunckPyrimidal();
+		hsp.setParams(15, 5, 0.0001f, 150, 10, 0.65f);
+		hsp.solverMode = mode;
+
+		float[][] results = new float[threads.length * 2][4];
+		VectorField first = null;
+		boolean identical = true;
+
+		for (int i = 0; i < threads.length; i++)
+		{
+			hsp.nThreads = threads[i];
+
+			for (int d = 0; d < 2; d++)
+			{
+				hsp.deterministic = (d == 1);
+
+				long start = System.nanoTime();
+				VectorField out = hsp.run(seq.fb1, seq.fb2);
+				float seconds = (System.nanoTime() - start) / 1e9f;
+
+				results[i * 2 + d] = new float[] { threads[i], d, seconds, out.endPointError(gt) };
+
+				if (hsp.deterministic)
+				{
+					if (first == null) first = out;
+					else identical &= Arrays.equals(first.u.data, out.u.data) && Arrays.equals(first.v.data, out.v.data);
+				}
+			}
+
+			System.out.format("%d threads: deterministic costs %.1f%% throughput\n", threads[i], 100 * (1 - results[i * 2][2] / results[i * 2 + 1][2]));
+		}
+
+		System.out.println("Deterministic flows identical: " + identical);
+		return results;
+	}
+
 	public void runDataTrend()
 	{
 		HornSchunckPyrimidal hsp = new HornSchunckPyrimidal();
+		hsp.pyramidCache = new PyramidCache(PYRAMID_CACHE_BYTES);
 		float[][] results = new float[9][3];
 		
 		VectorField[] phs = new VectorField[9];
@@ -248,7 +381,7 @@ public class Experiment
 		float[][] u = new float[test.height][test.width];
 		float[][] v = new float[test.height][test.width];
 
-		hs.run(u, v, test.fb1, test.fb2);
+		hs.run(u, v, test.fb1.toArray(), test.fb2.toArray());
 		VectorField out = new VectorField(u, v);
 		out.drawToImageColorModel("testColor");
 	}
@@ -0,0 +1,217 @@
+package utility;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * 
+ * @author Connor Fox
+ * 
+ * A 2-D grid of floats stored in a single row-major array. The value at (x, y) is data[y * width + x].
+ * 
+ * The data array may be longer than width * height, which lets a smaller grid use the front of a larger buffer.
+ */
+public class FloatGrid implements Serializable
+{
+	private static final long	serialVersionUID	= -2425398815617233562L;
+
+	public final float[]		data;
+	public final int			width, height;
+
+	public FloatGrid(int height, int width)
+	{
+		this(new float[height * width], height, width);
+	}
+
+	/**
+	 * Wrap an existing row-major buffer.
+	 * 
+	 * @param data
+	 * @param height
+	 * @param width
+	 */
+	public FloatGrid(float[] data, int height, int width)
+	{
+		if (data.length < height * width) throw new IllegalArgumentException("Buffer too small for " + width + "x" + height + " grid.");
+
+		this.data = data;
+		this.height = height;
+		this.width = width;
+	}
+
+	/**
+	 * Copy a 2-D (y, x) array into a new grid.
+	 * 
+	 * @param arr
+	 * @return
+	 */
+	public static FloatGrid fromArray(float[][] arr)
+	{
+		int h = arr.length;
+		int w = arr[0].length;
+		FloatGrid grid = new FloatGrid(h, w);
+
+		for (int y = 0; y < h; y++)
+		{
+			System.arraycopy(arr[y], 0, grid.data, y * w, w);
+		}
+
+		return grid;
+	}
+
+	/**
+	 * Copy the grid into a new 2-D (y, x) array.
+	 * 
+	 * @return
+	 */
+	public float[][] toArray()
+	{
+		float[][] arr = new float[height][width];
+
+		for (int y = 0; y < height; y++)
+		{
+			System.arraycopy(data, y * width, arr[y], 0, width);
+		}
+
+		return arr;
+	}
+
+	public int index(int x, int y)
+	{
+		return y * width + x;
+	}
+
+	public float get(int x, int y)
+	{
+		return data[y * width + x];
+	}
+
+	public void set(int x, int y, float value)
+	{
+		data[y * width + x] = value;
+	}
+
+	public int size()
+	{
+		return width * height;
+	}
+
+	public void fill(float value)
+	{
+		Arrays.fill(data, 0, width * height, value);
+	}
+
+	/**
+	 * Copy the values of another grid of the same size into this one.
+	 * 
+	 * @param src
+	 */
+	public void copyFrom(FloatGrid src)
+	{
+		System.arraycopy(src.data, 0, data, 0, width * height);
+	}
+
+	public FloatGrid copy()
+	{
+		FloatGrid grid = new FloatGrid(height, width);
+		grid.copyFrom(this);
+		return grid;
+	}
+
+	/**
+	 * Fill this grid from a buffer of row-major floats, such as a direct buffer from native code or a mapped file,
+	 * starting at the buffer's position.
+	 * 
+	 * @param src
+	 */
+	public void read(FloatBuffer src)
+	{
+		src.get(data, 0, width * height);
+	}
+
+	/**
+	 * Write this grid to a buffer as row-major floats, starting at the buffer's position.
+	 * 
+	 * @param dst
+	 */
+	public void write(FloatBuffer dst)
+	{
+		dst.put(data, 0, width * height);
+	}
+
+	/**
+	 * Convert an 8-bit greyscale frame, as delivered by capture code, straight into a new grid.
+	 * 
+	 * @param src Unsigned bytes, from the buffer's position
+	 * @param height
+	 * @param width
+	 * @param stride Bytes from the start of one row to the start of the next
+	 * @return
+	 */
+	public static FloatGrid fromGrey(ByteBuffer src, int height, int width, int stride)
+	{
+		FloatGrid grid = new FloatGrid(height, width);
+		final int base = src.position();
+		byte[] row = new byte[width];
+
+		for (int y = 0; y < height; y++)
+		{
+			src.position(base + y * stride);
+			src.get(row);
+
+			final int r = y * width;
+			for (int x = 0; x < width; x++)
+			{
+				grid.data[r + x] = row[x] & 0xff;
+			}
+		}
+
+		src.position(base);
+		return grid;
+	}
+
+	/**
+	 * Copy a rectangle of this grid into a new grid.
+	 * 
+	 * @param x Left column of the rectangle
+	 * @param y Top row of the rectangle
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public FloatGrid crop(int x, int y, int width, int height)
+	{
+		FloatGrid grid = new FloatGrid(height, width);
+
+		for (int r = 0; r < height; r++)
+		{
+			System.arraycopy(data, (y + r) * this.width + x, grid.data, r * width, width);
+		}
+
+		return grid;
+	}
+
+	/**
+	 * Get a grid of the given size, using the storage of an existing grid when it is large enough. The returned grid
+	 * shares its data with the old one and its values are left as they were.
+	 * 
+	 * @param grid The grid to reuse, may be null
+	 * @param height
+	 * @param width
+	 * @return
+	 */
+	public static FloatGrid reuse(FloatGrid grid, int height, int width)
+	{
+		if (grid == null || grid.data.length < height * width) return new FloatGrid(height, width);
+		if (grid.height == height && grid.width == width) return grid;
+
+		return new FloatGrid(grid.data, height, width);
+	}
+
+	public boolean sameSize(FloatGrid other)
+	{
+		return width == other.width && height == other.height;
+	}
+}
@@ -0,0 +1,136 @@
+package utility;
+
+import java.io.Serializable;
+
+/**
+ *
+ * @author Connor Fox
+ *
+ * A 2-D grid stored as IEEE 754 half precision (float16) values, for keeping images that are only read now and then at
+ * half the memory of a FloatGrid. Values are converted to float32 to be computed with, see decode.
+ *
+ * A half keeps 11 significant bits, so a grey value of 0-255 is kept to within 1/16 and a value below 1 to within 1/2048
+ * of itself. Values beyond 65504 become infinite.
+ */
+public class HalfGrid implements Serializable
+{
+	private static final long	serialVersionUID	= 6032907740153282311L;
+
+	public final short[]		data;
+	public final int			width, height;
+
+	public HalfGrid(int height, int width)
+	{
+		data = new short[height * width];
+		this.height = height;
+		this.width = width;
+	}
+
+	/**
+	 * Convert a grid to half precision.
+	 *
+	 * @param grid
+	 * @return
+	 */
+	public static HalfGrid encode(FloatGrid grid)
+	{
+		HalfGrid half = new HalfGrid(grid.height, grid.width);
+
+		for (int i = 0; i < half.data.length; i++)
+		{
+			half.data[i] = toHalf(grid.data[i]);
+		}
+
+		return half;
+	}
+
+	/**
+	 * Convert this grid back to single precision.
+	 *
+	 * @param out A grid of the same size to write to, or null for a new one
+	 * @return
+	 */
+	public FloatGrid decode(FloatGrid out)
+	{
+		if (out == null) out = new FloatGrid(height, width);
+
+		for (int i = 0; i < data.length; i++)
+		{
+			out.data[i] = toFloat(data[i]);
+		}
+
+		return out;
+	}
+
+	public int size()
+	{
+		return width * height;
+	}
+
+	/**
+	 * Round a float to the nearest half, ties to even.
+	 *
+	 * @param f
+	 * @return The bits of the half
+	 */
+	public static short toHalf(float f)
+	{
+		final int bits = Float.floatToRawIntBits(f);
+		final int sign = (bits >>> 16) & 0x8000;
+		final int exp = (bits >>> 23) & 0xff;
+		int mant = bits & 0x7fffff;
+
+		// Infinity and NaN, keeping NaN a NaN
+		if (exp == 0xff) return (short) (sign | 0x7c00 | ((mant != 0) ? 0x200 | (mant >>> 13) : 0));
+
+		final int e = exp - 127 + 15;
+
+		// Too large for a half
+		if (e >= 0x1f) return (short) (sign | 0x7c00);
+
+		// Subnormal half, or zero
+		if (e <= 0)
+		{
+			if (e < -10) return (short) sign;
+
+			mant |= 0x800000;
+			final int shift = 14 - e;
+			int half = mant >>> shift;
+			final int rem = mant & ((1 << shift) - 1);
+			final int mid = 1 << (shift - 1);
+
+			if (rem > mid || (rem == mid && (half & 1) != 0)) half++;
+			return (short) (sign | half);
+		}
+
+		// A carry out of the mantissa moves to the next exponent, or to infinity
+		int half = (e << 10) | (mant >>> 13);
+		final int rem = mant & 0x1fff;
+
+		if (rem > 0x1000 || (rem == 0x1000 && (half & 1) != 0)) half++;
+		return (short) (sign | half);
+	}
+
+	/**
+	 * The float value of a half, which is always exact.
+	 *
+	 * @param h The bits of the half
+	 * @return
+	 */
+	public static float toFloat(short h)
+	{
+		final int sign = (h & 0x8000) << 16;
+		final int exp = (h >>> 10) & 0x1f;
+		final int mant = h & 0x3ff;
+
+		if (exp == 0x1f) return Float.intBitsToFloat(sign | 0x7f800000 | (mant << 13));
+
+		if (exp == 0)
+		{
+			final float value = mant * 0x1p-24f;
+			return (sign != 0) ? -value : value;
+		}
+
+		return Float.intBitsToFloat(sign | ((exp + 112) << 23) | (mant << 13));
+	}
+}
@@ -6,6 +6,7 @@ import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 import javax.imageio.ImageIO;
 
@@ -13,22 +14,37 @@ public class Images implements Serializable
 {
 	private static final long	serialVersionUID	= 282984093637143045L;
 
+	// Smallest sigma smoothed with the recursive gaussian, see applyRecursiveGaussian
+	public static final double	RECURSIVE_MIN_SIGMA	= 0.7;
+
+	// Columns filtered together by the recursive gaussian
+	private static final int	COLUMN_BLOCK		= 64;
+
+	// Lines being filtered by the recursive gaussian, one buffer per thread kept at the largest size used
+	private static final ThreadLocal<double[]>	LINES	= new ThreadLocal<double[]>();
+
 	public String				frame1path, frame2path;
 
 	// original frame images
 	public transient BufferedImage	f1, f2;
 
-	// frame byte data (y, x)
-	public float[][]				fb1, fb2;
+	// frame byte data (row-major)
+	public FloatGrid				fb1, fb2;
+
+	// x and y gradients of the second frame, or null when not computed yet
+	public FloatGrid				fb2x, fb2y;
+
+	// The frames and gradients in half precision, once compressed
+	public HalfGrid					hb1, hb2, hb2x, hb2y;
 
 	// image width and height (both frames must be consistent)
 	public int						width, height;
 
 	public Images(int height, int width)
 	{
-		fb1 = new float[height][width];
-		fb2 = new float[height][width];
-		
+		fb1 = new FloatGrid(height, width);
+		fb2 = new FloatGrid(height, width);
+
 		this.width = width;
 		this.height = height;
 	}
@@ -52,11 +68,74 @@ public class Images implements Serializable
 	 */
 	public Images(float[][] imgBytes1, float[][] imgBytes2)
 	{
-		fb1 = imgBytes1;
-		fb2 = imgBytes2;
-		
-		height = fb1.length;
-		width = fb1[0].length;
+		this(FloatGrid.fromArray(imgBytes1), FloatGrid.fromArray(imgBytes2));
+	}
+
+	/**
+	 * 
+	 * @param img1
+	 * @param img2
+	 */
+	public Images(FloatGrid img1, FloatGrid img2)
+	{
+		fb1 = img1;
+		fb2 = img2;
+
+		height = fb1.height;
+		width = fb1.width;
+	}
+
+	/**
+	 * Constructor for two 8-bit greyscale frames in buffers, such as direct buffers filled by native capture code
+	 * 
+	 * @param grey1 The first frame, from the buffer's position
+	 * @param grey2 The second frame, from the buffer's position
+	 * @param height
+	 * @param width
+	 * @param stride Bytes from the start of one row to the start of the next
+	 */
+	public Images(ByteBuffer grey1, ByteBuffer grey2, int height, int width, int stride)
+	{
+		this(FloatGrid.fromGrey(grey1, height, width, stride), FloatGrid.fromGrey(grey2, height, width, stride));
+	}
+
+	/**
+	 * Keep the frames and gradients in half precision only, halving their memory. Use expand to compute with them. The
+	 * float grids are dropped, so the size of a compressed level is only in width and height.
+	 */
+	public void compress()
+	{
+		hb1 = HalfGrid.encode(fb1);
+		hb2 = HalfGrid.encode(fb2);
+		if (fb2x != null) hb2x = HalfGrid.encode(fb2x);
+		if (fb2y != null) hb2y = HalfGrid.encode(fb2y);
+
+		fb1 = fb2 = fb2x = fb2y = null;
+	}
+
+	public boolean isCompressed()
+	{
+		return hb1 != null;
+	}
+
+	/**
+	 * Convert compressed frames and gradients back to single precision.
+	 * 
+	 * @param b1 Grid to write the first frame to, or null for a new one
+	 * @param b2 Grid to write the second frame to, or null for a new one
+	 * @param b2x Grid to write the x gradient to, or null for a new one
+	 * @param b2y Grid to write the y gradient to, or null for a new one
+	 * @return A level in single precision, this one when it is not compressed
+	 */
+	public Images expand(FloatGrid b1, FloatGrid b2, FloatGrid b2x, FloatGrid b2y)
+	{
+		if (!isCompressed()) return this;
+
+		Images level = new Images(hb1.decode(b1), hb2.decode(b2));
+		if (hb2x != null) level.fb2x = hb2x.decode(b2x);
+		if (hb2y != null) level.fb2y = hb2y.decode(b2y);
+
+		return level;
 	}
 
 	/**
@@ -77,8 +156,8 @@ public class Images implements Serializable
 		width = f1.getWidth();
 		height = f1.getHeight();
 
-		fb1 = to2dArray(extractByteDataGrayscale(f1), width);
-		fb2 = to2dArray(extractByteDataGrayscale(f2), width);
+		fb1 = new FloatGrid(extractByteDataGrayscale(f1), height, width);
+		fb2 = new FloatGrid(extractByteDataGrayscale(f2), height, width);
 	}
 
 	/**
@@ -90,18 +169,27 @@ public class Images implements Serializable
 	 */
 	public static BufferedImage floatsToImage(float[][] values, String fileName)
 	{
-		int w = values[0].length;
-		int h = values.length;
+		return floatsToImage(FloatGrid.fromArray(values), fileName);
+	}
+
+	/**
+	 * Write a grid of floats to an image and save the image to a file
+	 * 
+	 * @param values
+	 * @param fileName
+	 * @return
+	 */
+	public static BufferedImage floatsToImage(FloatGrid values, String fileName)
+	{
+		int w = values.width;
+		int h = values.height;
 
 		byte[] bytes = new byte[w * h];
 		BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
 
-		for (int i = 0; i < values.length; i++)
+		for (int i = 0; i < bytes.length; i++)
 		{
-			for (int j = 0; j < values[0].length; j++)
-			{
-				bytes[(i * values[0].length) + j] = (byte) values[i][j];
-			}
+			bytes[i] = (byte) values.data[i];
 		}
 
 		byte[] imgData = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
@@ -127,54 +215,102 @@ public class Images implements Serializable
 	 * @param n2 frame 2 output
 	 */
 	public static void normalizeGreyscale(final float[][] i1, final float[][] i2, float[][] n1, float[][] n2)
+	{
+		FloatGrid g1 = FloatGrid.fromArray(i1);
+		FloatGrid g2 = FloatGrid.fromArray(i2);
+
+		normalizeGreyscale(g1, g2, g1, g2);
+
+		for (int i = 0; i < i1.length; i++)
+		{
+			System.arraycopy(g1.data, i * g1.width, n1[i], 0, g1.width);
+			System.arraycopy(g2.data, i * g2.width, n2[i], 0, g2.width);
+		}
+	}
+
+	/**
+	 * Normalize both frames to the range 0-255 of their joint values
+	 * @param i1 frame 1 input
+	 * @param i2 frame 2 input
+	 * @param n1 frame 1 output (may be i1)
+	 * @param n2 frame 2 output (may be i2)
+	 */
+	public static void normalizeGreyscale(final FloatGrid i1, final FloatGrid i2, FloatGrid n1, FloatGrid n2)
+	{
+		final float[] range = greyscaleRange(i1, i2);
+		final float minValue = range[0];
+		final float diff = range[1] - range[0];
+		final int size = i1.size();
+
+		// Normalize all bytes according to algorithm:
+		// (I[n] - min) * (255 / max - min)
+		for (int i = 0; i < size; i++)
+		{
+			n1.data[i] = ((i1.data[i] - minValue) * (255 / diff));
+			n2.data[i] = ((i2.data[i] - minValue) * (255 / diff));
+		}
+	}
+
+	/**
+	 * The joint range of two frames that normalizeGreyscale maps to 0-255
+	 * @param i1 frame 1
+	 * @param i2 frame 2
+	 * @return The lowest and the highest value
+	 */
+	public static float[] greyscaleRange(final FloatGrid i1, final FloatGrid i2)
 	{
 		float maxValue = Float.MIN_VALUE;
 		float minValue = Float.MAX_VALUE;
-		float diff = -1;
 		float v = -1;
+		final int size = i1.size();
 
 		// Determine value range
-		for (int i = 0; i < i1.length; i++)
+		for (int i = 0; i < size; i++)
 		{
-			for (int j = 0; j < i1[0].length; j++)
-			{
-				v = i1[i][j];
+			v = i1.data[i];
 
-				if (v > maxValue)
-				{
-					maxValue = v;
-				}
+			if (v > maxValue)
+			{
+				maxValue = v;
+			}
 
-				else if (v < minValue)
-				{
-					minValue = v;
-				}
-				
-				v = i2[i][j];
-				
-				if (v > maxValue)
-				{
-					maxValue = v;
-				}
+			else if (v < minValue)
+			{
+				minValue = v;
+			}
+			
+			v = i2.data[i];
+			
+			if (v > maxValue)
+			{
+				maxValue = v;
+			}
 
-				else if (v < minValue)
-				{
-					minValue = v;
-				}
+			else if (v < minValue)
+			{
+				minValue = v;
 			}
 		}
 
-		diff = maxValue - minValue;
+		return new float[] { minValue, maxValue };
+	}
 
-		// Normalize all bytes according to algorithm:
-		// (I[n] - min) * (255 / max - min)
-		for (int i = 0; i < i1.length; i++)
+	/**
+	 * Normalize one frame to the range 0-255 of the given values, so that frames of a sequence normalized with the same
+	 * range stay comparable
+	 * @param i frame input
+	 * @param n frame output (may be i)
+	 * @param minValue value mapped to 0
+	 * @param maxValue value mapped to 255
+	 */
+	public static void normalizeGreyscale(final FloatGrid i, FloatGrid n, float minValue, float maxValue)
+	{
+		final float scale = 255 / (maxValue - minValue);
+		final int size = i.size();
+
+		for (int p = 0; p < size; p++)
 		{
-			for (int j = 0; j < i1[0].length; j++)
-			{
-				n1[i][j] = ((i1[i][j] - minValue) * (255 / diff));
-				n2[i][j] = ((i2[i][j] - minValue) * (255 / diff));
-			}
+			n.data[p] = ((i.data[p] - minValue) * scale);
 		}
 	}
 
@@ -183,27 +319,180 @@ public class Images implements Serializable
 	 */
 	public static float[][] applyGaussianSmoothing(float[][] image, int radius, double sigma)
 	{
-		int h = image.length;
-		int w = image[0].length;
-		double sum = 0;
-		int size = (int) (radius * sigma) + 1;
+		return applyGaussianSmoothing(FloatGrid.fromArray(image), radius, sigma).toArray();
+	}
+
+	/**
+	 * Smooth the image using the gaussian blur function Use reflecting boundary conditions
+	 */
+	public static FloatGrid applyGaussianSmoothing(FloatGrid image, int radius, double sigma)
+	{
+		return applyGaussianSmoothing(image, radius, sigma, new Parallel(null, false));
+	}
+
+	/**
+	 * Smooth the image using the gaussian blur function Use reflecting boundary conditions. The rows of each pass are
+	 * spread over the given pool.
+	 */
+	public static FloatGrid applyGaussianSmoothing(FloatGrid image, int radius, double sigma, Parallel parallel)
+	{
+		return applyGaussianSmoothing(image, radius, sigma, parallel, null, null);
+	}
+
+	/**
+	 * Smooth the image using the gaussian blur function Use reflecting boundary conditions. The rows of each pass are
+	 * spread over the given pool.
+	 * 
+	 * Only the pixels within the kernel's reach of an edge look up reflected indices, the interior of each pass reads
+	 * its neighbours directly. The vertical pass adds whole rows, so both passes read memory in order.
+	 * 
+	 * @param image
+	 * @param radius
+	 * @param sigma
+	 * @param parallel
+	 * @param scratch A grid to hold the horizontal pass, reused if large enough (see FloatGrid.reuse), may be null
+	 * @param out A grid to write the result to, reused if large enough, may be null. Must not be image.
+	 * @return The smoothed image
+	 */
+	public static FloatGrid applyGaussianSmoothing(final FloatGrid image, int radius, double sigma, Parallel parallel,
+			FloatGrid scratch, FloatGrid out)
+	{
+		final int h = image.height;
+		final int w = image.width;
+		final int size = (int) (radius * sigma) + 1;
 		
 		if (size > w)
 			System.err.println("Gaussian Smooth: sigma too large for window size.");
 
-		//Create a tempory working array of the image as doubles.
-		double[][] tmpImg = new double[h][w];
-		for (int i = 0; i < h; i++)
+		return convolve(image, createNormalizedKernel(size, sigma), parallel, scratch, out);
+	}
+
+	/**
+	 * Convolve the image with a symmetric kernel along the rows and then along the columns, with reflecting boundary
+	 * conditions, see applyGaussianSmoothing.
+	 * 
+	 * @param image
+	 * @param kernel Half of the kernel, centre first
+	 * @param parallel
+	 * @param scratch A grid to hold the horizontal pass, reused if large enough (see FloatGrid.reuse), may be null
+	 * @param out A grid to write the result to, reused if large enough, may be null. Must not be image.
+	 * @return The convolved image
+	 */
+	public static FloatGrid convolve(final FloatGrid image, final float[] kernel, Parallel parallel, FloatGrid scratch,
+			FloatGrid out)
+	{
+		final int h = image.height;
+		final int w = image.width;
+		final int size = kernel.length;
+		final float[] gsImgX = FloatGrid.reuse(scratch, h, w).data;
+		final FloatGrid gsImgY = FloatGrid.reuse(out, h, w);
+
+		// Columns whose taps all fall inside the row
+		final int left = Math.min(size - 1, w);
+		final int right = Math.max(left, w - size + 1);
+
+		// convolve in x
+		parallel.sum(0, h, new Parallel.Rows()
 		{
-			for (int j = 0; j < w; j++)
+			@Override
+			public double compute(int from, int to)
 			{
-				tmpImg[i][j] = image[i][j];
+				final float[] src = image.data;
+
+				for (int y = from; y < to; y++)
+				{
+					final int row = y * w;
+
+					for (int x = 0; x < left; x++)
+					{
+						gsImgX[row + x] = reflectTaps(src, row, x, w, kernel);
+					}
+
+					for (int x = left; x < right; x++)
+					{
+						final int p = row + x;
+						float sum = src[p] * kernel[0];
+
+						for (int i = 1; i < kernel.length; i++)
+						{
+							sum += (src[p + i] + src[p - i]) * kernel[i];
+						}
+
+						gsImgX[p] = sum;
+					}
+
+					for (int x = right; x < w; x++)
+					{
+						gsImgX[row + x] = reflectTaps(src, row, x, w, kernel);
+					}
+				}
+
+				return 0;
+			}
+		});
+
+		// convolve in y, a row at a time
+		parallel.sum(0, h, new Parallel.Rows()
+		{
+			@Override
+			public double compute(int from, int to)
+			{
+				final float[] dst = gsImgY.data;
+
+				for (int y = from; y < to; y++)
+				{
+					final int row = y * w;
+
+					for (int x = 0; x < w; x++)
+					{
+						dst[row + x] = gsImgX[row + x] * kernel[0];
+					}
+
+					for (int i = 1; i < kernel.length; i++)
+					{
+						final int below = reflect(y + i, h) * w;
+						final int above = reflect(y - i, h) * w;
+						final float k = kernel[i];
+
+						for (int x = 0; x < w; x++)
+						{
+							dst[row + x] += (gsImgX[below + x] + gsImgX[above + x]) * k;
+						}
+					}
+				}
+
+				return 0;
 			}
+		});
+
+		return gsImgY;
+	}
+
+	/**
+	 * One output of the horizontal pass near the edge of a row, with reflected taps.
+	 */
+	private static float reflectTaps(float[] src, int row, int x, int w, float[] kernel)
+	{
+		float sum = src[row + x] * kernel[0];
+
+		for (int i = 1; i < kernel.length; i++)
+		{
+			sum += (src[row + reflect(x + i, w)] + src[row + reflect(x - i, w)]) * kernel[i];
 		}
-		
-		double[][] gsImgX = new double[h][w];
-		float[][] gsImgY = new float[h][w];
-		double[] kernel = create1DGaussianKernel(size, sigma);
+
+		return sum;
+	}
+
+	/**
+	 * The half kernel of applyGaussianSmoothing, centre first, scaled so that the whole kernel adds up to one.
+	 * 
+	 * @param size
+	 * @param sigma
+	 * @return
+	 */
+	public static float[] createNormalizedKernel(int size, double sigma)
+	{
+		final double[] kernel = create1DGaussianKernel(size, sigma);
 		
 		//Normalize kernel again (may not be nessecary)
 		double n = 0;
@@ -215,48 +504,229 @@ public class Images implements Serializable
 		n *= 2;
 		n -= kernel[0];
 		
+		float[] normalized = new float[size];
+
 		for (int i = 0; i < size; i++)
 		{
-			kernel[i] /= n;
+			normalized[i] = (float) (kernel[i] / n);
 		}
-		
-		// convolve in x
-		for (int y = 0; y < h; y++)
+
+		return normalized;
+	}
+
+	/**
+	 * Smooth the image with a recursive approximation of the gaussian (van Vliet, Young and Verbeek, 1998), whose cost
+	 * per pixel is the same for any sigma. Each line is run through a third order filter forwards and then backwards. The line is
+	 * padded with reflected values at both ends, as applyGaussianSmoothing reflects its taps.
+	 * 
+	 * The approximation only holds from RECURSIVE_MIN_SIGMA, below that this is applyGaussianSmoothing with a radius of 5.
+	 * Above it the result is within about 2% of the range of the image of the FIR filter, and 0.5% on average.
+	 * 
+	 * @param image
+	 * @param sigma
+	 * @param parallel
+	 * @param scratch A grid to hold the horizontal pass, reused if large enough (see FloatGrid.reuse), may be null
+	 * @param out A grid to write the result to, reused if large enough, may be null. Must not be image.
+	 * @return The smoothed image
+	 */
+	public static FloatGrid applyRecursiveGaussian(final FloatGrid image, double sigma, Parallel parallel, FloatGrid scratch,
+			FloatGrid out)
+	{
+		if (sigma < RECURSIVE_MIN_SIGMA) return applyGaussianSmoothing(image, 5, sigma, parallel, scratch, out);
+
+		final int h = image.height;
+		final int w = image.width;
+		final float[] gsImgX = FloatGrid.reuse(scratch, h, w).data;
+		final FloatGrid gsImgY = FloatGrid.reuse(out, h, w);
+
+		final double[] coefficients = recursiveCoefficients(sigma);
+
+		// Reflected values at each end, enough for the response of the filter to fade
+		final int pad = (int) (4 * sigma) + 4;
+
+		// filter the rows
+		parallel.sum(0, h, new Parallel.Rows()
 		{
-			for (int x = 0; x < w; x++)
+			@Override
+			public double compute(int from, int to)
 			{
-				sum = gpReflect(tmpImg, x, y) * kernel[0]; // TODO doubles instead of floats for intermediate arrays
+				final int padX = Math.min(pad, w - 1);
+				final int n = w + 2 * padX;
+				final double[] line = lines(n);
 
-				for (int i = 1; i < size; i++)
+				for (int y = from; y < to; y++)
 				{
-					sum += gpReflect(tmpImg, x + i, y) * kernel[i];
-					sum += gpReflect(tmpImg, x - i, y) * kernel[i];
+					for (int k = 0; k < n; k++)
+					{
+						line[k] = image.data[y * w + reflect(k - padX, w)];
+					}
+
+					recursiveLines(line, n, 1, coefficients);
+
+					for (int x = 0; x < w; x++)
+					{
+						gsImgX[y * w + x] = (float) line[x + padX];
+					}
 				}
 
-				gsImgX[y][x] = sum;
+				return 0;
 			}
-		}
+		});
 
-		// convolve in y
-		for (int y = 0; y < h; y++)
+		// filter the columns, a block of them at a time so that every step reads and writes a piece of a row
+		parallel.sum(0, (w + COLUMN_BLOCK - 1) / COLUMN_BLOCK, new Parallel.Rows()
 		{
-			for (int x = 0; x < w; x++)
+			@Override
+			public double compute(int from, int to)
 			{
-				sum = gpReflect(gsImgX, x, y) * kernel[0];
+				final int padY = Math.min(pad, h - 1);
+				final int n = h + 2 * padY;
+				final double[] lines = lines(n * COLUMN_BLOCK);
 
-				for (int i = 1; i < size; i++)
+				for (int b = from; b < to; b++)
 				{
-					sum += gpReflect(gsImgX, x, y + i) * kernel[i];
-					sum += gpReflect(gsImgX, x, y - i) * kernel[i];
+					final int x0 = b * COLUMN_BLOCK;
+					final int count = Math.min(COLUMN_BLOCK, w - x0);
+
+					for (int k = 0; k < n; k++)
+					{
+						final int row = reflect(k - padY, h) * w + x0;
+
+						for (int j = 0; j < count; j++)
+						{
+							lines[k * count + j] = gsImgX[row + j];
+						}
+					}
+
+					recursiveLines(lines, n, count, coefficients);
+
+					for (int y = 0; y < h; y++)
+					{
+						final int line = (y + padY) * count;
+
+						for (int j = 0; j < count; j++)
+						{
+							gsImgY.data[y * w + x0 + j] = (float) lines[line + j];
+						}
+					}
 				}
 
-				gsImgY[y][x] = (float) sum;
+				return 0;
 			}
-		}
+		});
 
 		return gsImgY;
 	}
 
+	/**
+	 * The weights of the input and of the three previous outputs in the recursive gaussian. The poles of the filter for
+	 * a sigma of 2 are scaled by a factor q, found by bisection so that the variance of the filter is sigma squared.
+	 */
+	private static double[] recursiveCoefficients(double sigma)
+	{
+		// Poles for sigma 2: a real one and a complex pair, as magnitude and angle
+		final double real = 1.86543;
+		final double radius = Math.hypot(1.41650, 1.00829);
+		final double angle = Math.atan2(1.00829, 1.41650);
+
+		double low = 0.01;
+		double high = 2 * sigma + 1;
+
+		for (int i = 0; i < 60; i++)
+		{
+			final double q = (low + high) / 2;
+
+			// Variance of the filter forwards and backwards, 2 sum(d / (d - 1)^2) over the poles d
+			final double d = Math.pow(real, 1 / q);
+			final double r = Math.pow(radius, 1 / q);
+			final double re = r * Math.cos(angle / q) - 1;
+			final double im = r * Math.sin(angle / q);
+
+			// d / (d - 1)^2 for the complex pole, with (d - 1)^2 = (re^2 - im^2) + 2 re im i
+			final double sr = re * re - im * im;
+			final double si = 2 * re * im;
+			final double pair = 2 * ((re + 1) * sr + im * si) / (sr * sr + si * si);
+
+			if (2 * (d / ((d - 1) * (d - 1)) + pair) < sigma * sigma) low = q;
+			else high = q;
+		}
+
+		final double q = (low + high) / 2;
+
+		// The recursion uses the inverses of the poles
+		final double p3 = Math.pow(real, -1 / q);
+		final double pr = Math.pow(radius, -1 / q);
+		final double re = pr * Math.cos(angle / q);
+
+		final double[] c = { 0, p3 + 2 * re, -(pr * pr + 2 * p3 * re), p3 * pr * pr };
+		c[0] = 1 - c[1] - c[2] - c[3];
+
+		return c;
+	}
+
+	/**
+	 * The line buffer of the calling thread, grown to at least size values.
+	 */
+	private static double[] lines(int size)
+	{
+		double[] lines = LINES.get();
+
+		if (lines == null || lines.length < size)
+		{
+			lines = new double[size];
+			LINES.set(lines);
+		}
+
+		return lines;
+	}
+
+	/**
+	 * Run interleaved lines through the recursive gaussian in place, forwards and then backwards. Sample k of line j is
+	 * at k * count + j. Each end starts as if the line went on with its end value, which the filter leaves unchanged.
+	 */
+	private static void recursiveLines(double[] lines, int n, int count, double[] c)
+	{
+		for (int k = 1; k < n; k++)
+		{
+			final int p1 = (k - 1) * count;
+			final int p2 = Math.max(k - 2, 0) * count;
+			final int p3 = Math.max(k - 3, 0) * count;
+
+			for (int j = 0; j < count; j++)
+			{
+				final int i = k * count + j;
+				lines[i] = c[0] * lines[i] + c[1] * lines[p1 + j] + c[2] * lines[p2 + j] + c[3] * lines[p3 + j];
+			}
+		}
+
+		for (int k = n - 2; k >= 0; k--)
+		{
+			final int p1 = (k + 1) * count;
+			final int p2 = Math.min(k + 2, n - 1) * count;
+			final int p3 = Math.min(k + 3, n - 1) * count;
+
+			for (int j = 0; j < count; j++)
+			{
+				final int i = k * count + j;
+				lines[i] = c[0] * lines[i] + c[1] * lines[p1 + j] + c[2] * lines[p2 + j] + c[3] * lines[p3 + j];
+			}
+		}
+	}
+
+	/**
+	 * Reflect an index into [0, n) the same way as gpReflect.
+	 * 
+	 * @param i
+	 * @param n
+	 * @return
+	 */
+	public static int reflect(int i, int n)
+	{
+		if (i < 0) return -i;
+		if (i > n - 1) return (n - 1) - (i - (n - 1));
+		return i;
+	}
+
 	/**
 	 * Gets the value of the point at a given x and y with reflecting boundary conditions
 	 * 
@@ -0,0 +1,199 @@
+package utility;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * 
+ * @author Connor Fox
+ * 
+ * Helpers for spreading row loops over a fork/join pool.
+ * 
+ * An instance pairs a pool with a reduction policy. The fast policy splits the rows by the size of the pool and adds
+ * the partial sums as tasks join, so the rounding of a sum depends on the number of threads. The deterministic policy
+ * always cuts the rows into bands of BAND rows and adds the band sums in row order, so every sum (and everything
+ * decided from it) is the same bit for bit whatever the number of threads, including none.
+ */
+public class Parallel
+{
+	// Rows per band in deterministic mode
+	public static final int		BAND	= 8;
+
+	public final ForkJoinPool	pool;
+	public final boolean		deterministic;
+
+	/**
+	 * @param pool The pool to run on, or null to run on the calling thread
+	 * @param deterministic Whether sums must not depend on the number of threads
+	 */
+	public Parallel(ForkJoinPool pool, boolean deterministic)
+	{
+		this.pool = pool;
+		this.deterministic = deterministic;
+	}
+
+	/**
+	 * Run a row loop over [from, to) with the policy of this instance.
+	 * 
+	 * @param from First row (inclusive)
+	 * @param to Last row (exclusive)
+	 * @param body The work to do for each range of rows
+	 * @return The sum of the values returned by every range
+	 */
+	public double sum(int from, int to, Rows body)
+	{
+		if (deterministic)
+		{
+			return sumOrdered(pool, from, to, BAND, body);
+		}
+
+		return sum(pool, from, to, grain(to - from, pool), body);
+	}
+
+	/**
+	 * A block of work over a contiguous range of rows. The returned value is summed over all ranges.
+	 */
+	public static abstract class Rows
+	{
+		public abstract double compute(int from, int to);
+	}
+
+	/**
+	 * Run a row loop over [from, to) on the given pool, splitting it in half until no more than grain rows remain per
+	 * task. The partial results are added together as tasks join.
+	 * 
+	 * @param pool The pool to run on, or null to run on the calling thread
+	 * @param from First row (inclusive)
+	 * @param to Last row (exclusive)
+	 * @param grain The largest number of rows computed by a single task
+	 * @param body The work to do for each range of rows
+	 * @return The sum of the values returned by every range
+	 */
+	public static double sum(ForkJoinPool pool, int from, int to, int grain, Rows body)
+	{
+		if (pool == null || to - from <= grain)
+		{
+			return body.compute(from, to);
+		}
+
+		return pool.invoke(new RowTask(from, to, Math.max(1, grain), body));
+	}
+
+	/**
+	 * Run a row loop over [from, to) in fixed bands of rows, then add the band results in row order. The result does
+	 * not depend on the pool.
+	 * 
+	 * @param pool The pool to run on, or null to run on the calling thread
+	 * @param from First row (inclusive)
+	 * @param to Last row (exclusive)
+	 * @param band The number of rows in every band (the last may be shorter)
+	 * @param body The work to do for each range of rows
+	 * @return The sum of the values returned by every band
+	 */
+	public static double sumOrdered(ForkJoinPool pool, int from, int to, int band, Rows body)
+	{
+		final int nBands = (to - from + band - 1) / band;
+		final double[] partial = new double[nBands];
+
+		if (pool == null || nBands <= 1)
+		{
+			for (int b = 0; b < nBands; b++)
+			{
+				partial[b] = body.compute(from + b * band, Math.min(to, from + (b + 1) * band));
+			}
+		}
+
+		else
+		{
+			pool.invoke(new BandTask(0, nBands, from, to, band, body, partial));
+		}
+
+		double sum = 0;
+		for (double p : partial)
+		{
+			sum += p;
+		}
+
+		return sum;
+	}
+
+	/**
+	 * Pick a grain size that gives each worker of the pool a few tasks to steal.
+	 * 
+	 * @param rows
+	 * @param pool
+	 * @return
+	 */
+	public static int grain(int rows, ForkJoinPool pool)
+	{
+		if (pool == null) return rows;
+		return Math.max(1, rows / (pool.getParallelism() * 4));
+	}
+
+	private static class RowTask extends RecursiveTask<Double>
+	{
+		private static final long	serialVersionUID	= -3906254190375315471L;
+
+		private final int			from, to, grain;
+		private final Rows			body;
+
+		RowTask(int from, int to, int grain, Rows body)
+		{
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+			this.body = body;
+		}
+
+		@Override
+		protected Double compute()
+		{
+			if (to - from <= grain)
+			{
+				return body.compute(from, to);
+			}
+
+			int mid = (from + to) >>> 1;
+			RowTask left = new RowTask(from, mid, grain, body);
+			RowTask right = new RowTask(mid, to, grain, body);
+
+			left.fork();
+			double r = right.compute();
+			return left.join() + r;
+		}
+	}
+
+	private static class BandTask extends RecursiveAction
+	{
+		private static final long	serialVersionUID	= 5204846396361262262L;
+
+		private final int			first, last, from, to, band;
+		private final Rows			body;
+		private final double[]		partial;
+
+		BandTask(int first, int last, int from, int to, int band, Rows body, double[] partial)
+		{
+			this.first = first;
+			this.last = last;
+			this.from = from;
+			this.to = to;
+			this.band = band;
+			this.body = body;
+			this.partial = partial;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (last - first == 1)
+			{
+				partial[first] = body.compute(from + first * band, Math.min(to, from + (first + 1) * band));
+				return;
+			}
+
+			int mid = (first + last) >>> 1;
+			invokeAll(new BandTask(first, mid, from, to, band, body, partial), new BandTask(mid, last, from, to, band, body, partial));
+		}
+	}
+}
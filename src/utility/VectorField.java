@@ -4,39 +4,53 @@ import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 import javax.imageio.ImageIO;
 
 public class VectorField
 {
-	public float[][]			u;
-	public float[][]			v;
+	public FloatGrid			u;
+	public FloatGrid			v;
 
 	public int					height;
 	public int					width;
 
 	public static final float	UNKNOWN	= 1e9f;
 
+	// Tag at the start of every .flo file
+	public static final float	FLO_TAG	= 202021.25f;
+
+	// Pairs copied per block when converting .flo data
+	private static final int	CHUNK	= 4096;
+
 	public VectorField(float[][] u, float[][] v)
+	{
+		this(FloatGrid.fromArray(u), FloatGrid.fromArray(v));
+	}
+
+	public VectorField(FloatGrid u, FloatGrid v)
 	{
 		this.u = u;
 		this.v = v;
 
-		this.height = u.length;
-		this.width = u[0].length;
+		this.height = u.height;
+		this.width = u.width;
 	}
 
 	public VectorField(int height, int width)
 	{
-		u = new float[height][width];
-		v = new float[height][width];
+		u = new FloatGrid(height, width);
+		v = new FloatGrid(height, width);
 
 		this.height = height;
 		this.width = width;
@@ -50,52 +64,145 @@ public class VectorField
 	 */
 	public static VectorField readFromFlo(String fileName)
 	{
-		float[][] gu = new float[0][0];
-		float[][] gv = new float[0][0];
-		byte[] b;
+		FloatGrid gu = new FloatGrid(0, 0);
+		FloatGrid gv = new FloatGrid(0, 0);
 
 		try
 		{
-			FileInputStream in = new FileInputStream(new File(fileName));
-			b = new byte[4];
-			in.read(b);
+			RandomAccessFile file = new RandomAccessFile(new File(fileName), "r");
+
+			try
+			{
+				FileChannel channel = file.getChannel();
+
+				// Map the file instead of copying it into a heap buffer first
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				buffer.order(ByteOrder.LITTLE_ENDIAN);
 
-			float f = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).getFloat();
-			if (f != 202021.25f)
+				if (buffer.remaining() < 12 || buffer.getFloat() != FLO_TAG)
+				{
+					System.err.println("ERROR: Could not read .flo; incorrect PIEH.");
+					return null;
+				}
+
+				int w = buffer.getInt();
+				int h = buffer.getInt();
+
+				if (w < 0 || h < 0) throw new IOException("Invalid .flo size " + w + "x" + h + ".");
+				if (buffer.remaining() < 8L * w * h) throw new IOException("Unexpected end of .flo file.");
+
+				gu = new FloatGrid(h, w);
+				gv = new FloatGrid(h, w);
+
+				// The interleaved (u, v) pairs straight from the mapping
+				deinterleave(buffer.asFloatBuffer(), gu.data, gv.data, w * h);
+			}
+			finally
 			{
-				System.err.println("ERROR: Could not read .flo; incorrect PIEH.");
-				in.close();
-				return null;
+				file.close();
 			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
 
-			in.read(b);
-			int w = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).getInt();
-			in.read(b);
-			int h = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).getInt();
+		return new VectorField(gu, gv);
+	}
 
-			gu = new float[h][w];
-			gv = new float[h][w];
+	/**
+	 * Write the vector field to a .flo file
+	 * 
+	 * @param fileName
+	 */
+	public void writeToFlo(String fileName)
+	{
+		try
+		{
+			FileOutputStream out = new FileOutputStream(new File(fileName));
 
-			for (int y = 0; y < h; y++)
+			try
 			{
-				for (int x = 0; x < w; x++)
-				{
-					in.read(b);
-					gu[y][x] = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).getFloat();
+				FileChannel channel = out.getChannel();
+
+				// Interleave the (u, v) pairs a block at a time into one direct buffer, which the channel writes without a
+				// copy
+				ByteBuffer buffer = ByteBuffer.allocateDirect(8 * CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+				buffer.putFloat(FLO_TAG).putInt(width).putInt(height);
 
-					in.read(b);
-					gv[y][x] = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).getFloat();
+				for (int i = 0; i < width * height; i++)
+				{
+					if (buffer.remaining() < 8) write(channel, buffer);
+					buffer.putFloat(u.data[i]).putFloat(v.data[i]);
 				}
-			}
 
-			in.close();
+				write(channel, buffer);
+			}
+			finally
+			{
+				out.close();
+			}
 		}
 		catch (IOException e)
 		{
 			e.printStackTrace();
 		}
+	}
 
-		return new VectorField(gu, gv);
+	/**
+	 * Write what was put into a buffer to a channel and clear the buffer.
+	 */
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		buffer.flip();
+
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+
+		buffer.clear();
+	}
+
+	/**
+	 * Split interleaved (u, v) pairs into two arrays.
+	 */
+	public static void deinterleave(FloatBuffer src, float[] u, float[] v, int n)
+	{
+		float[] pairs = new float[2 * Math.min(n, CHUNK)];
+
+		for (int i = 0; i < n; i += CHUNK)
+		{
+			int len = Math.min(CHUNK, n - i);
+			src.get(pairs, 0, 2 * len);
+
+			for (int j = 0; j < len; j++)
+			{
+				u[i + j] = pairs[2 * j];
+				v[i + j] = pairs[2 * j + 1];
+			}
+		}
+	}
+
+	/**
+	 * Merge two arrays into interleaved (u, v) pairs.
+	 */
+	public static void interleave(float[] u, float[] v, FloatBuffer dst, int n)
+	{
+		float[] pairs = new float[2 * Math.min(n, CHUNK)];
+
+		for (int i = 0; i < n; i += CHUNK)
+		{
+			int len = Math.min(CHUNK, n - i);
+
+			for (int j = 0; j < len; j++)
+			{
+				pairs[2 * j] = u[i + j];
+				pairs[2 * j + 1] = v[i + j];
+			}
+
+			dst.put(pairs, 0, 2 * len);
+		}
 	}
 
 	/**
@@ -126,9 +233,9 @@ public class VectorField
 			{
 				for (int x = 0; x < width; x++)
 				{
-					if (u[y][x] <= UNKNOWN && v[y][x] <= UNKNOWN)
+					if (u.get(x, y) <= UNKNOWN && v.get(x, y) <= UNKNOWN)
 					{
-						dist = Math.sqrt(u[y][x] * u[y][x] + v[y][x] * v[y][x]);
+						dist = Math.sqrt(u.get(x, y) * u.get(x, y) + v.get(x, y) * v.get(x, y));
 
 						if (dist > maxD) maxD = dist;
 						if (dist < minD) minD = dist;
@@ -144,15 +251,15 @@ public class VectorField
 				for (int x = 0; x < width; x++)
 				{
 
-					if (u[y][x] > UNKNOWN || v[y][x] > UNKNOWN)
+					if (u.get(x, y) > UNKNOWN || v.get(x, y) > UNKNOWN)
 					{
 						model.setRGB(x, y, 16777215);
 					}
 
 					else
 					{
-						angle = Math.atan2(u[y][x], v[y][x]);
-						dist = Math.sqrt(u[y][x] * u[y][x] + v[y][x] * v[y][x]);
+						angle = Math.atan2(u.get(x, y), v.get(x, y));
+						dist = Math.sqrt(u.get(x, y) * u.get(x, y) + v.get(x, y) * v.get(x, y));
 						dist = (dist - minD) * (centerX / diff);
 
 						endX = (int) Math.round(centerX + dist * Math.sin(angle));
@@ -231,7 +338,7 @@ public class VectorField
 		{
 			for (int x = 0; x < width; x++)
 			{
-				dist = Math.sqrt(u[y][x] * u[y][x] + v[y][x] * v[y][x]);
+				dist = Math.sqrt(u.get(x, y) * u.get(x, y) + v.get(x, y) * v.get(x, y));
 
 				if (dist > maxD) maxD = dist;
 				if (dist < minD) minD = dist;
@@ -244,8 +351,8 @@ public class VectorField
 		{
 			for (int x = 0; x < width; x++)
 			{
-				angle = Math.atan2(u[y][x], v[y][x]);
-				dist = Math.sqrt(u[y][x] * u[y][x] + v[y][x] * v[y][x]);
+				angle = Math.atan2(u.get(x, y), v.get(x, y));
+				dist = Math.sqrt(u.get(x, y) * u.get(x, y) + v.get(x, y) * v.get(x, y));
 
 				// This is essentially a normalization for drawing the vectors
 				dist = (dist - minD) * (len / diff);
@@ -282,11 +389,11 @@ public class VectorField
 		{
 			out = new PrintWriter(new FileOutputStream(new File(filename + ".csv")));
 
-			for (int i = 0; i < u.length; i++)
+			for (int i = 0; i < height; i++)
 			{
-				for (int j = 0; j < u[0].length; j++)
+				for (int j = 0; j < width; j++)
 				{
-					out.print(u[i][j] + ":" + v[i][j] + ", ");
+					out.print(u.get(j, i) + ":" + v.get(j, i) + ", ");
 				}
 				out.println();
 			}
@@ -315,15 +422,15 @@ public class VectorField
 			for (int j = 0; j < width; j++)
 			{
 				// If ground truth value is unknown for this point, omit it from the average.
-				if (groundTruth.u[i][j] > UNKNOWN || groundTruth.v[i][j] > UNKNOWN)
+				if (groundTruth.u.get(j, i) > UNKNOWN || groundTruth.v.get(j, i) > UNKNOWN)
 				{
 					size--;
 				}
 
 				else
 				{
-					average += Math.sqrt((groundTruth.u[i][j] - u[i][j]) * (groundTruth.u[i][j] - u[i][j]) + (groundTruth.v[i][j] - v[i][j])
-							* (groundTruth.v[i][j] - v[i][j]));
+					average += Math.sqrt((groundTruth.u.get(j, i) - u.get(j, i)) * (groundTruth.u.get(j, i) - u.get(j, i)) + (groundTruth.v.get(j, i) - v.get(j, i))
+							* (groundTruth.v.get(j, i) - v.get(j, i)));
 				}
 			}
 		}
@@ -347,22 +454,22 @@ public class VectorField
 		{
 			for (int x = 0; x < width; x++)
 			{
-				if (groundTruth.u[y][x] > UNKNOWN || groundTruth.v[y][x] > UNKNOWN)
+				if (groundTruth.u.get(x, y) > UNKNOWN || groundTruth.v.get(x, y) > UNKNOWN)
 				{
 					size--;
 				}
 				
 				else
 				{
-					float n1 = (float) Math.sqrt(u[y][x] * u[y][x] + v[y][x] * v[y][x] + 1.0);
-					float n2 = (float) Math.sqrt(groundTruth.u[y][x] * groundTruth.u[y][x] + groundTruth.v[y][x] * groundTruth.v[y][x] + 1.0);
+					float n1 = (float) Math.sqrt(u.get(x, y) * u.get(x, y) + v.get(x, y) * v.get(x, y) + 1.0);
+					float n2 = (float) Math.sqrt(groundTruth.u.get(x, y) * groundTruth.u.get(x, y) + groundTruth.v.get(x, y) * groundTruth.v.get(x, y) + 1.0);
 					
-					float a1 = u[y][x] / n1;
-					float a2 = v[y][x] / n1;
+					float a1 = u.get(x, y) / n1;
+					float a2 = v.get(x, y) / n1;
 					float a3 = (float) (1.0 / n1);
 
-					float b1 = groundTruth.u[y][x] / n2;
-					float b2 = groundTruth.v[y][x] / n2;
+					float b1 = groundTruth.u.get(x, y) / n2;
+					float b2 = groundTruth.v.get(x, y) / n2;
 					float b3 = (float) (1.0 / n2);
 
 					// Algebraic definition of the dot product (A1 * B1 + A2 * B2 + A3 * B3)
@@ -397,8 +504,8 @@ public class VectorField
 		{
 			for (int j = 0; j < width; j++)
 			{
-				float dist = (float) Math.sqrt((groundTruth.u[i][j] - u[i][j]) * (groundTruth.u[i][j] - u[i][j]) + (groundTruth.v[i][j] - v[i][j])
-						* (groundTruth.v[i][j] - v[i][j]));
+				float dist = (float) Math.sqrt((groundTruth.u.get(j, i) - u.get(j, i)) * (groundTruth.u.get(j, i) - u.get(j, i)) + (groundTruth.v.get(j, i) - v.get(j, i))
+						* (groundTruth.v.get(j, i) - v.get(j, i)));
 				if (dist > max)
 				{
 					max = dist;
@@ -425,8 +532,8 @@ public class VectorField
 		{
 			for (int j = 0; j < width; j++)
 			{
-				float dist = (float) Math.sqrt((groundTruth.u[i][j] - u[i][j]) * (groundTruth.u[i][j] - u[i][j]) + (groundTruth.v[i][j] - v[i][j])
-						* (groundTruth.v[i][j] - v[i][j]));
+				float dist = (float) Math.sqrt((groundTruth.u.get(j, i) - u.get(j, i)) * (groundTruth.u.get(j, i) - u.get(j, i)) + (groundTruth.v.get(j, i) - v.get(j, i))
+						* (groundTruth.v.get(j, i) - v.get(j, i)));
 				if (dist < min)
 				{
 					min = dist;
@@ -448,15 +555,15 @@ public class VectorField
 		{
 			for (int x = 0; x < width; x++)
 			{
-				float n1 = (float) Math.sqrt(u[y][x] * u[y][x] + v[y][x] * v[y][x]);
-				float n2 = (float) Math.sqrt(groundTruth.u[y][x] * groundTruth.u[y][x] + groundTruth.v[y][x] * groundTruth.v[y][x]);
+				float n1 = (float) Math.sqrt(u.get(x, y) * u.get(x, y) + v.get(x, y) * v.get(x, y));
+				float n2 = (float) Math.sqrt(groundTruth.u.get(x, y) * groundTruth.u.get(x, y) + groundTruth.v.get(x, y) * groundTruth.v.get(x, y));
 
-				float a1 = u[y][x] / n1;
-				float a2 = v[y][x] / n1;
+				float a1 = u.get(x, y) / n1;
+				float a2 = v.get(x, y) / n1;
 				float a3 = 1.0f / n1;
 
-				float b1 = groundTruth.u[y][x] / n2;
-				float b2 = groundTruth.v[y][x] / n2;
+				float b1 = groundTruth.u.get(x, y) / n2;
+				float b2 = groundTruth.v.get(x, y) / n2;
 				float b3 = 1.0f / n2;
 
 				// Algebraic definition of the dot product (A1 * B1 + A2 * B2 + A3 * B3)
@@ -484,15 +591,15 @@ public class VectorField
 		{
 			for (int x = 0; x < width; x++)
 			{
-				float n1 = (float) Math.sqrt(u[y][x] * u[y][x] + v[y][x] * v[y][x]);
-				float n2 = (float) Math.sqrt(groundTruth.u[y][x] * groundTruth.u[y][x] + groundTruth.v[y][x] * groundTruth.v[y][x]);
+				float n1 = (float) Math.sqrt(u.get(x, y) * u.get(x, y) + v.get(x, y) * v.get(x, y));
+				float n2 = (float) Math.sqrt(groundTruth.u.get(x, y) * groundTruth.u.get(x, y) + groundTruth.v.get(x, y) * groundTruth.v.get(x, y));
 
-				float a1 = u[y][x] / n1;
-				float a2 = v[y][x] / n1;
+				float a1 = u.get(x, y) / n1;
+				float a2 = v.get(x, y) / n1;
 				float a3 = 1.0f / n1;
 
-				float b1 = groundTruth.u[y][x] / n2;
-				float b2 = groundTruth.v[y][x] / n2;
+				float b1 = groundTruth.u.get(x, y) / n2;
+				float b2 = groundTruth.v.get(x, y) / n2;
 				float b3 = 1.0f / n2;
 
 				// Algebraic definition of the dot product (A1 * B1 + A2 * B2 + A3 * B3)
@@ -520,7 +627,7 @@ public class VectorField
 		{
 			for (int j = 0; j < width; j++)
 			{
-				float dist = (float) Math.sqrt(u[i][j] * u[i][j] + v[i][j] * v[i][j]);
+				float dist = (float) Math.sqrt(u.get(j, i) * u.get(j, i) + v.get(j, i) * v.get(j, i));
 				if (dist > max)
 				{
 					max = dist;
@@ -542,7 +649,7 @@ public class VectorField
 		{
 			for (int j = 0; j < width; j++)
 			{
-				float dist = (float) Math.sqrt(u[i][j] * u[i][j] + v[i][j] * v[i][j]);
+				float dist = (float) Math.sqrt(u.get(j, i) * u.get(j, i) + v.get(j, i) * v.get(j, i));
 				if (dist < min)
 				{
 					min = dist;
@@ -0,0 +1,251 @@
+package utility;
+
+/**
+ * 
+ * @author Connor Fox
+ * 
+ * Row versions of the per pixel stencil loops. Each row is split into the two border columns, which clamp their
+ * neighbours, and an interior without branches, clamping or promotion to double, which the scalar versions do in every
+ * pixel. The interiors of averageRow and gradient only write their output rows, so the JIT may also vectorize them.
+ * relaxRow can not be: it is Gauss-Seidel, so each pixel reads the neighbour it just relaxed, the checkerboard steps
+ * by 2, and its error is summed in order.
+ * 
+ * Results agree with the scalar kernels to float rounding, except gradient which is exact.
+ */
+public class VectorKernels
+{
+	// Weights of the edge and corner neighbours of the smoothness stencil
+	public static final float		EDGE		= 1.0f / 6.0f;
+	public static final float		CORNER		= 1.0f / 12.0f;
+
+	/**
+	 * Whether the row kernels are used by default. They are, so flows differ to float rounding from those of the scalar
+	 * kernels used before. Set the system property hs.scalarKernels to fall back to the scalar kernels and reproduce
+	 * those flows exactly.
+	 */
+	public static final boolean	ENABLED		= !Boolean.getBoolean("hs.scalarKernels");
+
+	/**
+	 * Weighted average of the 8 neighbours of every pixel of one row, with Neumann boundary conditions.
+	 * 
+	 * @param above The row above (the row itself on the first row)
+	 * @param ia Offset of the row above
+	 * @param row The row
+	 * @param ir Offset of the row
+	 * @param below The row below (the row itself on the last row)
+	 * @param ib Offset of the row below
+	 * @param out The output row
+	 * @param io Offset of the output row
+	 * @param width
+	 */
+	public static void averageRow(final float[] above, final int ia, final float[] row, final int ir, final float[] below, final int ib,
+			final float[] out, final int io, final int width)
+	{
+		final int w = width - 1;
+
+		if (w == 0)
+		{
+			out[io] = EDGE * (above[ia] + row[ir] + row[ir] + below[ib]) + CORNER * (above[ia] + above[ia] + below[ib] + below[ib]);
+			return;
+		}
+
+		out[io] = EDGE * (above[ia] + row[ir] + row[ir + 1] + below[ib]) + CORNER * (above[ia] + above[ia + 1] + below[ib] + below[ib + 1]);
+
+		for (int x = 1; x < w; x++)
+		{
+			out[io + x] = EDGE * (above[ia + x] + row[ir + x - 1] + row[ir + x + 1] + below[ib + x])
+					+ CORNER * (above[ia + x - 1] + above[ia + x + 1] + below[ib + x - 1] + below[ib + x + 1]);
+		}
+
+		out[io + w] = EDGE * (above[ia + w] + row[ir + w - 1] + row[ir + w] + below[ib + w])
+				+ CORNER * (above[ia + w - 1] + above[ia + w] + below[ib + w - 1] + below[ib + w]);
+	}
+
+	/**
+	 * Centered difference gradient of an image with one sided differences on the border.
+	 * 
+	 * @param img
+	 * @param ix x gradient output
+	 * @param iy y gradient output
+	 * @param width
+	 * @param height
+	 */
+	public static void gradient(final float[] img, final float[] ix, final float[] iy, final int width, final int height)
+	{
+		final int w = width - 1;
+
+		for (int y = 0; y < height; y++)
+		{
+			final int r = y * width;
+			final int rm = (y > 0) ? r - width : r;
+			final int rp = (y < height - 1) ? r + width : r;
+
+			ix[r] = 0.5f * (img[r + Math.min(1, w)] - img[r]);
+			iy[r] = 0.5f * (img[rp] - img[rm]);
+
+			for (int x = 1; x < w; x++)
+			{
+				ix[r + x] = 0.5f * (img[r + x + 1] - img[r + x - 1]);
+				iy[r + x] = 0.5f * (img[rp + x] - img[rm + x]);
+			}
+
+			if (w > 0)
+			{
+				ix[r + w] = 0.5f * (img[r + w] - img[r + w - 1]);
+				iy[r + w] = 0.5f * (img[rp + w] - img[rm + w]);
+			}
+		}
+	}
+
+	/**
+	 * Relax every step'th pixel of one row of the flow system, from column start up to column end.
+	 * 
+	 * @param U x flow
+	 * @param V y flow
+	 * @param Au
+	 * @param Av
+	 * @param Du
+	 * @param Dv
+	 * @param D
+	 * @param alpha2
+	 * @param omega
+	 * @param width
+	 * @param rm Offset of the row above (the row itself on the first row)
+	 * @param r Offset of the row
+	 * @param rp Offset of the row below (the row itself on the last row)
+	 * @param start First column to relax
+	 * @param end Column to stop at (exclusive)
+	 * @param step Distance between relaxed columns
+	 * @return The sum of squared changes of the flow
+	 */
+	public static float relaxRow(final float[] U, final float[] V, final float[] Au, final float[] Av, final float[] Du, final float[] Dv,
+			final float[] D, final float alpha2, final float omega, final int width, final int rm, final int r, final int rp, final int start,
+			final int end, final int step)
+	{
+		final float keep = 1.0f - omega;
+		final int w = width - 1;
+		float error = 0;
+
+		int x = start;
+
+		// First column, clamped on the left
+		if (x == 0)
+		{
+			error += relax(U, V, Au, Av, Du, Dv, D, alpha2, omega, rm, r, rp, 0, 0, Math.min(1, w));
+			x += step;
+		}
+
+		// Interior
+		final int stop = Math.min(end, w);
+
+		for (; x < stop; x += step)
+		{
+			final int i = r + x;
+
+			final float divU = CORNER * (U[rm + x - 1] + U[rm + x + 1] + U[rp + x - 1] + U[rp + x + 1])
+					+ EDGE * (U[rm + x] + U[i - 1] + U[rp + x] + U[i + 1]);
+			final float divV = CORNER * (V[rm + x - 1] + V[rm + x + 1] + V[rp + x - 1] + V[rp + x + 1])
+					+ EDGE * (V[rm + x] + V[i - 1] + V[rp + x] + V[i + 1]);
+
+			final float u1 = U[i];
+			final float v1 = V[i];
+			final float u2 = keep * u1 + omega * (Au[i] - D[i] * v1 + alpha2 * divU) / Du[i];
+			final float v2 = keep * v1 + omega * (Av[i] - D[i] * u2 + alpha2 * divV) / Dv[i];
+
+			U[i] = u2;
+			V[i] = v2;
+			error += (u2 - u1) * (u2 - u1) + (v2 - v1) * (v2 - v1);
+		}
+
+		// Last column, clamped on the right
+		if (x == w && end > w && w > 0)
+		{
+			error += relax(U, V, Au, Av, Du, Dv, D, alpha2, omega, rm, r, rp, w, w - 1, w);
+		}
+
+		return error;
+	}
+
+	/**
+	 * Relax one pixel with the given neighbouring columns.
+	 */
+	private static float relax(final float[] U, final float[] V, final float[] Au, final float[] Av, final float[] Du, final float[] Dv,
+			final float[] D, final float alpha2, final float omega, final int rm, final int r, final int rp, final int x, final int xm,
+			final int xp)
+	{
+		final int i = r + x;
+
+		final float divU = CORNER * (U[rm + xm] + U[rm + xp] + U[rp + xm] + U[rp + xp]) + EDGE * (U[rm + x] + U[r + xm] + U[rp + x] + U[r + xp]);
+		final float divV = CORNER * (V[rm + xm] + V[rm + xp] + V[rp + xm] + V[rp + xp]) + EDGE * (V[rm + x] + V[r + xm] + V[rp + x] + V[r + xp]);
+
+		final float u1 = U[i];
+		final float v1 = V[i];
+		final float u2 = (1.0f - omega) * u1 + omega * (Au[i] - D[i] * v1 + alpha2 * divU) / Du[i];
+		final float v2 = (1.0f - omega) * v1 + omega * (Av[i] - D[i] * u2 + alpha2 * divV) / Dv[i];
+
+		U[i] = u2;
+		V[i] = v2;
+
+		return (u2 - u1) * (u2 - u1) + (v2 - v1) * (v2 - v1);
+	}
+
+	/**
+	 * Multiply one row of the flow by the system matrix. With a right hand side the residual (Au, Av) - A(u, v) is
+	 * stored instead of the product.
+	 * 
+	 * @param U x flow
+	 * @param V y flow
+	 * @param Au x right hand side, or null for the product
+	 * @param Av y right hand side, or null for the product
+	 * @param Du
+	 * @param Dv
+	 * @param D
+	 * @param alpha2
+	 * @param QU x output
+	 * @param QV y output
+	 * @param width
+	 * @param rm Offset of the row above (the row itself on the first row)
+	 * @param r Offset of the row
+	 * @param rp Offset of the row below (the row itself on the last row)
+	 * @return The sum of squared residuals, or the dot product of the flow with the product
+	 */
+	public static double applyRow(final float[] U, final float[] V, final float[] Au, final float[] Av, final float[] Du, final float[] Dv,
+			final float[] D, final float alpha2, final float[] QU, final float[] QV, final int width, final int rm, final int r, final int rp)
+	{
+		final int w = width - 1;
+
+		// Smoothness term first, so the interior stays a plain loop
+		averageRow(U, rm, U, r, U, rp, QU, r, width);
+		averageRow(V, rm, V, r, V, rp, QV, r, width);
+
+		double sum = 0;
+
+		if (Au == null)
+		{
+			for (int i = r; i <= r + w; i++)
+			{
+				final float qu = Du[i] * U[i] + D[i] * V[i] - alpha2 * QU[i];
+				final float qv = Dv[i] * V[i] + D[i] * U[i] - alpha2 * QV[i];
+
+				QU[i] = qu;
+				QV[i] = qv;
+				sum += U[i] * qu + V[i] * qv;
+			}
+		}
+
+		else
+		{
+			for (int i = r; i <= r + w; i++)
+			{
+				final float ru = Au[i] - (Du[i] * U[i] + D[i] * V[i] - alpha2 * QU[i]);
+				final float rv = Av[i] - (Dv[i] * V[i] + D[i] * U[i] - alpha2 * QV[i]);
+
+				QU[i] = ru;
+				QV[i] = rv;
+				sum += ru * ru + rv * rv;
+			}
+		}
+
+		return sum;
+	}
+}